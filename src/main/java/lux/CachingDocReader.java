@@ -2,10 +2,12 @@ package lux;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Arrays;
 import java.util.Map;
 
 import javax.xml.transform.stream.StreamSource;
 
+import lux.cache.DocumentCache;
 import lux.exception.LuxException;
 import lux.index.IndexConfiguration;
 import lux.index.field.TinyBinaryField;
@@ -15,11 +17,11 @@ import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.tree.tiny.TinyDocumentImpl;
-import net.sf.saxon.tree.tiny.TinyTree;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.util.BytesRef;
 import org.slf4j.LoggerFactory;
@@ -27,19 +29,29 @@ import org.slf4j.LoggerFactory;
 /**
  * Reads, parses and caches XML documents from a Lucene index. Assigns Lucene
  * docIDs as Saxon document numbers. This reader and its cache are intended to survive for a
- * single query only, and is *not thread-safe*.
+ * single query only, and is *not thread-safe*.  Documents read from leaf readers are also stored in
+ * (and retrieved from) a shared {@link DocumentCache}, if one is provided, which survives across queries.
  */
 public class CachingDocReader {
     // the (inverse of the) portion of heap to allocate to each per-request document cache.  
     // This should really rely on the number of clients
     private final static int CACHE_RATIO = 100;
-	private final NodeCache cache = new NodeCache(java.lang.Runtime.getRuntime().maxMemory() / CACHE_RATIO);
+
+    /**
+     * The size (in bytes) of the cache of a reader used by a task that reads documents on behalf of another
+     * reader, and clears its cache after each one.
+     */
+    public final static long TASK_CACHE_SIZE = 64 * 1024;
+
+    private final NodeCache cache;
     private final String xmlFieldName;
     private final String uriFieldName;
     private final DocumentBuilder builder;
     private final Configuration config;
+    private final DocumentCache sharedCache;
     private int cacheHits = 0;
     private int cacheMisses = 0;
+    private int sharedCacheHits = 0;
     private long buildTime = 0;
 
     /**
@@ -54,10 +66,49 @@ public class CachingDocReader {
      *            supplies the names of the xml storage and uri fields
      */
     public CachingDocReader(DocumentBuilder builder, Configuration config, IndexConfiguration indexConfig) {
+        this (builder, config, indexConfig, null);
+    }
+
+    /**
+     * Create a CachingDocReader that will use the provided objects to read and
+     * parse XML documents, and that shares documents with other readers via a {@link DocumentCache}.
+     * 
+     * @param builder
+     *            will be used to construct XML documents as XdmNodes
+     * @param config
+     *            assigns the proper document ID to each constructed document
+     * @param indexConfig
+     *            supplies the names of the xml storage and uri fields
+     * @param sharedCache
+     *            a cache shared with other readers; may be null
+     */
+    public CachingDocReader(DocumentBuilder builder, Configuration config, IndexConfiguration indexConfig, DocumentCache sharedCache) {
+        this (builder, config, indexConfig, sharedCache, java.lang.Runtime.getRuntime().maxMemory() / CACHE_RATIO);
+    }
+
+    /**
+     * Create a CachingDocReader whose per-request cache is limited to the given size.  The cache's
+     * table is allocated in proportion to its size, so readers that retain few documents should use a small one.
+     * 
+     * @param builder
+     *            will be used to construct XML documents as XdmNodes
+     * @param config
+     *            assigns the proper document ID to each constructed document
+     * @param indexConfig
+     *            supplies the names of the xml storage and uri fields
+     * @param sharedCache
+     *            a cache shared with other readers; may be null
+     * @param cacheSize
+     *            the (approximate) number of bytes of documents to retain in the per-request cache
+     */
+    public CachingDocReader(DocumentBuilder builder, Configuration config, IndexConfiguration indexConfig, DocumentCache sharedCache,
+            long cacheSize) {
+        this.cache = new NodeCache(cacheSize);
         this.builder = builder;
         this.config = config;
         this.xmlFieldName = indexConfig.getXmlFieldName();
         this.uriFieldName = indexConfig.getUriFieldName();
+        this.sharedCache = sharedCache;
     }
 
     /**
@@ -73,7 +124,25 @@ public class CachingDocReader {
      * @throws LuxException if there is an error building the document that has been retrieved
      */
     public XdmNode get(int leafDocID, AtomicReaderContext context) throws IOException {
-       return get (leafDocID + context.docBase, leafDocID, context.reader());
+        if (sharedCache == null) {
+            return get (leafDocID + context.docBase, leafDocID, context.reader());
+        }
+        int docID = leafDocID + context.docBase;
+        // check the per-request cache first so that each document is always represented by the same node
+        XdmNode node = cache.get((long) docID);
+        if (node != null) {
+            ++cacheHits;
+            return node;
+        }
+        node = sharedCache.get(context, leafDocID);
+        if (node != null) {
+            ++sharedCacheHits;
+            cache.put((long) docID, node);
+            return node;
+        }
+        node = get (docID, leafDocID, context.reader());
+        sharedCache.put(context, leafDocID, node);
+        return node;
     }
     
     /**
@@ -93,17 +162,35 @@ public class CachingDocReader {
     }
     
     private XdmNode get(int docID, int luceneDocID, IndexReader reader) throws IOException {
-        XdmNode node = cache.get(docID);
+        XdmNode node = cache.get((long) docID);
         if (node != null) {
             ++cacheHits;
             return node;
         }
-        DocumentStoredFieldVisitor fieldSelector = new DocumentStoredFieldVisitor();
+        XmlFieldVisitor fieldSelector = new XmlFieldVisitor(xmlFieldName);
         reader.document(luceneDocID, fieldSelector);
-        Document document = fieldSelector.getDocument();
-        return getXdmNode(docID, document);
+        return getXdmNode(docID, fieldSelector);
     }
     
+    /**
+     * Adds a document that was read by another reader (on another thread, say) to this reader's cache,
+     * so that it is accounted for as if this reader had read it.  If a document with the same docID is
+     * already cached, that document is returned in its place, preserving node identity.
+     * @param docID the absolute docid of the document
+     * @param node the document
+     * @return the cached document with the given docID
+     */
+    XdmNode add (long docID, XdmNode node) {
+        XdmNode cached = cache.get(docID);
+        if (cached != null) {
+            ++cacheHits;
+            return cached;
+        }
+        cache.put(docID, node);
+        ++cacheMisses;
+        return node;
+    }
+
     /**
      * @param docID
      * @return a document from the cache, or null if no document matching the docID is in the cache
@@ -112,18 +199,11 @@ public class CachingDocReader {
         return cache.get(docID);
     }
 
-    private XdmNode getXdmNode(long docID, Document document) throws IOException {
-        String xml = document.get(xmlFieldName);
+    private XdmNode getXdmNode(long docID, XmlFieldVisitor fieldSelector) throws IOException {
+        Document document = fieldSelector.getDocument();
         String uri = document.get(uriFieldName);
-        BytesRef binaryValue = document.getBinaryValue(xmlFieldName);
-        byte[] bytes;
-        if (binaryValue != null) {
-            bytes = binaryValue.bytes;
-        } else {
-            bytes = null;
-        }
-        XdmNode node = createXdmNode (docID, uri, xml, bytes);
-        document.removeField(xmlFieldName);
+        byte[] bytes = fieldSelector.getXmlBytes();
+        XdmNode node = createXdmNode (docID, uri, fieldSelector.getXml(), bytes, 0, bytes == null ? 0 : bytes.length);
         node.getUnderlyingNode().getDocumentRoot().setUserData (Document.class.getName(), document);
         return node;
     }
@@ -141,24 +221,53 @@ public class CachingDocReader {
      * @return a new document made from the arguments
      */
     public XdmNode createXdmNode (long docID, String uri, String xml, byte[] bytes) {
+        return createXdmNode (docID, uri, xml, bytes, 0, bytes == null ? 0 : bytes.length);
+    }
+
+    /**
+     * Like {@link #createXdmNode(long, String, String, byte[])}, but reads the contents from a
+     * slice of a (possibly shared) byte array, as returned by many Lucene APIs.  Tiny binary
+     * documents are decoded in place, without copying the bytes.
+     * 
+     * @param docID The Solr/Lucene docid; or a shard/docid combo under Solr Cloud
+     * @param uri The uri path (no scheme) of the document to create
+     * @param xml The contents of the document, if an XML document
+     * @param bytes The contents of the document
+     * @return a new document made from the arguments
+     */
+    public XdmNode createXdmNode (long docID, String uri, String xml, BytesRef bytes) {
+        if (bytes == null) {
+            return createXdmNode (docID, uri, xml, null, 0, 0);
+        }
+        return createXdmNode (docID, uri, xml, bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    private XdmNode createXdmNode (long docID, String uri, String xml, byte[] bytes, int offset, int length) {
         uri = "lux:/" + uri;
         DocIDNumberAllocator docIdAllocator = (DocIDNumberAllocator) config.getDocumentNumberAllocator();
         docIdAllocator.setNextDocID(docID);
         long t0 = System.nanoTime();
         XdmNode node = null;
+        boolean isBinary = false;
         if (xml == null) {
             if (bytes == null) {
                 // This is a document without the expected fields, as will happen, eg if we just connect to
                 // some random database.
                 LoggerFactory.getLogger(CachingDocReader.class).warn ("Document {} has no XML content", docID);
                 bytes = new byte[0];
+                offset = length = 0;
             }
-            if (bytes.length > 4 && bytes[0] == 'T' && bytes[1] == 'I' && bytes[2] == 'N') {
+            if (length > 4 && bytes[offset] == 'T' && bytes[offset+1] == 'I' && bytes[offset+2] == 'N') {
                 // An XML document stored in tiny binary format
-                TinyBinary tb = new TinyBinary(bytes, TinyBinaryField.UTF8);
-                node = new XdmNode (tb.getTinyDocument(config));
+                TinyBinary tb = new TinyBinary(bytes, offset, length, TinyBinaryField.UTF8);
+                // text and attribute values are decoded on demand
+                node = new XdmNode (tb.getTinyDocument(config, true));
             } else {
+                if (offset != 0 || length != bytes.length) {
+                    bytes = Arrays.copyOfRange(bytes, offset, offset + length);
+                }
                 xml = "<binary xmlns=\"http://luxdb.net\" />";
+                isBinary = true;
             }
         }
         if (node == null) {
@@ -173,7 +282,7 @@ public class CachingDocReader {
             }
         }
         // associate the bytes with the xml stub (for all non-XML content)
-        if (bytes != null && xml == null) {
+        if (isBinary) {
             ((TinyDocumentImpl)node.getUnderlyingNode()).setUserData("_binaryDocument", bytes);
         }
         // doesn't seem to do what one might think:
@@ -199,6 +308,13 @@ public class CachingDocReader {
         return cacheMisses;
     }
 
+    /**
+     * @return the number of items found in the shared document cache, and added to this reader's cache
+     */
+    public int getSharedCacheHits() {
+        return sharedCacheHits;
+    }
+
     /**
      * @return the total time spent building documents (in nanoseconds). This
      *         includes time spent parsing and constructing a Saxon
@@ -246,36 +362,53 @@ public class CachingDocReader {
             return false;
         }
 
-        /**
-         * @param value a document whose size is to be calculated
-         * @return the size of a TinyBinary representation of the document, which should be pretty close to the actual
-         * heap size used.
-         */
         private long calculateSize(XdmNode value) {
-            TinyTree tree = ((TinyDocumentImpl)value.getUnderlyingNode()).getTree();
-            int nodeCount = tree.getNumberOfNodes();
-            int attCount = tree.getNumberOfAttributes();
-            int nsCount = tree.getNumberOfNamespaces();
-            byte[] binary = (byte[]) ((TinyDocumentImpl)value.getUnderlyingNode()).getUserData("_binaryDocument");
-            int binSize = binary == null ? 0 : binary.length;
-            // gross estimate of the number of string pointers
-            // Note: we don't count the size of the names in the name pool, on the assumption they will be shared
-            // by a lot of documents.
-            int stringLen = 12 + 2 * nodeCount + 2 * attCount + 2 * nsCount;
-            // actually count the lengths of all the attributes
-            CharSequence[] attValueArray = tree.getAttributeValueArray();
-            for (int i = 0; i < attCount; i++) {
-                stringLen += attValueArray[i].length();
+            return DocumentCache.calculateSize(value);
+        }
+    }
+
+    /**
+     * Loads all the stored fields into a {@link Document}, except for the xml storage field, whose
+     * contents are retained as they were read (as a String or byte array), and handed directly to the
+     * document builder.  This avoids wrapping and then un-wrapping the document contents, which are
+     * generally much larger than the other stored fields.  The remaining fields are available via lux:key().
+     */
+    static class XmlFieldVisitor extends DocumentStoredFieldVisitor {
+        
+        private final String xmlFieldName;
+        private String xml;
+        private byte[] xmlBytes;
+        
+        XmlFieldVisitor (String xmlFieldName) {
+            this.xmlFieldName = xmlFieldName;
+        }
+        
+        @Override
+        public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+            if (fieldInfo.name.equals(xmlFieldName)) {
+                xmlBytes = value;
+            } else {
+                super.binaryField(fieldInfo, value);
             }
-            return 36
-                    + binSize
-                    + nodeCount * 19
-                    + attCount * 8
-                    + nsCount * 8
-                    + tree.getCharacterBuffer().length() * 2
-                    + (tree.getCommentBuffer() == null ? 0 : tree.getCommentBuffer().length() * 2) 
-                    + stringLen;
         }
+
+        @Override
+        public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+            if (fieldInfo.name.equals(xmlFieldName)) {
+                xml = value;
+            } else {
+                super.stringField(fieldInfo, value);
+            }
+        }
+        
+        String getXml () {
+            return xml;
+        }
+        
+        byte[] getXmlBytes () {
+            return xmlBytes;
+        }
+
     }
 
 }
@@ -1,19 +1,30 @@
 package lux;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.xml.transform.ErrorListener;
 
+import lux.cache.DocumentCache;
+import lux.cache.LRUCache;
+import lux.cache.XQueryEvaluatorPool;
 import lux.compiler.EXPathSupport;
 import lux.compiler.PathOptimizer;
 import lux.compiler.SaxonTranslator;
 import lux.exception.LuxException;
 import lux.functions.ExtensionFunctions;
 import lux.functions.LuxFunctionLibrary;
+import lux.functions.SearchBase.QueryParser;
 import lux.functions.file.FileExtensions;
 import lux.index.IndexConfiguration;
 import lux.index.field.FieldDefinition;
@@ -30,15 +41,19 @@ import net.sf.saxon.Configuration;
 import net.sf.saxon.Configuration.LicenseFeature;
 import net.sf.saxon.lib.CollectionURIResolver;
 import net.sf.saxon.lib.FeatureKeys;
+import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XQueryExecutable;
+import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.search.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +73,33 @@ public class Compiler {
     private final HashMap<AbstractExpression, XPathField> fieldExpressions;
     private final HashMap<String,String> namespaceBindings;
     private final PropEquiv tempEquiv;
+    private final LRUCache<QueryCacheKey, CachedQuery> queryCache;
+    private final LRUCache<ParsedQueryKey, Query> parsedQueryCache;
+    private final LRUCache<StylesheetKey, XsltExecutable> xsltCache;
+    private final LRUCache<QueryCacheKey, XQueryEvaluatorPool> evalCache;
+    private final DocumentCache documentCache;
+    private int generation;
+    private int searchThreads;
+    private ExecutorService searchExecutor;
+    private ExecutorService prefetchExecutor;
+
+    /** The default maximum number of compiled queries to retain in the query cache */
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 1000;
+
+    /** The default maximum number of parsed Lucene queries to retain in the parsed query cache */
+    public static final int DEFAULT_PARSED_QUERY_CACHE_SIZE = 1000;
+
+    /** The default maximum number of compiled stylesheets to retain in the XSLT cache */
+    public static final int DEFAULT_XSLT_CACHE_SIZE = 100;
+
+    /** The default maximum number of queries compiled for lux:eval to retain in the eval cache */
+    public static final int DEFAULT_EVAL_CACHE_SIZE = 100;
+
+    // the maximum number of idle evaluators retained for each query in the eval cache
+    private static final int EVALUATOR_POOL_SIZE = 8;
+
+    // the (inverse of the) portion of heap to allocate to the shared document cache
+    private static final int DOCUMENT_CACHE_RATIO = 20;
 
     public enum SearchStrategy {
         NONE, // the query is evaluated without any modification 
@@ -115,6 +157,11 @@ public class Compiler {
         fieldLeaves = new HashMap<PropEquiv, ArrayList<AbstractExpression>>();
         fieldExpressions = new HashMap<AbstractExpression, XPathField>();
         tempEquiv = new PropEquiv(null);
+        queryCache = new LRUCache<QueryCacheKey, CachedQuery>(DEFAULT_QUERY_CACHE_SIZE);
+        parsedQueryCache = new LRUCache<ParsedQueryKey, Query>(DEFAULT_PARSED_QUERY_CACHE_SIZE);
+        xsltCache = new LRUCache<StylesheetKey, XsltExecutable>(DEFAULT_XSLT_CACHE_SIZE);
+        evalCache = new LRUCache<QueryCacheKey, XQueryEvaluatorPool>(DEFAULT_EVAL_CACHE_SIZE);
+        documentCache = new DocumentCache(Runtime.getRuntime().maxMemory() / DOCUMENT_CACHE_RATIO);
         compileFieldExpressions ();
     }
     
@@ -138,7 +185,9 @@ public class Compiler {
     }
     
     /**
-     * Compiles an XQuery expression, returning a Saxon XQueryExecutable.
+     * Compiles an XQuery expression, returning a Saxon XQueryExecutable.  Compiled queries are cached,
+     * keyed by the query text, base URI and the generation of the compiler's configuration, so that
+     * repeated compilation of the same query returns the same executable, which may be shared by many threads.
      * @param exprString the expression to compile
      * @param errorListener receives any errors generated while compiling; may be null, in which case
      * any errors generated will be lost
@@ -149,6 +198,19 @@ public class Compiler {
      * are stored in the errorListener
      */
     public XQueryExecutable compile(String exprString, ErrorListener errorListener, URI baseURI, QueryStats stats) throws LuxException {
+        QueryCacheKey key = new QueryCacheKey(exprString, baseURI, getGeneration());
+        CachedQuery cached = queryCache.get(key);
+        if (cached == null) {
+            cached = compileQuery (exprString, errorListener, baseURI);
+            queryCache.put(key, cached);
+        }
+        if (stats != null && cached.optimizedQuery != null) {
+            stats.optimizedXQuery = cached.optimizedQuery;
+        }
+        return cached.executable;
+    }
+    
+    private CachedQuery compileQuery(String exprString, ErrorListener errorListener, URI baseURI) throws LuxException {
         XQueryExecutable xquery;
         XQueryCompiler xQueryCompiler = getXQueryCompiler();
         if (errorListener != null) {
@@ -164,7 +226,7 @@ public class Compiler {
         }
         SaxonTranslator translator = makeTranslator();
         if (searchStrategy == SearchStrategy.NONE) {
-        	return xquery;
+        	return new CachedQuery (xquery, null);
         }
         XQuery abstractQuery = translator.queryFor (xquery);
         PathOptimizer optimizer = new PathOptimizer(this);
@@ -172,9 +234,6 @@ public class Compiler {
         XQuery optimizedQuery = null;
         try {
             optimizedQuery = optimizer.optimize(abstractQuery);
-            if (stats != null) {
-                stats.optimizedXQuery = optimizedQuery;
-            }
         } catch (LuxException e) {
             if (logger.isDebugEnabled()) {
                 logger.debug ("An error occurred while optimizing: " + abstractQuery.toString());
@@ -190,7 +249,7 @@ public class Compiler {
         } catch (SaxonApiException e) {
             throw new LuxException (e);
         }
-        return xquery;
+        return new CachedQuery (xquery, optimizedQuery);
     }
     
     private static Processor makeProcessor () {
@@ -222,6 +281,53 @@ public class Compiler {
         return processor.newXsltCompiler();
     }
 
+    /**
+     * Compiles an XSLT stylesheet, returning a Saxon XsltExecutable.  Compiled stylesheets are cached and shared by
+     * all the Evaluators using this Compiler, so a stylesheet applied to each of a page of search results is compiled
+     * only once.  Stylesheets are identified by their system ID and a digest of their serialized content, so that
+     * stylesheets constructed by a query, which have no system ID, are found in the cache too.
+     * @param stylesheet the stylesheet document or element
+     * @param errorListener receives any errors reported while compiling the stylesheet; if null, the
+     * XsltCompiler's default listener is used
+     * @return the compiled stylesheet
+     * @throws SaxonApiException if the stylesheet does not compile.  Stylesheets that fail to compile are not cached.
+     */
+    public XsltExecutable compileXslt (NodeInfo stylesheet, ErrorListener errorListener) throws SaxonApiException {
+        StylesheetKey key = new StylesheetKey(stylesheet.getSystemId(), new XdmNode(stylesheet).toString());
+        XsltExecutable xsltexec = xsltCache.get(key);
+        if (xsltexec == null) {
+            XsltCompiler xsltCompiler = getXsltCompiler();
+            if (errorListener != null) {
+                xsltCompiler.setErrorListener(errorListener);
+            }
+            xsltexec = xsltCompiler.compile(stylesheet);
+            xsltCache.put(key, xsltexec);
+        }
+        return xsltexec;
+    }
+
+    /**
+     * Compiles an XQuery expression for dynamic evaluation (by lux:eval), using Saxon's compiler, without
+     * optimizing it.  Compiled queries are cached, keyed by the query text and the static context supplied by this
+     * Compiler (its namespace bindings), along with a pool of evaluators loaded from each one, so that a query that
+     * is evaluated repeatedly is neither compiled nor loaded again.  The cache is invalidated along with the query cache.
+     * @param query the XQuery source
+     * @param errorListener receives any errors reported while compiling the query
+     * @return the compiled query, and its pool of evaluators
+     * @throws SaxonApiException if the query does not compile.  Queries that fail to compile are not cached.
+     */
+    public XQueryEvaluatorPool compileEval (String query, ErrorListener errorListener) throws SaxonApiException {
+        QueryCacheKey key = new QueryCacheKey(query, null, getGeneration());
+        XQueryEvaluatorPool pool = evalCache.get(key);
+        if (pool == null) {
+            XQueryCompiler xqueryCompiler = getXQueryCompiler();
+            xqueryCompiler.setErrorListener(errorListener);
+            pool = new XQueryEvaluatorPool(xqueryCompiler.compile(query), EVALUATOR_POOL_SIZE);
+            evalCache.put(key, pool);
+        }
+        return pool;
+    }
+
     public XQueryCompiler getXQueryCompiler () {
         XQueryCompiler xqueryCompiler = processor.newXQueryCompiler();
         for (java.util.Map.Entry<String, String> binding : namespaceBindings.entrySet()) {
@@ -266,7 +372,10 @@ public class Compiler {
     }
 
     public void setSearchStrategy(SearchStrategy searchStrategy) {
-        this.searchStrategy = searchStrategy;
+        if (this.searchStrategy != searchStrategy) {
+            this.searchStrategy = searchStrategy;
+            invalidateQueryCache();
+        }
     }
 
     public boolean isSaxonLicensed() {
@@ -324,6 +433,7 @@ public class Compiler {
 	    } else {
             namespaceBindings.put(prefix, namespace);
 	    }
+	    invalidateQueryCache();
 	}
 	
 	/**
@@ -359,6 +469,250 @@ public class Compiler {
 				fieldExpressions.put(xpathExpr, (XPathField) field);
 			}
 		}
+		invalidateQueryCache();
+	}
+	
+	/**
+	 * Discards all cached compiled queries (including those compiled for lux:eval), and all cached parsed Lucene queries.  This is called automatically
+	 * whenever the compiler's namespace bindings, search strategy or field expressions change.  Changes to the
+	 * index configuration are detected using its generation number, so cached queries compiled (or parsed)
+	 * using a previous configuration will never be returned.
+	 */
+	public void invalidateQueryCache () {
+	    synchronized (queryCache) {
+	        ++generation;
+	        queryCache.clear();
+	        parsedQueryCache.clear();
+	        evalCache.clear();
+	    }
+	}
+	
+	private int getGeneration () {
+	    synchronized (queryCache) {
+	        return generation + indexConfig.getGeneration();
+	    }
+	}
+	
+	/**
+	 * @return the cache of compiled queries, which reports hit, miss and eviction statistics,
+	 * and whose maximum size may be adjusted.
+	 */
+	public LRUCache<?,?> getQueryCache () {
+	    return queryCache;
+	}
+	
+	/**
+	 * @return the cache of parsed Lucene queries, which reports hit, miss and eviction statistics,
+	 * and whose maximum size may be adjusted.
+	 */
+	public LRUCache<?,?> getParsedQueryCache () {
+	    return parsedQueryCache;
+	}
+	
+	/**
+	 * @return the cache of queries compiled for lux:eval, which reports hit, miss and eviction statistics,
+	 * and whose maximum size may be adjusted.
+	 */
+	public LRUCache<?,?> getEvalCache () {
+	    return evalCache;
+	}
+	
+	/**
+	 * @return the cache of compiled XSLT stylesheets, which reports hit, miss and eviction statistics,
+	 * and whose maximum size may be adjusted.
+	 */
+	public LRUCache<?,?> getXsltCache () {
+	    return xsltCache;
+	}
+	
+	/**
+	 * Looks up a Lucene query, as previously parsed by one of the search functions.
+	 * @param parser the parser that parses the query
+	 * @param query the query text (or serialized query element, for the XML query parser)
+	 * @param namespaces the namespace bindings in effect when parsing, in some canonical form
+	 * @return the cached Query, or null if none is cached.  The Query is shared, and must not be modified.
+	 */
+	public Query getParsedQuery (QueryParser parser, String query, String namespaces) {
+	    return parsedQueryCache.get(new ParsedQueryKey(parser, query, namespaces, getGeneration()));
+	}
+	
+	/**
+	 * Caches a parsed Lucene query for re-use by later searches.
+	 * @param parser the parser that parsed the query
+	 * @param query the query text (or serialized query element, for the XML query parser)
+	 * @param namespaces the namespace bindings in effect when parsing, in some canonical form
+	 * @param parsedQuery the parsed query, which must not be modified after it is cached
+	 */
+	public void cacheParsedQuery (QueryParser parser, String query, String namespaces, Query parsedQuery) {
+	    parsedQueryCache.put(new ParsedQueryKey(parser, query, namespaces, getGeneration()), parsedQuery);
+	}
+	
+	/**
+	 * @return the cache of documents shared by all the Evaluators using this Compiler.  Documents are
+	 * built using this Compiler's Processor, so they may not be shared with Evaluators using a different Compiler.
+	 */
+	public DocumentCache getDocumentCache () {
+	    return documentCache;
+	}
+	
+	/**
+	 * @return the number of threads used to retrieve search results in parallel, or 0 if
+	 * search results are retrieved serially, by the thread evaluating the query.
+	 */
+	public synchronized int getSearchThreads () {
+	    return searchThreads;
+	}
+	
+	/**
+	 * Enables (or disables) parallel retrieval of search results.  When enabled, unsorted searches
+	 * retrieve documents from each index segment concurrently, using a pool of threads shared by all the
+	 * Evaluators using this Compiler.  Results are still returned in document order.
+	 * @param searchThreads the number of threads to use; if 0, parallel retrieval is disabled.
+	 */
+	public synchronized void setSearchThreads (int searchThreads) {
+	    if (searchThreads == this.searchThreads) {
+	        return;
+	    }
+	    if (searchExecutor != null) {
+	        // searches in progress will complete, but new ones will use the new executor, if any
+	        searchExecutor.shutdown();
+	        searchExecutor = null;
+	    }
+	    this.searchThreads = searchThreads;
+	    if (searchThreads > 0) {
+	        searchExecutor = Executors.newFixedThreadPool(searchThreads, new DaemonThreadFactory("lux-search-"));
+	    }
+	}
+	
+	/**
+	 * @return the executor used to retrieve search results in parallel, or null if parallel
+	 * retrieval is disabled.
+	 */
+	public synchronized ExecutorService getSearchExecutor () {
+	    return searchExecutor;
+	}
+	
+	/**
+	 * @return an executor used to read search results ahead of their consumption. Its threads are
+	 * created as needed, and are discarded when idle.
+	 */
+	public synchronized ExecutorService getPrefetchExecutor () {
+	    if (prefetchExecutor == null) {
+	        prefetchExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("lux-prefetch-"));
+	    }
+	    return prefetchExecutor;
+	}
+	
+	static class DaemonThreadFactory implements ThreadFactory {
+	    private final String prefix;
+	    private int count = 0;
+	    
+	    DaemonThreadFactory (String prefix) {
+	        this.prefix = prefix;
+	    }
+	    
+	    @Override
+	    public synchronized Thread newThread(Runnable r) {
+	        Thread t = new Thread (r, prefix + (++count));
+	        t.setDaemon(true);
+	        return t;
+	    }
+	}
+	
+	static class QueryCacheKey {
+	    private final String query;
+	    private final URI baseURI;
+	    private final int generation;
+	    
+	    QueryCacheKey (String query, URI baseURI, int generation) {
+	        this.query = query;
+	        this.baseURI = baseURI;
+	        this.generation = generation;
+	    }
+	    
+	    @Override
+	    public boolean equals (Object o) {
+	        if (! (o instanceof QueryCacheKey)) {
+	            return false;
+	        }
+	        QueryCacheKey other = (QueryCacheKey) o;
+	        return generation == other.generation && query.equals(other.query) &&
+	                (baseURI == null ? other.baseURI == null : baseURI.equals(other.baseURI));
+	    }
+	    
+	    @Override
+	    public int hashCode () {
+	        return query.hashCode() + (baseURI == null ? 0 : 31 * baseURI.hashCode()) + 961 * generation;
+	    }
+	}
+	
+	static class ParsedQueryKey {
+	    private final QueryParser parser;
+	    private final String query;
+	    private final String namespaces;
+	    private final int generation;
+	    
+	    ParsedQueryKey (QueryParser parser, String query, String namespaces, int generation) {
+	        this.parser = parser;
+	        this.query = query;
+	        this.namespaces = namespaces == null ? "" : namespaces;
+	        this.generation = generation;
+	    }
+	    
+	    @Override
+	    public boolean equals (Object o) {
+	        if (! (o instanceof ParsedQueryKey)) {
+	            return false;
+	        }
+	        ParsedQueryKey other = (ParsedQueryKey) o;
+	        return generation == other.generation && parser == other.parser &&
+	                query.equals(other.query) && namespaces.equals(other.namespaces);
+	    }
+	    
+	    @Override
+	    public int hashCode () {
+	        return query.hashCode() + 31 * namespaces.hashCode() + 961 * parser.ordinal() + 29791 * generation;
+	    }
+	}
+	
+	static class StylesheetKey {
+	    private final String systemId;
+	    private final byte[] digest;
+	    
+	    StylesheetKey (String systemId, String content) {
+	        this.systemId = systemId == null ? "" : systemId;
+	        try {
+	            digest = MessageDigest.getInstance("SHA-1").digest(content.getBytes("utf-8"));
+	        } catch (NoSuchAlgorithmException e) {
+	            throw new LuxException (e);
+	        } catch (UnsupportedEncodingException e) {
+	            throw new LuxException (e);
+	        }
+	    }
+	    
+	    @Override
+	    public boolean equals (Object o) {
+	        if (! (o instanceof StylesheetKey)) {
+	            return false;
+	        }
+	        StylesheetKey other = (StylesheetKey) o;
+	        return systemId.equals(other.systemId) && Arrays.equals(digest, other.digest);
+	    }
+	    
+	    @Override
+	    public int hashCode () {
+	        return systemId.hashCode() + 31 * Arrays.hashCode(digest);
+	    }
+	}
+	
+	static class CachedQuery {
+	    final XQueryExecutable executable;
+	    final XQuery optimizedQuery;
+	    
+	    CachedQuery (XQueryExecutable executable, XQuery optimizedQuery) {
+	        this.executable = executable;
+	        this.optimizedQuery = optimizedQuery;
+	    }
 	}
     
 }
@@ -22,6 +22,10 @@ import lux.index.field.FieldDefinition;
 import lux.query.parser.LuxQueryParser;
 import lux.query.parser.XmlQueryParser;
 import lux.search.LuxSearcher;
+import lux.search.highlight.FragmentHighlighter;
+import lux.search.highlight.OffsetHighlighter;
+import lux.search.highlight.TagFormatter;
+import lux.search.highlight.XmlHighlighter;
 import lux.xml.QName;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.event.ProxyReceiver;
@@ -67,6 +71,9 @@ public class Evaluator {
     LuxSearcher searcher;
     private LuxQueryParser queryParser;
     private XmlQueryParser xmlQueryParser;
+    private XmlHighlighter xmlHighlighter;
+    private OffsetHighlighter offsetHighlighter;
+    private FragmentHighlighter fragmentHighlighter;
     private QueryStats queryStats;
     private QueryContext queryContext;
 
@@ -83,7 +90,7 @@ public class Evaluator {
         builder = compiler.getProcessor().newDocumentBuilder();
         Configuration config = compiler.getProcessor().getUnderlyingConfiguration();
         if (searcher != null) {
-            docReader = new CachingDocReader(builder, config, compiler.getIndexConfiguration());
+            docReader = new CachingDocReader(builder, config, compiler.getIndexConfiguration(), compiler.getDocumentCache());
         } else {
             docReader = null;
         }
@@ -452,6 +459,39 @@ public class Evaluator {
         return xmlQueryParser;
     }
     
+    /**
+     * @return a new highlighter, which will be cached for re-use, or the cached highlighter.  Its formatter
+     * should be set by each caller.
+     */
+    public XmlHighlighter getXmlHighlighter () {
+        if (xmlHighlighter == null) {
+            xmlHighlighter = new XmlHighlighter(compiler.getProcessor(), compiler.getIndexConfiguration(), new TagFormatter("B", null));
+        }
+        return xmlHighlighter;
+    }
+
+    /**
+     * @return a new offset highlighter, which will be cached for re-use, or the cached highlighter.  Its formatter
+     * should be set by each caller.
+     */
+    public OffsetHighlighter getOffsetHighlighter () {
+        if (offsetHighlighter == null) {
+            offsetHighlighter = new OffsetHighlighter(compiler.getProcessor(), compiler.getIndexConfiguration(), new TagFormatter("B", null));
+        }
+        return offsetHighlighter;
+    }
+
+    /**
+     * @return a new fragment highlighter, which will be cached for re-use, or the cached highlighter.  Its formatter
+     * should be set by each caller.
+     */
+    public FragmentHighlighter getFragmentHighlighter () {
+        if (fragmentHighlighter == null) {
+            fragmentHighlighter = new FragmentHighlighter(compiler.getProcessor(), compiler.getIndexConfiguration(), new TagFormatter("B", null));
+        }
+        return fragmentHighlighter;
+    }
+
     /**
      * @return the error listener that receives static and dynamic error events. 
      */
@@ -0,0 +1,218 @@
+package lux;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import lux.exception.LuxException;
+import lux.search.LuxSearcher;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Executes a Lucene search and provides the results, in document order, as a Saxon {@link SequenceIterator}.
+ * Each index segment (leaf reader) is searched, and its documents retrieved and built, by a separate task
+ * run using the {@link Compiler#getSearchExecutor() Compiler's executor}, so that documents are loaded using
+ * multiple threads while the query is evaluated.  A leaf's documents are retrieved in chunks, one at a time,
+ * and only a limited number of leaves are retrieved concurrently, so the memory devoted to documents that have
+ * been retrieved but not yet consumed is bounded.
+ *
+ * <p>Documents are numbered by their (absolute) Lucene docIDs, as usual; since the leaves are consumed in order,
+ * and each leaf's documents are retrieved in order, the results are in document order.</p>
+ *
+ * <p>This iterator does not support sorting or a starting offset; see {@link SearchResultIterator}.</p>
+ */
+public class ParallelSearchResultIterator extends SearchIteratorBase {
+
+    /** the maximum number of documents retrieved from a leaf by a single task */
+    private static final int CHUNK_SIZE = 64;
+
+    private final Query query;
+    private final ExecutorService executor;
+    private final CachingDocReader docCache;
+    private final Weight weight;
+    private final Iterator<AtomicReaderContext> leaves;
+    private final LinkedList<LeafLoader> loaders;
+    private final int maxLoaders;
+    private Iterator<XdmNode> chunk;
+
+    /**
+     * Executes a Lucene search.
+     * @param eval provides the link to the index via its {@link LuxSearcher}, and the executor that runs the search
+     * tasks via its {@link Compiler}.
+     * @param query the query to execute
+     * @throws IOException
+     */
+    public ParallelSearchResultIterator (Evaluator eval, Query query) throws IOException {
+        super (eval, null, 1);
+        this.query = query;
+        if (stats != null) {
+            stats.query = query.toString();
+        }
+        LuxSearcher searcher = eval.getSearcher();
+        if (searcher == null) {
+            throw new LuxException("Attempted to search using an Evaluator that has no searcher");
+        }
+        executor = eval.getCompiler().getSearchExecutor();
+        if (executor == null) {
+            throw new LuxException("Attempted a parallel search using a Compiler with no search threads");
+        }
+        docCache = eval.getDocReader();
+        weight = searcher.createNormalizedWeight(query);
+        leaves = searcher.getIndexReader().leaves().iterator();
+        loaders = new LinkedList<LeafLoader>();
+        maxLoaders = Math.max(1, eval.getCompiler().getSearchThreads());
+        while (loaders.size() < maxLoaders && leaves.hasNext()) {
+            loaders.add(new LeafLoader(leaves.next()));
+        }
+    }
+
+    /**
+     * @return the next result.  Returns null when there are no more results.
+     * Calling this function after null has been returned may result
+     * in an error.
+     * @throws XPathException if there is an error while searching
+     */
+    @Override
+    public NodeInfo next() throws XPathException {
+        long t = System.nanoTime();
+        int startPosition = position;
+        try {
+            while (chunk == null || ! chunk.hasNext()) {
+                if (loaders.isEmpty()) {
+                    position = -1;
+                    current = null;
+                    return null;
+                }
+                long t1 = System.nanoTime();
+                LeafLoader loader = loaders.getFirst();
+                chunk = loader.nextChunk().iterator();
+                if (loader.isExhausted()) {
+                    loaders.removeFirst();
+                    if (leaves.hasNext()) {
+                        loaders.add(new LeafLoader(leaves.next()));
+                    }
+                }
+                if (stats != null) {
+                    stats.retrievalTime += System.nanoTime() - t1;
+                }
+            }
+            XdmNode doc = chunk.next();
+            doc = docCache.add(((NodeInfo) doc.getUnderlyingValue()).getDocumentNumber(), doc);
+            current = (NodeInfo) doc.getUnderlyingValue();
+            ++position;
+            return current;
+        } finally {
+            if (stats != null) {
+                if (position >= 0) {
+                    stats.docCount += (position - startPosition);
+                }
+                stats.totalTime += System.nanoTime() - t;
+            }
+        }
+    }
+
+    /**
+     * @return a clone of this iterator, reset to the initial position.
+     */
+    @Override
+    public SequenceIterator<NodeInfo> getAnother() throws XPathException {
+        try {
+            return new ParallelSearchResultIterator (eval, query);
+        } catch (IOException e) {
+            throw new XPathException (e);
+        }
+    }
+
+    /**
+     * Retrieves the documents matching the query from a single leaf, one chunk at a time.
+     * The next chunk is requested as soon as the previous one is consumed, so that the retrieval of a leaf's
+     * documents overlaps with their consumption.  Only one task per leaf is ever scheduled at a time,
+     * so the leaf's scorer and document reader are never accessed concurrently.
+     */
+    class LeafLoader implements Callable<List<XdmNode>> {
+
+        private final AtomicReaderContext leaf;
+        private final CachingDocReader reader;
+        private Scorer scorer;
+        private boolean exhausted;
+        private Future<List<XdmNode>> future;
+
+        LeafLoader (AtomicReaderContext leaf) {
+            this.leaf = leaf;
+            Compiler compiler = eval.getCompiler();
+            reader = new CachingDocReader(compiler.getProcessor().newDocumentBuilder(),
+                    compiler.getProcessor().getUnderlyingConfiguration(),
+                    compiler.getIndexConfiguration(), compiler.getDocumentCache(), CachingDocReader.TASK_CACHE_SIZE);
+            future = executor.submit(this);
+        }
+
+        @Override
+        public List<XdmNode> call() throws IOException {
+            ArrayList<XdmNode> docs = new ArrayList<XdmNode>();
+            if (scorer == null) {
+                scorer = weight.scorer(leaf, true, false, leaf.reader().getLiveDocs());
+                if (scorer == null) {
+                    exhausted = true;
+                    return docs;
+                }
+            }
+            while (docs.size() < CHUNK_SIZE) {
+                int docID = scorer.nextDoc();
+                if (docID == DocIdSetIterator.NO_MORE_DOCS) {
+                    exhausted = true;
+                    break;
+                }
+                docs.add(reader.get(docID, leaf));
+                // don't retain the documents in this reader's cache
+                reader.clear();
+            }
+            return docs;
+        }
+
+        /**
+         * waits for the current chunk of documents, and then schedules the retrieval of the next chunk,
+         * if there are more documents in the leaf.
+         * @return the documents retrieved by the current task
+         * @throws XPathException if the retrieval failed or was interrupted
+         */
+        List<XdmNode> nextChunk () throws XPathException {
+            List<XdmNode> docs;
+            try {
+                docs = future.get();
+            } catch (InterruptedException e) {
+                throw new XPathException (e);
+            } catch (ExecutionException e) {
+                throw new XPathException (e.getCause());
+            }
+            if (! exhausted) {
+                future = executor.submit(this);
+            }
+            return docs;
+        }
+
+        boolean isExhausted () {
+            return exhausted;
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
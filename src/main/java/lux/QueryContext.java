@@ -19,6 +19,8 @@ public class QueryContext {
     private HashMap<QName, Object> variables;
     
     private Object contextItem;
+    
+    private int prefetch;
 
     /** A query context with no context item */
     public QueryContext() {
@@ -77,6 +79,24 @@ public class QueryContext {
         return contextItem;
     }
 
+    /**
+     * @return the number of documents that searches will read ahead of the query's consumption of their results
+     */
+    public int getPrefetch () {
+        return prefetch;
+    }
+
+    /**
+     * Sets the number of search results to retrieve in the background, ahead of their use by the query, so that
+     * reading and parsing stored documents overlaps with query evaluation.  Prefetched documents occupy memory
+     * until they are consumed, so this should be a modest number.
+     * @param prefetch the number of documents to read ahead; if 0 (the default), documents are read
+     * only when required. 
+     */
+    public void setPrefetch (int prefetch) {
+        this.prefetch = prefetch;
+    }
+
 }
 
 /* This Source Code Form is subject to the terms of the Mozilla Public
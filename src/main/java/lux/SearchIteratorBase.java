@@ -2,10 +2,14 @@ package lux;
 
 import lux.exception.LuxException;
 import lux.index.FieldRole;
+import lux.index.IndexConfiguration;
+import lux.index.field.FieldDefinition;
+import lux.search.SortedSetComparatorSource;
 import lux.solr.MissingStringLastComparatorSource;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.SequenceIterator;
 
+import org.apache.lucene.index.FieldInfo.DocValuesType;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 
@@ -27,7 +31,21 @@ public abstract class SearchIteratorBase implements SequenceIterator<NodeInfo> {
         this.start = start1 - 1;
     }
 
-    protected Sort makeSortFromCriteria(String [] criteria) {
+    /**
+     * @param criteria sort criteria, as passed to lux:search
+     * @return a Lucene Sort representing the criteria, or null if they specify document order
+     */
+    public static Sort makeSortFromCriteria(String [] criteria) {
+        return makeSortFromCriteria (criteria, null);
+    }
+
+    /**
+     * @param criteria sort criteria, as passed to lux:search
+     * @param indexConfig the index configuration, used to find fields whose values are recorded as SORTED_SET
+     * DocValues, which can't be sorted using the FieldCache; may be null
+     * @return a Lucene Sort representing the criteria, or null if they specify document order
+     */
+    public static Sort makeSortFromCriteria(String [] criteria, IndexConfiguration indexConfig) {
         SortField[] sortFields = new SortField [criteria.length];
         for (int i = 0; i < criteria.length; i++) {
             SortField.Type type = SortField.Type.STRING;
@@ -79,6 +97,9 @@ public abstract class SearchIteratorBase implements SequenceIterator<NodeInfo> {
                 }
                 sortFields[i] = SortField.FIELD_DOC;
             }
+            else if (type == SortField.Type.STRING && isSortedSet(field, indexConfig)) {
+                sortFields[i] = new SortField(field, new SortedSetComparatorSource(emptyGreatest == Boolean.TRUE), reverse == Boolean.TRUE);
+            }
             else if (emptyGreatest == Boolean.TRUE) {
                 if (type == SortField.Type.STRING) {
                     sortFields[i] = new SortField(field, MISSING_LAST, reverse == Boolean.TRUE);
@@ -102,7 +123,31 @@ public abstract class SearchIteratorBase implements SequenceIterator<NodeInfo> {
         return new Sort(sortFields);
     }
 
-    final Boolean setBooleanOnce (Boolean current, boolean value, String sortCriteria) {
+    private static boolean isSortedSet (String fieldName, IndexConfiguration indexConfig) {
+        if (indexConfig == null) {
+            return false;
+        }
+        FieldDefinition field = indexConfig.getField(fieldName);
+        return field != null && field.getDocValuesType() == DocValuesType.SORTED_SET;
+    }
+
+    /**
+     * @param criteria sort criteria, as passed to lux:search
+     * @return whether the criteria specify (only) document order, in which case {@link #makeSortFromCriteria(String[])}
+     * returns null.
+     */
+    public static boolean isDocumentOrder (String [] criteria) {
+        if (criteria == null || criteria.length == 0) {
+            return true;
+        }
+        if (criteria.length > 1) {
+            return false;
+        }
+        String [] tokens = criteria[0].trim().split("\\s+");
+        return tokens[0].equals(FieldRole.LUX_DOCID) && (tokens.length == 1 || (tokens.length == 2 && tokens[1].equals("ascending")));
+    }
+
+    static Boolean setBooleanOnce (Boolean current, boolean value, String sortCriteria) {
         if (current != null) {
             throw new LuxException ("invalid ordering keyword in: " + sortCriteria);
         }
@@ -1,15 +1,23 @@
 package lux;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import lux.exception.LuxException;
 import lux.search.DocIterator;
 import lux.search.LuxSearcher;
+import lux.search.TopDocsIterator;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.SequenceIterator;
-import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
@@ -28,6 +36,9 @@ public class SearchResultIterator extends SearchIteratorBase {
     private final LuxSearcher searcher;
     private CachingDocReader docCache;
     private Sort sort;
+    private final Prefetcher prefetcher;
+    private final int limit;
+    private int retrieved;
     
     /**
      * Executes a Lucene search.
@@ -43,8 +54,23 @@ public class SearchResultIterator extends SearchIteratorBase {
      * @throws IOException
      */
     public SearchResultIterator (Evaluator eval, Query query, String[] sortCriteria, int start1) throws IOException {
+        this (eval, query, sortCriteria, start1, 0);
+    }
+
+    /**
+     * Executes a Lucene search, retrieving a limited number of results.
+     * @param eval provides the link to the index via its {@link IndexSearcher}.
+     * @param query the query to execute
+     * @param sortCriteria sort criteria; see {@link #SearchResultIterator(Evaluator, Query, String[], int)}
+     * @param start1 the 1-based starting position of the iteration
+     * @param limit the maximum number of results to return, or 0 if there is no limit.  When the results are sorted,
+     * only the top start1 + limit results need to be ranked.
+     * @throws IOException
+     */
+    public SearchResultIterator (Evaluator eval, Query query, String[] sortCriteria, int start1, int limit) throws IOException {
         super (eval, sortCriteria, start1);
         this.query = query;
+        this.limit = limit;
         if (stats != null) {
             stats.query = query.toString();
         }
@@ -54,18 +80,24 @@ public class SearchResultIterator extends SearchIteratorBase {
             throw new LuxException("Attempted to search using an Evaluator that has no searcher");
         }
         if (sortCriteria != null && sortCriteria.length > 0) {
-            sort = makeSortFromCriteria(sortCriteria);
+            sort = makeSortFromCriteria(sortCriteria, eval.getCompiler().getIndexConfiguration());
         } else {
             sort = null;
         }
         if (sort != null) {
-            docIter = searcher.search(query, sort);
+            docIter = searcher.search(query, sort, start1 - 1, limit);
         } else {
             docIter = searcher.searchOrdered(query);
         }
         if (start1 > 1) {
             advanceTo (start1);
         }
+        QueryContext queryContext = eval.getQueryContext();
+        if (queryContext != null && queryContext.getPrefetch() > 0 && position >= 0) {
+            prefetcher = new Prefetcher (queryContext.getPrefetch());
+        } else {
+            prefetcher = null;
+        }
     }
     
     /**
@@ -79,24 +111,17 @@ public class SearchResultIterator extends SearchIteratorBase {
         long t = System.nanoTime();
         int startPosition = position;
         try {
-            int docID = docIter.nextDoc();
-            // LoggerFactory.getLogger(ResultIterator.class).trace("GET {} {}", docID, query);
-            if (docID == Scorer.NO_MORE_DOCS) {
+            long t1 = System.nanoTime();
+            XdmNode doc;
+            if (prefetcher != null) {
+                doc = prefetcher.next();
+            } else {
+                doc = readNext(docCache);
+            }
+            if (doc == null) {
                 position = -1;
                 current = null;
             } else {
-                long t1 = System.nanoTime();
-                XdmItem doc;
-                if (sort == null) {
-                    // in this case, we are iterating over the readers in order, so we can make the retrieval a bit
-                    // faster by going directly to the appropriate leaf reader
-                    doc = docCache.get(docID, ((DocIterator) docIter).getCurrentReaderContext());
-                } else {
-                    //  FIXME: use relative docID and leaf reader here  so we can avoid a binary search to find the 
-                    //  correct reader.  In fact the LuxSearcher *already* has the correct leaf reader - we just need
-                    // to make it available here - probably via the docIter
-                    doc = docCache.get(docID, searcher.getIndexReader());
-                }
                 NodeInfo item = (NodeInfo) doc.getUnderlyingValue();
                 // assert documents in order : Note this is no longer accurate now that we have implemented "order by"
                 // assert (current == null || ((TinyDocumentImpl)item).getDocumentNumber() > ((TinyDocumentImpl)current).getDocumentNumber());
@@ -119,6 +144,32 @@ public class SearchResultIterator extends SearchIteratorBase {
         return current;
     }
     
+    /**
+     * advances the underlying search, and reads the next document
+     * @param reader the reader used to retrieve the document
+     * @return the next document, or null if there are no more
+     * @throws IOException
+     */
+    private XdmNode readNext (CachingDocReader reader) throws IOException {
+        if (limit > 0 && retrieved >= limit) {
+            return null;
+        }
+        int docID = docIter.nextDoc();
+        // LoggerFactory.getLogger(ResultIterator.class).trace("GET {} {}", docID, query);
+        if (docID == Scorer.NO_MORE_DOCS) {
+            return null;
+        }
+        ++retrieved;
+        if (sort == null) {
+            // in this case, we are iterating over the readers in order, so we can make the retrieval a bit
+            // faster by going directly to the appropriate leaf reader
+            return reader.get(docID, ((DocIterator) docIter).getCurrentReaderContext());
+        } 
+        // the sorted iterator returns absolute docIDs, but also tracks the leaf of each document
+        AtomicReaderContext leaf = ((TopDocsIterator) docIter).getCurrentReaderContext();
+        return reader.get(docID - leaf.docBase, leaf);
+    }
+    
     /**
      * advance the iterator to (just before) the given (1-based) position.  Sets current to null: next() must be called
      * after this method in order to retrieve the result at the position.
@@ -156,12 +207,94 @@ public class SearchResultIterator extends SearchIteratorBase {
     @Override
     public SequenceIterator<NodeInfo> getAnother() throws XPathException {
         try {
-            return new SearchResultIterator (eval, query, sortCriteria, start + 1);
+            return new SearchResultIterator (eval, query, sortCriteria, start + 1, limit);
         } catch (IOException e) {
             throw new XPathException (e);
         }
     }
     
+    /**
+     * Reads documents in the background, staying (roughly) a fixed number of documents ahead of the consumer.
+     * Documents are read by a task running on the {@link Compiler#getPrefetchExecutor() Compiler's prefetch executor},
+     * using a separate {@link CachingDocReader}, and are then added to the Evaluator's reader as they are consumed.
+     * At most one task is active at a time, and it reads no more than the number of documents requested, so
+     * the underlying search is never accessed concurrently, and no threads are left waiting if the consumer
+     * abandons the iteration.
+     */
+    class Prefetcher implements Callable<List<XdmNode>> {
+        
+        private final int depth;
+        private final CachingDocReader reader;
+        private final LinkedList<XdmNode> buffer;
+        private Future<List<XdmNode>> future;
+        private int request;
+        private boolean exhausted;
+        
+        Prefetcher (int depth) {
+            this.depth = depth;
+            Compiler compiler = eval.getCompiler();
+            reader = new CachingDocReader(compiler.getProcessor().newDocumentBuilder(),
+                    compiler.getProcessor().getUnderlyingConfiguration(),
+                    compiler.getIndexConfiguration(), compiler.getDocumentCache(), CachingDocReader.TASK_CACHE_SIZE);
+            buffer = new LinkedList<XdmNode>();
+            fill ();
+        }
+
+        @Override
+        public List<XdmNode> call() throws IOException {
+            ArrayList<XdmNode> docs = new ArrayList<XdmNode>(request);
+            while (docs.size() < request) {
+                XdmNode doc = readNext(reader);
+                if (doc == null) {
+                    exhausted = true;
+                    break;
+                }
+                docs.add(doc);
+                // don't retain the documents in this reader's cache
+                reader.clear();
+            }
+            return docs;
+        }
+        
+        // schedule a task to top up the buffer
+        private void fill () {
+            request = depth - buffer.size();
+            future = eval.getCompiler().getPrefetchExecutor().submit(this);
+        }
+        
+        /**
+         * @return the next document, or null if there are no more
+         * @throws XPathException if there was an error reading documents, or the thread was interrupted
+         */
+        XdmNode next () throws XPathException {
+            for (;;) {
+                // collect the active task's documents when they are needed, or ready
+                if (future != null && (buffer.isEmpty() || future.isDone())) {
+                    try {
+                        buffer.addAll(future.get());
+                    } catch (InterruptedException e) {
+                        throw new XPathException (e);
+                    } catch (ExecutionException e) {
+                        throw new XPathException (e.getCause());
+                    }
+                    future = null;
+                }
+                if (future == null && ! exhausted && buffer.size() <= depth / 2) {
+                    fill ();
+                }
+                if (! buffer.isEmpty() || future == null) {
+                    break;
+                }
+            }
+            if (buffer.isEmpty()) {
+                return null;
+            }
+            XdmNode doc = buffer.removeFirst();
+            return docCache.add(((NodeInfo) doc.getUnderlyingValue()).getDocumentNumber(), doc);
+        }
+        
+    }
+    
 }
 
 /* This Source Code Form is subject to the terms of the Mozilla Public
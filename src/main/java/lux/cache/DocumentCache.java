@@ -0,0 +1,263 @@
+package lux.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import lux.xml.tinybin.TinyBinary.LazyAttributeValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.tiny.TinyDocumentImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReader.ReaderClosedListener;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SegmentReader.CoreClosedListener;
+
+/**
+ * A thread-safe cache of documents read from the index, intended to be shared by all the Evaluators
+ * that use the same {@link lux.Compiler} (and therefore the same Saxon Configuration and NamePool).
+ * Documents are keyed by the core cache key of the segment they were read from, plus their segment-relative
+ * docID, so cached documents remain valid when a new searcher is opened, as long as the segment survives.
+ * Entries belonging to a segment are dropped when the segment's core is closed, that is, when the segment
+ * has been merged away and no reader uses it any longer; reopening a segment to apply new deletions doesn't drop them.
+ *
+ * <p>Since Saxon uses document numbers to establish document order, and Lux assigns Lucene docIDs as
+ * document numbers, a cached document is only returned if its document number matches the docID
+ * it would be assigned by the requesting reader; otherwise it is discarded and must be re-read.</p>
+ *
+ * <p>The cache is bounded by the estimated heap size of its documents; least-recently used documents
+ * are evicted first.</p>
+ */
+public class DocumentCache {
+
+    private final LinkedHashMap<DocKey, Entry> cache;
+    private final WeakHashMap<Object, Boolean> watchedCores;
+    private final CoreClosedListener purgeOnCoreClose;
+    private final ReaderClosedListener purgeOnClose;
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes the maximum (estimated) number of bytes of heap to devote to cached documents
+     */
+    public DocumentCache (long maxBytes) {
+        this.maxBytes = maxBytes;
+        cache = new LinkedHashMap<DocKey, Entry>(1024, 0.75f, true);
+        watchedCores = new WeakHashMap<Object, Boolean>();
+        purgeOnCoreClose = new CoreClosedListener() {
+            @Override
+            public void onClose(Object ownerCoreCacheKey) {
+                purge (ownerCoreCacheKey);
+            }
+        };
+        purgeOnClose = new ReaderClosedListener() {
+            @Override
+            public void onClose(IndexReader reader) {
+                purge (reader.getCoreCacheKey());
+            }
+        };
+    }
+
+    /**
+     * @param context the leaf reader context from which the document is to be read
+     * @param leafDocID the segment-relative docID of the document
+     * @return the cached document, or null if it is not cached
+     */
+    public synchronized XdmNode get (AtomicReaderContext context, int leafDocID) {
+        DocKey key = new DocKey (context.reader().getCoreCacheKey(), leafDocID);
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            if (entry.node.getUnderlyingNode().getDocumentNumber() == context.docBase + leafDocID) {
+                ++hits;
+                return entry.node;
+            }
+            // the segment's docBase has shifted; this document would be misnumbered
+            cache.remove(key);
+            bytes -= entry.size;
+        }
+        ++misses;
+        return null;
+    }
+
+    /**
+     * Caches the document, evicting least-recently used documents as needed to remain within the size limit.
+     * @param context the leaf reader context from which the document was read
+     * @param leafDocID the segment-relative docID of the document
+     * @param node the document
+     */
+    public synchronized void put (AtomicReaderContext context, int leafDocID, XdmNode node) {
+        long size = calculateSize(node);
+        if (size > maxBytes) {
+            return;
+        }
+        AtomicReader reader = context.reader();
+        Object coreKey = reader.getCoreCacheKey();
+        if (! watchedCores.containsKey(coreKey)) {
+            watchCore (reader, coreKey);
+            watchedCores.put(coreKey, Boolean.TRUE);
+        }
+        Entry previous = cache.put(new DocKey(coreKey, leafDocID), new Entry(node, size));
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += size;
+        Iterator<Entry> eldest = cache.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+            ++evictions;
+        }
+    }
+
+    // purges the core's documents when it is closed, as Lucene's FieldCache does
+    private void watchCore (AtomicReader reader, Object coreKey) {
+        if (reader instanceof SegmentReader) {
+            ((SegmentReader) reader).addCoreClosedListener(purgeOnCoreClose);
+        } else if (coreKey instanceof IndexReader) {
+            // a wrapper that shares the core key of the reader it wraps
+            ((IndexReader) coreKey).addReaderClosedListener(purgeOnClose);
+        } else {
+            reader.addReaderClosedListener(purgeOnClose);
+        }
+    }
+
+    /**
+     * removes all the documents read from the segment with the given core key
+     * @param coreCacheKey the core cache key of a segment reader
+     */
+    public synchronized void purge (Object coreCacheKey) {
+        Iterator<Map.Entry<DocKey, Entry>> entries = cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<DocKey, Entry> entry = entries.next();
+            if (entry.getKey().coreKey == coreCacheKey) {
+                bytes -= entry.getValue().size;
+                entries.remove();
+            }
+        }
+    }
+
+    /** removes all the documents from the cache. The statistics are not reset. */
+    public synchronized void clear () {
+        cache.clear();
+        bytes = 0;
+    }
+
+    /** @return the number of documents in the cache */
+    public synchronized int size () {
+        return cache.size();
+    }
+
+    /** @return the estimated number of bytes of heap used by the cached documents */
+    public synchronized long getBytes () {
+        return bytes;
+    }
+
+    public synchronized long getMaxBytes () {
+        return maxBytes;
+    }
+
+    /**
+     * changes the maximum size of the cache; entries are evicted on the next insertion if the cache is now over-full.
+     * @param maxBytes the maximum (estimated) number of bytes of heap to devote to cached documents
+     */
+    public synchronized void setMaxBytes (long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return the number of lookups that found a document */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found nothing */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of documents removed in order to make room for new ones */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @param value a document whose size is to be calculated
+     * @return the size of a TinyBinary representation of the document, which should be pretty close to the actual
+     * heap size used.
+     */
+    public static long calculateSize(XdmNode value) {
+        TinyTree tree = ((TinyDocumentImpl)value.getUnderlyingNode()).getTree();
+        int nodeCount = tree.getNumberOfNodes();
+        int attCount = tree.getNumberOfAttributes();
+        int nsCount = tree.getNumberOfNamespaces();
+        byte[] binary = (byte[]) ((TinyDocumentImpl)value.getUnderlyingNode()).getUserData("_binaryDocument");
+        int binSize = binary == null ? 0 : binary.length;
+        // gross estimate of the number of string pointers
+        // Note: we don't count the size of the names in the name pool, on the assumption they will be shared
+        // by a lot of documents.
+        int stringLen = 12 + 2 * nodeCount + 2 * attCount + 2 * nsCount;
+        // actually count the lengths of all the attributes, or estimate them if they haven't been decoded yet
+        CharSequence[] attValueArray = tree.getAttributeValueArray();
+        for (int i = 0; i < attCount; i++) {
+            CharSequence attValue = attValueArray[i];
+            if (attValue instanceof LazyAttributeValue) {
+                stringLen += ((LazyAttributeValue) attValue).estimatedLength();
+            } else {
+                stringLen += attValue.length();
+            }
+        }
+        return 36
+                + binSize
+                + nodeCount * 19
+                + attCount * 8
+                + nsCount * 8
+                + tree.getCharacterBuffer().length() * 2
+                + (tree.getCommentBuffer() == null ? 0 : tree.getCommentBuffer().length() * 2)
+                + stringLen;
+    }
+
+    static class DocKey {
+        private final Object coreKey;
+        private final int docID;
+
+        DocKey (Object coreKey, int docID) {
+            this.coreKey = coreKey;
+            this.docID = docID;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (! (o instanceof DocKey)) {
+                return false;
+            }
+            DocKey other = (DocKey) o;
+            return docID == other.docID && coreKey == other.coreKey;
+        }
+
+        @Override
+        public int hashCode () {
+            return System.identityHashCode(coreKey) * 31 + docID;
+        }
+    }
+
+    static class Entry {
+        private final XdmNode node;
+        private final long size;
+
+        Entry (XdmNode node, long size) {
+            this.node = node;
+            this.size = size;
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,125 @@
+package lux.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe map that evicts its least-recently-used entries once it grows beyond its
+ * maximum size, and keeps count of hits, misses and evictions.  All access is synchronized on the
+ * cache, which is fine for the relatively small number of (expensive-to-create) objects we cache:
+ * compiled queries, stylesheets and the like.
+ */
+public class LRUCache<K,V> {
+
+    private final LinkedHashMap<K,V> map;
+    private int maxSize;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize the maximum number of entries to retain.  If zero, the cache
+     * retains nothing, but still counts misses.
+     */
+    public LRUCache (int maxSize) {
+        this.maxSize = maxSize;
+        map = new LinkedHashMap<K, V>(Math.min(maxSize, 1024) * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > LRUCache.this.maxSize) {
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the cached value, or null if there is none
+     */
+    public synchronized V get (K key) {
+        V value = map.get(key);
+        if (value == null) {
+            ++misses;
+        } else {
+            ++hits;
+        }
+        return value;
+    }
+
+    /**
+     * Stores the value, evicting the least-recently-used entry if the cache is full.
+     * @param key the key
+     * @param value the value to cache
+     * @return the value previously associated with the key, or null
+     */
+    public synchronized V put (K key, V value) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        return map.put(key, value);
+    }
+
+    /**
+     * @param key the key whose entry is to be removed
+     * @return the value that was removed, or null if there was none
+     */
+    public synchronized V remove (K key) {
+        return map.remove(key);
+    }
+
+    /** removes all the entries from the cache. The statistics are not reset. */
+    public synchronized void clear () {
+        map.clear();
+    }
+
+    /** @return a snapshot of the keys currently in the cache, from least- to most-recently used */
+    public synchronized List<K> keys () {
+        return new ArrayList<K>(map.keySet());
+    }
+
+    public synchronized int size () {
+        return map.size();
+    }
+
+    public synchronized int getMaxSize () {
+        return maxSize;
+    }
+
+    /**
+     * changes the maximum size of the cache, evicting entries if the cache is now over-full.
+     * @param maxSize the new maximum number of entries
+     */
+    public synchronized void setMaxSize (int maxSize) {
+        this.maxSize = maxSize;
+        while (map.size() > maxSize) {
+            K eldest = map.keySet().iterator().next();
+            map.remove(eldest);
+            ++evictions;
+        }
+    }
+
+    /** @return the number of lookups that found a value */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found nothing */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of entries removed in order to make room for new ones */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,67 @@
+package lux.cache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import net.sf.saxon.query.DynamicQueryContext;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XQueryExecutable;
+
+/**
+ * A compiled query, together with a bounded pool of XQueryEvaluators loaded from it, so that a query
+ * that is evaluated repeatedly need not be loaded each time.  Evaluators are checked out, used by a single thread,
+ * and then returned to the pool, which retains no more than a fixed number of idle evaluators.
+ */
+public class XQueryEvaluatorPool {
+
+    private final XQueryExecutable executable;
+    private final ArrayBlockingQueue<XQueryEvaluator> pool;
+
+    /**
+     * @param executable the compiled query
+     * @param size the maximum number of idle evaluators to retain
+     */
+    public XQueryEvaluatorPool (XQueryExecutable executable, int size) {
+        this.executable = executable;
+        pool = new ArrayBlockingQueue<XQueryEvaluator>(size);
+    }
+
+    /**
+     * @return the compiled query
+     */
+    public XQueryExecutable getExecutable () {
+        return executable;
+    }
+
+    /**
+     * @return an evaluator for the query, taken from the pool if one is available, or else newly loaded.
+     * The evaluator should be returned using {@link #returnEvaluator(XQueryEvaluator)} when it is no longer needed.
+     */
+    public XQueryEvaluator checkoutEvaluator () {
+        XQueryEvaluator evaluator = pool.poll();
+        if (evaluator == null) {
+            evaluator = executable.load();
+        }
+        return evaluator;
+    }
+
+    /**
+     * Returns an evaluator to the pool, after unbinding any parameters and error listener that were bound to it,
+     * so that nothing carries over to its next use.  The evaluator is discarded if the pool is full, or if
+     * a context item was bound to it, since Saxon provides no way to unbind the context item.
+     * @param evaluator an evaluator that was checked out of this pool
+     */
+    public void returnEvaluator (XQueryEvaluator evaluator) {
+        DynamicQueryContext context = evaluator.getUnderlyingQueryContext();
+        if (context.getContextItem() != null) {
+            return;
+        }
+        context.clearParameters();
+        context.setErrorListener(context.getConfiguration().getErrorListener());
+        pool.offer(evaluator);
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
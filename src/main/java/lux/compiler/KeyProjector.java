@@ -0,0 +1,108 @@
+package lux.compiler;
+
+import lux.index.IndexConfiguration;
+import lux.index.field.FieldDefinition;
+import lux.xml.ValueType;
+import lux.xpath.AbstractExpression;
+import lux.xpath.AbstractExpression.Type;
+import lux.xpath.ExpressionVisitorBase;
+import lux.xpath.FunCall;
+import lux.xpath.LiteralExpression;
+import lux.xpath.PathExpression;
+import lux.xpath.SearchCall;
+import lux.xquery.FLWOR;
+import lux.xquery.ForClause;
+import lux.xquery.Variable;
+
+/**
+ * Replaces expressions that project the keys of search results, like <code>lux:search($q)/lux:key('f')</code> and
+ * <code>for $doc in lux:search($q) return lux:key('f', $doc)</code>, with calls to <code>lux:keys('f', $q)</code>,
+ * which read the keys from the field's DocValues, without retrieving the documents.  Only fields that record DocValues
+ * are projected in this way.  This runs over the optimized expression, after search calls have been inserted.
+ */
+class KeyProjector extends ExpressionVisitorBase {
+
+    private final IndexConfiguration indexConfig;
+
+    KeyProjector (IndexConfiguration indexConfig) {
+        this.indexConfig = indexConfig;
+    }
+
+    @Override
+    public AbstractExpression visit (PathExpression path) {
+        AbstractExpression keys = project (path.getLHS(), path.getRHS(), null);
+        return keys == null ? path : keys;
+    }
+
+    @Override
+    public AbstractExpression visit (FLWOR flwor) {
+        if (flwor.getClauses().length != 1 || ! (flwor.getClauses()[0] instanceof ForClause)) {
+            return flwor;
+        }
+        ForClause forClause = (ForClause) flwor.getClauses()[0];
+        if (forClause.getPositionVariable() != null) {
+            return flwor;
+        }
+        Variable var = forClause.getVariable();
+        AbstractExpression ret = flwor.getReturnExpression();
+        AbstractExpression keys;
+        if (ret instanceof PathExpression && isVariable (((PathExpression) ret).getLHS(), var)) {
+            // for $doc in lux:search($q) return $doc/lux:key('f')
+            keys = project (forClause.getSequence(), ((PathExpression) ret).getRHS(), null);
+        } else {
+            // for $doc in lux:search($q) return lux:key('f', $doc)
+            keys = project (forClause.getSequence(), ret, var);
+        }
+        return keys == null ? flwor : keys;
+    }
+
+    /**
+     * @param search an expression that may be a search call
+     * @param key an expression that may be a call to lux:key
+     * @param var the variable expected as key's second argument; if null, key must refer to the context item
+     * @return a call to lux:keys returning the same values as applying key to each of the search results, or null
+     * if the expressions do not have the required form.
+     */
+    private AbstractExpression project (AbstractExpression search, AbstractExpression key, Variable var) {
+        if (! isSearchCall (search) || key.getType() != Type.FUNCTION_CALL) {
+            return null;
+        }
+        FunCall keyCall = (FunCall) key;
+        if (! keyCall.getName().equals(FunCall.LUX_KEY)) {
+            return null;
+        }
+        AbstractExpression[] keyArgs = keyCall.getSubs();
+        if (var == null) {
+            if (keyArgs.length > 1 && keyArgs[1].getType() != Type.DOT) {
+                return null;
+            }
+        } else if (keyArgs.length != 2 || ! isVariable (keyArgs[1], var)) {
+            return null;
+        }
+        if (! (keyArgs[0] instanceof LiteralExpression)) {
+            return null;
+        }
+        FieldDefinition field = indexConfig.getField(((LiteralExpression) keyArgs[0]).getValue().toString());
+        if (field == null || field.getDocValuesType() == null) {
+            return null;
+        }
+        AbstractExpression[] searchArgs = search.getSubs();
+        AbstractExpression[] args = new AbstractExpression[searchArgs.length + 1];
+        args[0] = keyArgs[0];
+        System.arraycopy(searchArgs, 0, args, 1, searchArgs.length);
+        return new FunCall (FunCall.LUX_KEYS, ValueType.ATOMIC, args);
+    }
+
+    private static boolean isSearchCall (AbstractExpression expr) {
+        return expr instanceof SearchCall || (expr instanceof FunCall && ((FunCall) expr).getName().equals(FunCall.LUX_SEARCH));
+    }
+
+    private static boolean isVariable (AbstractExpression expr, Variable var) {
+        return expr.getType() == Type.VARIABLE && ((Variable) expr).getQName().equals(var.getQName());
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
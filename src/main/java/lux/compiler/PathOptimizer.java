@@ -53,6 +53,8 @@ import lux.xquery.VariableContext;
 import lux.xquery.WhereClause;
 import lux.xquery.XQuery;
 
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.SortField;
@@ -177,7 +179,9 @@ public class PathOptimizer extends ExpressionVisitorBase {
         // visit the expression tree, optimizing any absolute sub-expressions
         expr = expr.accept(this);
         // optimize the top level expression
-        return optimizeExpression(expr, peek());
+        expr = optimizeExpression(expr, peek());
+        // retrieve the keys of search results from DocValues, rather than from the documents
+        return expr.accept(new KeyProjector(indexConfig));
     }
 
     /**
@@ -661,8 +665,18 @@ public class PathOptimizer extends ExpressionVisitorBase {
         // to lux:search if this function can perform the search itself without
         // retrieving documents
         AbstractExpression searchArg = null;
+        if ((fname.equals(FunCall.FN_MAX) || fname.equals(FunCall.FN_MIN)) && subs.length == 1) {
+            AbstractExpression keyBound = optimizeKeyBound(fname, subs[0]);
+            if (keyBound != null) {
+                pop();
+                push(XPathQuery.MATCH_ALL);
+                return keyBound;
+            }
+        }
         if (subs.length == 1 && isSearchCall(subs[0])) {
-            if (fname.equals(FunCall.FN_COUNT) || fname.equals(FunCall.FN_EXISTS) || fname.equals(FunCall.FN_EMPTY)) {
+            // a search with a start or limit argument yields only some of the query's results
+            if ((fname.equals(FunCall.FN_COUNT) || fname.equals(FunCall.FN_EXISTS) || fname.equals(FunCall.FN_EMPTY))
+                    && subs[0].getSubs().length < 3) {
                 searchArg = subs[0].getSubs()[0];
             }
         } else if (fname.equals(FunCall.LUX_SEARCH) && !(funcall instanceof SearchCall)) {
@@ -727,6 +741,50 @@ public class PathOptimizer extends ExpressionVisitorBase {
         return funcall;
     }
 
+    /*
+     * Converts max() or min() of the values of a field, taken from every document returned by a search, 
+     * into lux:max-key() or lux:min-key(), which read the least or greatest of the field's terms, rather than
+     * retrieving the documents and their stored values.  This is only possible for stored fields whose 
+     * terms are their values: int and long fields, and string fields that are not analyzed (or whose
+     * analyzer is a KeywordAnalyzer).
+     * @return the lux:max-key or lux:min-key function call, or null if the expression can't be rewritten
+     */
+    private AbstractExpression optimizeKeyBound(QName fname, AbstractExpression arg) {
+        if (! (arg instanceof PathExpression)) {
+            return null;
+        }
+        AbstractExpression search = ((PathExpression) arg).getLHS();
+        AbstractExpression key = ((PathExpression) arg).getRHS();
+        FieldDefinition field = fieldMatching(key);
+        if (field == null || field.isStored() != Field.Store.YES) {
+            return null;
+        }
+        if (key.getSubs().length > 1 && key.getSubs()[1].getType() != Type.DOT) {
+            return null;
+        }
+        switch (field.getType()) {
+        case STRING:
+            if (field.getAnalyzer() != null && ! (field.getAnalyzer() instanceof KeywordAnalyzer)) {
+                // the terms of an analyzed field differ from its values
+                return null;
+            }
+            break;
+        case INT: case LONG:
+            break;
+        default:
+            return null;
+        }
+        if (search instanceof Root) {
+            // the search that would replace the root: the argument's query is on the top of the stack
+            search = createSearchCall(FunCall.LUX_SEARCH, peek());
+        } else if (! isSearchCall(search) || search.getSubs().length > 2) {
+            // a search with a start or limit argument yields only some of the query's results
+            return null;
+        }
+        QName qname = fname.equals(FunCall.FN_MAX) ? FunCall.LUX_MAX_KEY : FunCall.LUX_MIN_KEY;
+        return new FunCall(qname, ValueType.ATOMIC, key.getSubs()[0], search.getSubs()[0]);
+    }
+
     private boolean isSearchCall(AbstractExpression root) {
         return root instanceof SearchCall || (root instanceof FunCall && ((FunCall) root).getName().equals(FunCall.LUX_SEARCH));
     }
@@ -1236,17 +1294,18 @@ public class PathOptimizer extends ExpressionVisitorBase {
         return optimizeStart(subsequence);
     }
 
-    // push the start expression from an outer Subsequence into a descendant
-    // search FunCall
+    // push the start and length expressions from an outer Subsequence into a descendant
+    // search FunCall, as its start and limit arguments
     // ... but how deep?
     private AbstractExpression optimizeStart(Subsequence subsequence) {
         AbstractExpression sequence = subsequence.getSequence();
         AbstractExpression start = subsequence.getStartExpr();
         AbstractExpression length = subsequence.getLengthExpr();
+        boolean hasLength = length != null && ! length.equals(LiteralExpression.EMPTY);
         // Any (/) in the expression will have been replaced with a search, 
         // unless this expression is inside a user-defined function.
         AbstractExpression root = sequence.getRoot();
-		if (root == null || root.getType() != Type.FUNCTION_CALL || LiteralExpression.ONE.equals(start)) {
+		if (root == null || root.getType() != Type.FUNCTION_CALL || (LiteralExpression.ONE.equals(start) && !hasLength)) {
         	return subsequence;
         }
         FunCall search = (FunCall) root;
@@ -1260,11 +1319,13 @@ public class PathOptimizer extends ExpressionVisitorBase {
         	isSingular = true; // this must be a user-supplied search call
         } else if (search instanceof SearchCall) {
         	isSingular = ((SearchCall) search).getQuery().isFact(SINGULAR);
+        } else if (search == sequence && search.getName().equals(FunCall.LUX_SEARCH)) {
+        	isSingular = true; // the documents returned by an explicit search call
         } else {
         	isSingular = false;
         }
         if (isSingular) {
-        	AbstractExpression[] newArgs = new AbstractExpression[3];
+        	AbstractExpression[] newArgs = new AbstractExpression[hasLength ? 4 : 3];
         	int i = 0;
         	while (i < args.length) {
         		newArgs[i] = args[i];
@@ -1273,11 +1334,14 @@ public class PathOptimizer extends ExpressionVisitorBase {
         	while (i < 2) {
         		newArgs[i++] = LiteralExpression.EMPTY;
         	}
-        	newArgs[i] = start;
-        	search.setArguments(newArgs);
-        	if (length == null || length.equals(LiteralExpression.EMPTY)) {
+        	newArgs[i++] = start;
+        	if (! hasLength) {
+        		search.setArguments(newArgs);
         		return search;
         	}
+        	// each search result yields a single item, so no more than $length results are needed
+        	newArgs[i] = length;
+        	search.setArguments(newArgs);
         	subsequence.setStartExpr(LiteralExpression.ONE);
         }
         return subsequence;
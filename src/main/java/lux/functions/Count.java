@@ -12,16 +12,15 @@ import net.sf.saxon.tree.iter.UnfailingIterator;
 import net.sf.saxon.value.Int64Value;
 import net.sf.saxon.value.SequenceType;
 
-import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.Scorer;
 
 /**
  * <code>function lux:count($query as item()) as xs:integer</code>
  * <p>
  * This function counts the number of results of a search.  It is faster and uses less memory 
  * than calling fn:count() on the search results themselves because it does not need to load
- * the result documents in memory.  See {@link Search} for an explanation of the supported
+ * the result documents in memory; counts are computed without scoring, and are cached by the searcher
+ * (see {@link lux.search.LuxSearcher#count(Query, java.util.concurrent.ExecutorService)}).  See {@link Search} for an explanation of the supported
  * $query formats.
  * </p>
  */
@@ -46,13 +45,10 @@ public class Count extends SearchBase {
     
     @Override 
     public UnfailingIterator<Int64Value> iterate (Query query, Evaluator saxon, String[] sortCriteria, int start) throws XPathException {
-        int count = 0;
+        int count;
         long t = System.currentTimeMillis();
         try {
-            DocIdSetIterator counter = saxon.getSearcher().search(query);
-            while (counter.nextDoc() != Scorer.NO_MORE_DOCS) {
-                ++count;
-            }
+            count = saxon.getSearcher().count(query, saxon.getCompiler().getSearchExecutor());
         } catch (IOException e) {
             throw new XPathException (e);
         }
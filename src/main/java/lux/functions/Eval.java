@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import javax.xml.transform.TransformerException;
 
 import lux.Evaluator;
+import lux.cache.XQueryEvaluatorPool;
 import lux.xpath.FunCall;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.ExtensionFunctionCall;
@@ -13,9 +14,7 @@ import net.sf.saxon.om.Item;
 import net.sf.saxon.om.Sequence;
 import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XQueryEvaluator;
-import net.sf.saxon.s9api.XQueryExecutable;
 import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.SequenceType;
@@ -61,24 +60,25 @@ public class Eval extends ExtensionFunctionDefinition {
         return new EvalCall ();
     }
     
-    class EvalCall extends InterpreterCall {
+    class EvalCall extends InterpreterCall<XQueryEvaluator> {
 
-        private XQueryEvaluator evaluator;
-        
         @Override
         public Sequence call(XPathContext context, Sequence[] arguments)
                 throws XPathException {
             String query = arguments[0].head().getStringValue();
             Evaluator eval = SearchBase.getEvaluator(context);
-            XQueryCompiler xqueryCompiler = eval.getCompiler().getXQueryCompiler();
-            xqueryCompiler.setErrorListener(eval.getErrorListener());
+            XQueryEvaluatorPool pool;
+            try {
+                // compiled queries, and their evaluators, are cached by the Compiler
+                pool = eval.getCompiler().compileEval(query, eval.getErrorListener());
+            } catch (SaxonApiException e) {
+                throw new XPathException (e);
+            }
+            XQueryEvaluator evaluator = pool.checkoutEvaluator();
             try {
-                // TODO: cache compiled xslt somewhere
-                XQueryExecutable xqueryExec= xqueryCompiler.compile(query);
-                evaluator = xqueryExec.load();
                 evaluator.setErrorListener(eval.getErrorListener());
                 if (arguments.length > 1) {
-                    bindParameters(arguments[1]);
+                    bindParameters(evaluator, arguments[1]);
                 }
                 XdmValue result = evaluator.evaluate();
                 ArrayList<TransformerException> runtimeErrors = eval.getErrorListener().getErrors();
@@ -88,11 +88,13 @@ public class Eval extends ExtensionFunctionDefinition {
                 return result.getUnderlyingValue();
             } catch (SaxonApiException e) {
                 throw new XPathException (e);
+            } finally {
+                pool.returnEvaluator(evaluator);
             }
         }
 
         @Override
-        protected void setParameter(StructuredQName name, Item value) {
+        protected void setParameter(XQueryEvaluator evaluator, StructuredQName name, Item value) {
             evaluator.getUnderlyingQueryContext().setParameterValue (name.getClarkName(), value);
         }
 
@@ -1,9 +1,13 @@
 package lux.functions;
 
+import java.io.IOException;
+
 import javax.xml.stream.XMLStreamException;
 
 import lux.Evaluator;
 import lux.index.IndexConfiguration;
+import lux.search.LuxSearcher;
+import lux.search.highlight.OffsetHighlighter;
 import lux.search.highlight.TagFormatter;
 import lux.search.highlight.XmlHighlighter;
 import lux.xpath.FunCall;
@@ -31,6 +35,8 @@ import org.apache.lucene.search.Query;
  * The query may be a string or an element/document of the same types supported by lux:search.</p>
  * <p>The tag may be specified as either a QName or a string; if a string, an element 
  * is created with no namespace.</p>
+ * <p>If the index stores term offsets (see {@link IndexConfiguration#COMPUTE_OFFSETS}), documents retrieved from the index
+ * are highlighted using the offsets of the matching terms, without analyzing their text.</p>
  * @see Search
  */
 public class Highlight extends ExtensionFunctionDefinition {
@@ -70,6 +76,11 @@ public class Highlight extends ExtensionFunctionDefinition {
     
     class HighlightCall extends NamespaceAwareFunctionCall {
 
+        @Override
+        protected int getQueryArgumentIndex () {
+            return 1;
+        }
+
         @Override
         public Sequence call(XPathContext context, Sequence[] arguments)
                 throws XPathException {
@@ -81,24 +92,23 @@ public class Highlight extends ExtensionFunctionDefinition {
             Evaluator eval = SearchBase.getEvaluator(context);
             Query query = parseQuery(queryArg, eval);
             IndexConfiguration indexConfiguration = eval.getCompiler().getIndexConfiguration();
-            TagFormatter formatter;
-            if (arguments.length < 3) {
-            	formatter = new TagFormatter("B", null);
-            } else {
-            	Item tagName = arguments[2].head();
-            	if (tagName instanceof QNameValue) {
-            		QNameValue qname = (QNameValue) tagName;
-                formatter = new TagFormatter (qname.getLocalName(), qname.getNamespaceURI());
-            	} else if (tagName instanceof StringValue) {
-                  formatter = new TagFormatter(tagName.getStringValue(), null);
-            	} else {
-                  throw new XPathException ("invalid tag name for lux:highlight: got a " + tagName.getClass().getSimpleName() + " when expecting a QName or string");
-            	}
-            }
-            XmlHighlighter xmlHighlighter = new XmlHighlighter(eval.getCompiler().getProcessor(), indexConfiguration, formatter);
+            TagFormatter formatter = getTagFormatter(arguments, 2, "lux:highlight");
             try {
-                XdmNode highlighted = xmlHighlighter.highlight(query, docArg);
+                XdmNode highlighted = null;
+                LuxSearcher searcher = eval.getSearcher();
+                if (searcher != null && indexConfiguration.isOption(IndexConfiguration.COMPUTE_OFFSETS)) {
+                    OffsetHighlighter offsetHighlighter = eval.getOffsetHighlighter();
+                    offsetHighlighter.setHighlightFormatter(formatter);
+                    highlighted = offsetHighlighter.highlight(query, docArg, searcher.getIndexReader());
+                }
+                if (highlighted == null) {
+                    XmlHighlighter xmlHighlighter = eval.getXmlHighlighter();
+                    xmlHighlighter.setHighlightFormatter(formatter);
+                    highlighted = xmlHighlighter.highlight(query, docArg);
+                }
                 return highlighted.getUnderlyingNode();
+            } catch (IOException e) {
+                throw new XPathException(e);
             } catch (XMLStreamException e) {
                 throw new XPathException(e);
             } catch (SaxonApiException e) {
@@ -108,6 +118,29 @@ public class Highlight extends ExtensionFunctionDefinition {
         
     }
 
+    /**
+     * @param arguments the function arguments
+     * @param index the index of the tag argument
+     * @param functionName the name of the function, for error reporting
+     * @return a formatter that surrounds text with the tag given by the argument, or with a B tag
+     * if the argument is absent or empty.
+     * @throws XPathException if the tag argument is neither a QName nor a string
+     */
+    static TagFormatter getTagFormatter (Sequence[] arguments, int index, String functionName) throws XPathException {
+        Item tagName = arguments.length <= index ? null : arguments[index].head();
+        if (tagName == null) {
+            return new TagFormatter("B", null);
+        }
+        if (tagName instanceof QNameValue) {
+            QNameValue qname = (QNameValue) tagName;
+            return new TagFormatter (qname.getLocalName(), qname.getNamespaceURI());
+        }
+        if (tagName instanceof StringValue) {
+            return new TagFormatter(tagName.getStringValue(), null);
+        }
+        throw new XPathException ("invalid tag name for " + functionName + ": got a " + tagName.getClass().getSimpleName() + " when expecting a QName or string");
+    }
+
 }
 
 /* This Source Code Form is subject to the terms of the Mozilla Public
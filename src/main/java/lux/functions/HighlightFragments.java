@@ -0,0 +1,128 @@
+package lux.functions;
+
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import lux.Evaluator;
+import lux.search.highlight.FragmentHighlighter;
+import lux.search.highlight.TagFormatter;
+import lux.xpath.FunCall;
+import net.sf.saxon.expr.StaticProperty;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.EmptySequence;
+import net.sf.saxon.value.IntegerValue;
+import net.sf.saxon.value.SequenceExtent;
+import net.sf.saxon.value.SequenceType;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * <code>lux:highlight-fragments($node as node()?, $query as item(), $tag as item()?, $count as xs:integer?)</code>
+ * <p>returns
+ * highlighted copies of the passages of the given node that best match the query: at most $count of them (3, if no count
+ * is given; a count that is negative, or greater than the largest xs:int, is an error), in document order.  A passage is an element containing some non-whitespace text, together with its descendants;
+ * matching text is surrounded by the given $tag (or B if no tag is given), as by {@link Highlight}.  Passages that don't
+ * match the query are not returned.</p>
+ * @see FragmentHighlighter
+ */
+public class HighlightFragments extends ExtensionFunctionDefinition {
+
+    private static final int DEFAULT_COUNT = 3;
+
+    @Override
+    public SequenceType[] getArgumentTypes() {
+        return new SequenceType[] {
+                SequenceType.OPTIONAL_NODE,
+                SequenceType.SINGLE_ITEM,
+                SequenceType.OPTIONAL_ITEM,
+                SequenceType.OPTIONAL_INTEGER
+                };
+    }
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName("lux", FunCall.LUX_NAMESPACE, "highlight-fragments");
+    }
+
+    @Override
+    public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+        return SequenceType.makeSequenceType(NodeKindTest.ELEMENT, StaticProperty.ALLOWS_ZERO_OR_MORE);
+    }
+
+    @Override
+    public ExtensionFunctionCall makeCallExpression() {
+        return new HighlightFragmentsCall();
+    }
+
+    @Override
+    public int getMinimumNumberOfArguments () {
+        return 2;
+    }
+
+    @Override
+    public int getMaximumNumberOfArguments () {
+        return 4;
+    }
+
+    class HighlightFragmentsCall extends NamespaceAwareFunctionCall {
+
+        @Override
+        protected int getQueryArgumentIndex () {
+            return 1;
+        }
+
+        @Override
+        public Sequence call(XPathContext context, Sequence[] arguments)
+                throws XPathException {
+            NodeInfo node = (NodeInfo) arguments[0].head();
+            if (node == null) {
+                return EmptySequence.getInstance();
+            }
+            Evaluator eval = SearchBase.getEvaluator(context);
+            Query query = parseQuery(arguments[1].head(), eval);
+            TagFormatter formatter = Highlight.getTagFormatter(arguments, 2, "lux:highlight-fragments");
+            int count = DEFAULT_COUNT;
+            if (arguments.length > 3) {
+                Item countArg = arguments[3].head();
+                if (countArg != null) {
+                    long n = ((IntegerValue) countArg).longValue();
+                    if (n < 0 || n > Integer.MAX_VALUE) {
+                        throw new XPathException ("invalid count for lux:highlight-fragments: " + countArg.getStringValue());
+                    }
+                    count = (int) n;
+                }
+            }
+            FragmentHighlighter highlighter = eval.getFragmentHighlighter();
+            highlighter.setHighlightFormatter(formatter);
+            try {
+                List<XdmNode> fragments = highlighter.highlight(query, node, count);
+                Item[] items = new Item[fragments.size()];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = fragments.get(i).getUnderlyingNode();
+                }
+                return new SequenceExtent(items);
+            } catch (XMLStreamException e) {
+                throw new XPathException(e);
+            } catch (SaxonApiException e) {
+                throw new XPathException(e);
+            }
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
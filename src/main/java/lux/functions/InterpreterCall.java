@@ -6,9 +6,15 @@ import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.trans.XPathException;
 
-public abstract class InterpreterCall extends NamespaceAwareFunctionCall {
+/**
+ * A call to a function that evaluates a query or a transform, binding parameters to the given
+ * target: an evaluator or transformer.  Since compiled function calls may be shared across threads,
+ * the target must be passed in, and never stored in the call.
+ * @param <T> the type of object to which parameters are bound
+ */
+public abstract class InterpreterCall<T> extends NamespaceAwareFunctionCall {
 
-    protected void bindParameters (Sequence params) throws XPathException {
+    protected void bindParameters (T target, Sequence params) throws XPathException {
         Item param;
         SequenceIterator<?> paramIter = params.iterate();
         while ((param = paramIter.next()) != null) {
@@ -27,9 +33,9 @@ public abstract class InterpreterCall extends NamespaceAwareFunctionCall {
                 String nsURI = getNamespaceResolver().getURIForPrefix(prefix, false);
                 sQName = new StructuredQName(prefix, nsURI, name);
             }
-            setParameter(sQName, value);
+            setParameter(target, sQName, value);
         }
     }
     
-    protected abstract void setParameter (StructuredQName name, Item value);
+    protected abstract void setParameter (T target, StructuredQName name, Item value);
 }
\ No newline at end of file
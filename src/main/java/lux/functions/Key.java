@@ -1,6 +1,9 @@
 package lux.functions;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import lux.Evaluator;
 import lux.index.field.FieldDefinition;
@@ -15,6 +18,7 @@ import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.Sequence;
 import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.EmptySequence;
 import net.sf.saxon.value.Int64Value;
 import net.sf.saxon.value.SequenceType;
@@ -22,7 +26,16 @@ import net.sf.saxon.value.StringValue;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.schema.SchemaField;
 import org.slf4j.LoggerFactory;
@@ -42,6 +55,13 @@ import org.slf4j.LoggerFactory;
 * </p>
 * 
 * <p>
+* The values of fields that record DocValues (see {@link FieldDefinition#setDocValuesType(DocValuesType)})
+* are read from the DocValues rather than from the stored document fields.  When only the keys of search results
+* are needed, as in <code>lux:search($q)/lux:key($field-name)</code>, the optimizer retrieves them using
+* {@link Keys}, without retrieving the documents at all.
+* </p>
+* 
+* <p>
 * Order by expressions containing lux:key calls are subject to special optimization and are often able to be
 * implemented by index-optimized sorting in Lucene (for fields whose values are string-, integer-, or long-valued only).  
 * An error results if an attempt is made
@@ -93,6 +113,85 @@ public class Key extends ExtensionFunctionDefinition {
         return new KeyCall();
     }
     
+    /**
+     * Reads the values of a field from its DocValues.
+     * @param field a field with DocValues; see {@link FieldDefinition#setDocValuesType(DocValuesType)}
+     * @param reader the leaf reader containing the document
+     * @param docID the (leaf-relative) docID of the document
+     * @return the field's values for the document
+     * @throws IOException
+     */
+    static Sequence getDocValues (FieldDefinition field, AtomicReader reader, int docID) throws IOException {
+        String fieldName = field.getName();
+        BytesRef bytes;
+        switch (field.getDocValuesType()) {
+        case NUMERIC:
+            NumericDocValues numbers = reader.getNumericDocValues(fieldName);
+            Bits docsWithField = reader.getDocsWithField(fieldName);
+            if (numbers == null || docsWithField == null || ! docsWithField.get(docID)) {
+                return EmptySequence.getInstance();
+            }
+            return Int64Value.makeIntegerValue(numbers.get(docID));
+        case SORTED:
+            SortedDocValues sorted = reader.getSortedDocValues(fieldName);
+            int ord = sorted == null ? -1 : sorted.getOrd(docID);
+            if (ord < 0) {
+                return EmptySequence.getInstance();
+            }
+            bytes = new BytesRef();
+            sorted.lookupOrd(ord, bytes);
+            return new StringValue(bytes.utf8ToString());
+        case SORTED_SET:
+            SortedSetDocValues sortedSet = reader.getSortedSetDocValues(fieldName);
+            if (sortedSet == null) {
+                return EmptySequence.getInstance();
+            }
+            ArrayList<AtomicValue> values = new ArrayList<AtomicValue>();
+            sortedSet.setDocument(docID);
+            long setOrd;
+            while ((setOrd = sortedSet.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                bytes = new BytesRef();
+                sortedSet.lookupOrd(setOrd, bytes);
+                values.add(new StringValue(bytes.utf8ToString()));
+            }
+            return new AtomicArray(values.toArray(new AtomicValue[values.size()]));
+        default:
+            return EmptySequence.getInstance();
+        }
+    }
+
+    // Get field values from a SolrDocument; used for distributed queries.  In this case the document
+    // will have resulted from a query to a remote Solr instance
+    static Sequence getFieldValue (SolrDocument doc, String fieldName, FieldDefinition field) throws XPathException {
+        Collection<?> valuesCollection = doc.getFieldValues(fieldName);
+        if (valuesCollection == null) {
+            return EmptySequence.getInstance();
+        }
+        Object[] values = valuesCollection.toArray();
+        if (field == null || field.getType() == FieldDefinition.Type.STRING || field.getType() == FieldDefinition.Type.TEXT) {
+            StringValue[] valueItems = new StringValue[values.length];
+            for (int i = 0; i < values.length; i++) {
+                valueItems[i] = new StringValue (values[i].toString());
+            }
+            return new AtomicArray(valueItems);
+        }
+        if (field.getType() == FieldDefinition.Type.INT || field.getType() == FieldDefinition.Type.LONG) {
+            Int64Value[] valueItems = new Int64Value[values.length];
+            for (int i = 0; i < values.length; i++) {
+                valueItems[i] = Int64Value.makeIntegerValue(((Number)values[i]).longValue());
+            }
+            return new AtomicArray(valueItems);
+        }
+        if (field.getType() == FieldDefinition.Type.SOLR_FIELD) {
+            StringValue[] valueItems = new StringValue[values.length];
+            for (int i = 0; i < values.length; i++) {
+                valueItems[i] = StringValue.makeStringValue(values[i].toString());
+            }
+            return new AtomicArray(valueItems);
+        }
+        return EmptySequence.getInstance();
+    }
+
     class KeyCall extends ExtensionFunctionCall {
 
         @Override
@@ -117,15 +216,26 @@ public class Key extends ExtensionFunctionDefinition {
             if (field == null) {
                 LoggerFactory.getLogger(Key.class).warn("Attempt to retrieve values of non-existent field: {}", fieldName);
             }
-            else if (field.isStored() == Field.Store.NO) {
+            else if (field.isStored() == Field.Store.NO && field.getDocValuesType() == null) {
                 LoggerFactory.getLogger(Key.class).warn("Attempt to retrieve values of non-stored field: {}", fieldName);
             }
             if (doc != null) {
+                if (field != null && field.getDocValuesType() != null) {
+                    // read the values from the leaf containing the document
+                    int docID = (int) node.getDocumentRoot().getDocumentNumber();
+                    List<AtomicReaderContext> leaves = eval.getSearcher().getIndexReader().leaves();
+                    AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+                    try {
+                        return getDocValues (field, leaf.reader(), docID - leaf.docBase);
+                    } catch (IOException e) {
+                        throw new XPathException (e);
+                    }
+                }
                 return getFieldValue (doc, eval, fieldName, field);
             } else {
                 SolrDocument solrDoc = (SolrDocument) node.getDocumentRoot().getUserData(SolrDocument.class.getName());
                 if (solrDoc != null) {
-                    return getFieldValue (solrDoc, eval, fieldName, field);
+                    return Key.getFieldValue (solrDoc, fieldName, field);
                 }
             }
             return EmptySequence.getInstance();
@@ -162,38 +272,6 @@ public class Key extends ExtensionFunctionDefinition {
             return EmptySequence.getInstance();
         }
         
-        // Get field values from a SolrDocument; used for distributed queries.  In this case the document
-        // will have resulted from a query to a remote Solr instance
-        private Sequence getFieldValue (SolrDocument doc, Evaluator eval, String fieldName, FieldDefinition field) throws XPathException {
-            Collection<?> valuesCollection = doc.getFieldValues(fieldName);
-            if (valuesCollection == null) {
-                return EmptySequence.getInstance();
-            }
-            Object[] values = valuesCollection.toArray();
-            if (field == null || field.getType() == FieldDefinition.Type.STRING || field.getType() == FieldDefinition.Type.TEXT) {
-                StringValue[] valueItems = new StringValue[values.length];
-                for (int i = 0; i < values.length; i++) {
-                    valueItems[i] = new StringValue (values[i].toString());
-                }
-                return new AtomicArray(valueItems);
-            }
-            if (field.getType() == FieldDefinition.Type.INT || field.getType() == FieldDefinition.Type.LONG) {
-                Int64Value[] valueItems = new Int64Value[values.length];
-                for (int i = 0; i < values.length; i++) {
-                    valueItems[i] = Int64Value.makeIntegerValue(((Number)values[i]).longValue());
-                }
-                return new AtomicArray(valueItems);
-            }
-            if (field.getType() == FieldDefinition.Type.SOLR_FIELD) {
-                StringValue[] valueItems = new StringValue[values.length];
-                for (int i = 0; i < values.length; i++) {
-                    valueItems[i] = StringValue.makeStringValue(values[i].toString());
-                }
-                return new AtomicArray(valueItems);
-            }
-            return EmptySequence.getInstance();
-        }
-        
     }
 }
 
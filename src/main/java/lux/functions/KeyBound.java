@@ -0,0 +1,195 @@
+package lux.functions;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import lux.Evaluator;
+import lux.QueryContext;
+import lux.functions.SearchBase.QueryParser;
+import lux.index.field.FieldDefinition;
+import lux.solr.CloudSearchIterator;
+import lux.solr.SolrQueryContext;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.sort.CodepointCollator;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.EmptySequence;
+import net.sf.saxon.value.Int64Value;
+import net.sf.saxon.value.SequenceType;
+import net.sf.saxon.value.StringValue;
+
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.handler.component.ResponseBuilder;
+
+/**
+ * A base class for {@link MinKey} and {@link MaxKey}, which compute the least and greatest values of a field
+ * among the documents matching a query, by reading the field's terms from the index, rather than by
+ * retrieving the documents and their stored values.  Only string-, int- and long-valued fields are supported,
+ * since the values of other types of fields are not represented by their terms.
+ */
+public abstract class KeyBound extends ExtensionFunctionDefinition {
+
+    /**
+     * @return whether this function computes the greatest value; otherwise it computes the least.
+     */
+    protected abstract boolean isGreatest ();
+
+    @Override
+    public SequenceType[] getArgumentTypes() {
+        return new SequenceType[] { SequenceType.SINGLE_STRING, SequenceType.OPTIONAL_ITEM };
+    }
+
+    @Override
+    public int getMinimumNumberOfArguments() {
+        return 1;
+    }
+
+    @Override
+    public int getMaximumNumberOfArguments() {
+        return 2;
+    }
+
+    @Override
+    public boolean trustResultType() {
+        return true;
+    }
+
+    @Override
+    public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+        return SequenceType.OPTIONAL_ATOMIC;
+    }
+
+    @Override
+    public ExtensionFunctionCall makeCallExpression() {
+        return new KeyBoundCall();
+    }
+
+    class KeyBoundCall extends NamespaceAwareFunctionCall {
+
+        @Override
+        protected int getQueryArgumentIndex () {
+            return 1;
+        }
+
+        @Override
+        public Sequence call(XPathContext context, Sequence[] arguments) throws XPathException {
+            String fieldName = arguments[0].head().getStringValue();
+            Item queryArg = arguments.length > 1 ? arguments[1].head() : null;
+            Evaluator eval = SearchBase.getEvaluator(context);
+            FieldDefinition field = eval.getCompiler().getIndexConfiguration().getField(fieldName);
+            if (field == null) {
+                throw new XPathException ("Attempt to compute the " + (isGreatest() ? "maximum" : "minimum") +
+                        " value of undefined field: " + fieldName);
+            }
+            QueryContext queryContext = eval.getQueryContext();
+            if (queryContext instanceof SolrQueryContext) {
+                ResponseBuilder rb = ((SolrQueryContext) queryContext).getResponseBuilder() ;
+                if (rb != null && rb.shards != null) {
+                    return boundDistributed (queryArg, eval, fieldName, field);
+                }
+            }
+            Query query = queryArg == null ? new MatchAllDocsQuery() : parseQuery(queryArg, eval);
+            BytesRef prefix;
+            switch (field.getType()) {
+            case STRING:
+                prefix = new BytesRef();
+                break;
+            case INT:
+                prefix = new BytesRef(new byte[] { NumericUtils.SHIFT_START_INT });
+                break;
+            case LONG:
+                prefix = new BytesRef(new byte[] { NumericUtils.SHIFT_START_LONG });
+                break;
+            default:
+                throw new XPathException ("Attempt to compute the " + (isGreatest() ? "maximum" : "minimum") +
+                        " value of field " + fieldName + " of type " + field.getType());
+            }
+            long t = System.currentTimeMillis();
+            BytesRef term;
+            try {
+                if (isGreatest()) {
+                    term = eval.getSearcher().getGreatestTerm(query, fieldName, prefix);
+                } else {
+                    term = eval.getSearcher().getLeastTerm(query, fieldName, prefix);
+                }
+            } catch (IOException e) {
+                throw new XPathException (e);
+            }
+            eval.getQueryStats().totalTime = System.currentTimeMillis() - t;
+            if (term == null) {
+                return EmptySequence.getInstance();
+            }
+            switch (field.getType()) {
+            case INT:
+                return Int64Value.makeIntegerValue(NumericUtils.prefixCodedToInt(term));
+            case LONG:
+                return Int64Value.makeIntegerValue(NumericUtils.prefixCodedToLong(term));
+            default:
+                return new StringValue(term.utf8ToString());
+            }
+        }
+
+        /*
+         * For distributed queries, the terms are not available, so the documents are retrieved, and
+         * their values compared, just as if lux:key() had been called on each one.
+         */
+        private Sequence boundDistributed (Item queryArg, Evaluator eval, String fieldName, FieldDefinition field) throws XPathException {
+            QueryParser qp;
+            String qstr;
+            if (queryArg == null) {
+                qp = QueryParser.CLASSIC;
+                qstr = "*:*";
+            } else if (queryArg instanceof NodeInfo) {
+                qp = QueryParser.XML;
+                qstr = new XdmNode((NodeInfo)queryArg).toString();
+            } else {
+                qp = QueryParser.CLASSIC;
+                qstr = queryArg.getStringValue();
+            }
+            boolean isNumeric = field.getType() == FieldDefinition.Type.INT || field.getType() == FieldDefinition.Type.LONG;
+            CodepointCollator collator = CodepointCollator.getInstance();
+            AtomicValue bound = null;
+            CloudSearchIterator docs = new CloudSearchIterator (eval, qstr, qp, null, 1);
+            docs.setFields(fieldName);
+            NodeInfo doc;
+            while ((doc = docs.next()) != null) {
+                SolrDocument solrDoc = (SolrDocument) doc.getDocumentRoot().getUserData(SolrDocument.class.getName());
+                Collection<Object> values = solrDoc == null ? null : solrDoc.getFieldValues(fieldName);
+                if (values == null) {
+                    continue;
+                }
+                for (Object value : values) {
+                    int cmp;
+                    AtomicValue item;
+                    if (isNumeric) {
+                        item = Int64Value.makeIntegerValue(((Number) value).longValue());
+                        cmp = bound == null ? 0 : Long.valueOf(((Int64Value) item).longValue()).compareTo(((Int64Value) bound).longValue());
+                    } else {
+                        item = new StringValue(value.toString());
+                        cmp = bound == null ? 0 : collator.compareStrings(item.getStringValue(), bound.getStringValue());
+                    }
+                    if (bound == null || (isGreatest() ? cmp > 0 : cmp < 0)) {
+                        bound = item;
+                    }
+                }
+            }
+            return bound == null ? EmptySequence.getInstance() : bound;
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,316 @@
+package lux.functions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import lux.Evaluator;
+import lux.QueryContext;
+import lux.QueryStats;
+import lux.SearchIteratorBase;
+import lux.exception.LuxException;
+import lux.functions.SearchBase.QueryParser;
+import lux.index.field.FieldDefinition;
+import lux.search.DocIterator;
+import lux.search.LuxSearcher;
+import lux.search.TopDocsIterator;
+import lux.solr.CloudSearchIterator;
+import lux.solr.SolrQueryContext;
+import lux.xpath.FunCall;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.AtomicArray;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.LazySequence;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.IntegerValue;
+import net.sf.saxon.value.NumericValue;
+import net.sf.saxon.value.SequenceType;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.handler.component.ResponseBuilder;
+
+/**
+ * <code>function lux:keys($field-name as xs:string, $query as item(), $sort as xs:string*, $start as xs:integer?, $limit as xs:numeric?) as xs:anyAtomicItem*</code>
+ *
+ * <p>Returns the values of a field for each of the documents matching a query, in the order in which
+ * lux:search would return the documents, given the same query, sort criteria, start and limit.  The field must
+ * record DocValues (see {@link FieldDefinition#setDocValuesType(DocValuesType)}): its values are read from the
+ * DocValues of each segment, and the documents themselves are never retrieved.</p>
+ *
+ * <p>The optimizer generates calls to this function in place of expressions like
+ * <code>lux:search($q)/lux:key($field-name)</code>.  In a distributed query, DocValues are not available, and the
+ * documents are retrieved, and the (stored) values of the field returned, just as if lux:key() had been called on each one.</p>
+ */
+public class Keys extends ExtensionFunctionDefinition {
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName ("lux", FunCall.LUX_NAMESPACE, "keys");
+    }
+
+    @Override
+    public SequenceType[] getArgumentTypes() {
+        return new SequenceType[] {
+                SequenceType.SINGLE_STRING,
+                SequenceType.SINGLE_ITEM,
+                SequenceType.STRING_SEQUENCE,
+                SequenceType.OPTIONAL_INTEGER,
+                SequenceType.OPTIONAL_NUMERIC
+        };
+    }
+
+    @Override
+    public int getMinimumNumberOfArguments() {
+        return 2;
+    }
+
+    @Override
+    public int getMaximumNumberOfArguments() {
+        return 5;
+    }
+
+    @Override
+    public boolean trustResultType() {
+        return true;
+    }
+
+    @Override
+    public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+        return SequenceType.ATOMIC_SEQUENCE;
+    }
+
+    @Override
+    public ExtensionFunctionCall makeCallExpression() {
+        return new KeysCall();
+    }
+
+    class KeysCall extends NamespaceAwareFunctionCall {
+
+        @Override
+        protected int getQueryArgumentIndex () {
+            return 1;
+        }
+
+        @Override
+        public Sequence call(XPathContext context, Sequence[] arguments) throws XPathException {
+            String fieldName = arguments[0].head().getStringValue();
+            Item queryArg = arguments[1].head();
+            String [] sortCriteria = null;
+            if (arguments.length >= 3 && arguments[2] != null) {
+                ArrayList<String> sortCriteriaColl = new ArrayList<String>();
+                SequenceIterator<? extends Item> sortArgs = arguments[2].iterate();
+                while (sortArgs.next() != null) {
+                    sortCriteriaColl.add (sortArgs.current().getStringValue());
+                }
+                sortCriteria = sortCriteriaColl.toArray(new String[sortCriteriaColl.size()]);
+            }
+            int start = 1;
+            if (arguments.length >= 4) {
+                Item startArg = arguments[3].head();
+                if (startArg != null) {
+                    long lstart = ((IntegerValue) startArg).longValue();
+                    if (lstart > Integer.MAX_VALUE) {
+                        throw new XPathException ("integer overflow in keys $start parameter");
+                    }
+                    start = (int) lstart;
+                }
+            }
+            int limit = 0;
+            if (arguments.length >= 5) {
+                Item limitArg = arguments[4].head();
+                if (limitArg != null) {
+                    double dlimit = Math.ceil(((NumericValue) limitArg).getDoubleValue());
+                    if (dlimit > 0) {
+                        limit = (int) Math.min(dlimit, Integer.MAX_VALUE);
+                    }
+                }
+            }
+            Evaluator eval = SearchBase.getEvaluator(context);
+            FieldDefinition field = eval.getCompiler().getIndexConfiguration().getField(fieldName);
+            if (field == null) {
+                throw new XPathException ("Attempt to retrieve values of non-existent field: " + fieldName);
+            }
+            QueryContext queryContext = eval.getQueryContext();
+            if (queryContext instanceof SolrQueryContext) {
+                ResponseBuilder rb = ((SolrQueryContext) queryContext).getResponseBuilder() ;
+                if (rb != null && rb.shards != null) {
+                    return keysDistributed (queryArg, eval, fieldName, field, sortCriteria, start, limit);
+                }
+            }
+            if (field.getDocValuesType() == null) {
+                throw new XPathException ("Attempt to retrieve values of field without DocValues: " + fieldName);
+            }
+            Query query = parseQuery(queryArg, eval);
+            try {
+                return new LazySequence(new KeyIterator(eval, query, field, sortCriteria, start, limit));
+            } catch (IOException e) {
+                throw new XPathException (e);
+            }
+        }
+
+        private Sequence keysDistributed (Item queryArg, Evaluator eval, String fieldName, FieldDefinition field,
+                String [] sortCriteria, int start, int limit) throws XPathException {
+            QueryParser qp;
+            String qstr;
+            if (queryArg instanceof NodeInfo) {
+                qp = QueryParser.XML;
+                qstr = new XdmNode((NodeInfo)queryArg).toString();
+            } else {
+                qp = QueryParser.CLASSIC;
+                qstr = queryArg.getStringValue();
+            }
+            ArrayList<AtomicValue> values = new ArrayList<AtomicValue>();
+            CloudSearchIterator docs = new CloudSearchIterator (eval, qstr, qp, sortCriteria, start);
+            docs.setFields(fieldName);
+            NodeInfo doc;
+            int count = 0;
+            while ((limit <= 0 || count++ < limit) && (doc = docs.next()) != null) {
+                SolrDocument solrDoc = (SolrDocument) doc.getDocumentRoot().getUserData(SolrDocument.class.getName());
+                if (solrDoc != null) {
+                    SequenceIterator<? extends Item> docValues = Key.getFieldValue(solrDoc, fieldName, field).iterate();
+                    Item value;
+                    while ((value = docValues.next()) != null) {
+                        values.add((AtomicValue) value);
+                    }
+                }
+            }
+            return new AtomicArray(values.toArray(new AtomicValue[values.size()]));
+        }
+
+    }
+
+    /**
+     * Executes a Lucene search and provides the DocValues of a field, for each of the results, as a Saxon
+     * {@link SequenceIterator}.  Results are ordered, skipped and limited just as they are by
+     * {@link lux.SearchResultIterator}.
+     */
+    static class KeyIterator implements SequenceIterator<AtomicValue> {
+
+        private final Evaluator eval;
+        private final Query query;
+        private final FieldDefinition field;
+        private final String [] sortCriteria;
+        private final int start1;
+        private final int limit;
+        private final QueryStats stats;
+        private final DocIdSetIterator docIter;
+        private final boolean sorted;
+        private SequenceIterator<? extends Item> docValues;
+        private int docCount;
+        private AtomicValue current;
+        private int position;
+
+        KeyIterator (Evaluator eval, Query query, FieldDefinition field, String [] sortCriteria, int start1, int limit) throws IOException {
+            this.eval = eval;
+            this.query = query;
+            this.field = field;
+            this.sortCriteria = sortCriteria;
+            this.start1 = start1;
+            this.limit = limit;
+            this.stats = eval.getQueryStats();
+            LuxSearcher searcher = eval.getSearcher();
+            if (searcher == null) {
+                throw new LuxException("Attempted to search using an Evaluator that has no searcher");
+            }
+            if (stats != null) {
+                stats.query = query.toString();
+            }
+            long t = System.nanoTime();
+            Sort sort = (sortCriteria == null || sortCriteria.length == 0) ? null : SearchIteratorBase.makeSortFromCriteria(sortCriteria, eval.getCompiler().getIndexConfiguration());
+            sorted = sort != null;
+            if (sorted) {
+                docIter = searcher.search(query, sort, start1 - 1, limit);
+            } else {
+                docIter = searcher.searchOrdered(query);
+            }
+            for (int i = 1; i < start1; i++) {
+                if (docIter.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                    break;
+                }
+            }
+            if (stats != null) {
+                stats.totalTime += System.nanoTime() - t;
+            }
+        }
+
+        @Override
+        public AtomicValue next() throws XPathException {
+            try {
+                for (;;) {
+                    if (docValues != null) {
+                        Item value = docValues.next();
+                        if (value != null) {
+                            ++position;
+                            return current = (AtomicValue) value;
+                        }
+                    }
+                    if ((limit > 0 && docCount >= limit) || docIter.docID() == DocIdSetIterator.NO_MORE_DOCS ||
+                            docIter.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                        position = -1;
+                        return current = null;
+                    }
+                    ++docCount;
+                    AtomicReaderContext leaf;
+                    int docID = docIter.docID();
+                    if (sorted) {
+                        // TopDocsIterator returns absolute docIDs
+                        leaf = ((TopDocsIterator) docIter).getCurrentReaderContext();
+                        docID -= leaf.docBase;
+                    } else {
+                        // DocIterator returns leaf-relative docIDs
+                        leaf = ((DocIterator) docIter).getCurrentReaderContext();
+                    }
+                    docValues = Key.getDocValues(field, leaf.reader(), docID).iterate();
+                }
+            } catch (IOException e) {
+                throw new XPathException (e);
+            }
+        }
+
+        @Override
+        public AtomicValue current() {
+            return current;
+        }
+
+        @Override
+        public int position() {
+            return position;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public SequenceIterator<AtomicValue> getAnother() throws XPathException {
+            try {
+                return new KeyIterator (eval, query, field, sortCriteria, start1, limit);
+            } catch (IOException e) {
+                throw new XPathException (e);
+            }
+        }
+
+        @Override
+        public int getProperties() {
+            return 0;
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
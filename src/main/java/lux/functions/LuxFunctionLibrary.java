@@ -44,12 +44,16 @@ public class LuxFunctionLibrary extends IntegratedFunctionLibrary {
         processor.registerExtensionFunction(new Exists());
         processor.registerExtensionFunction(new FieldTerms());
         processor.registerExtensionFunction(new Key());
+        processor.registerExtensionFunction(new Keys());
+        processor.registerExtensionFunction(new MinKey());
+        processor.registerExtensionFunction(new MaxKey());
         processor.registerExtensionFunction(new Transform());
         processor.registerExtensionFunction(new Eval());
         processor.registerExtensionFunction(new InsertDocument());
         processor.registerExtensionFunction(new DeleteDocument());
         processor.registerExtensionFunction(new Commit());
         processor.registerExtensionFunction(new Highlight());
+        processor.registerExtensionFunction(new HighlightFragments());
     }
 
 }
@@ -0,0 +1,32 @@
+package lux.functions;
+
+import lux.xpath.FunCall;
+import net.sf.saxon.om.StructuredQName;
+
+/**
+ * <code>function lux:max-key($field-name as xs:string, $query as item()?) as xs:anyAtomicType?</code>
+ * <p>
+ * Returns the greatest value of the named field among all the documents matching the query (or among all
+ * documents, if the query is empty or omitted).  The result is the same as that of
+ * <code>max(lux:search($query)/lux:key($field-name))</code>, which the optimizer rewrites as a call to this
+ * function, but it is computed using the field's terms, without retrieving any documents.  The field must be
+ * a string-, int- or long-valued field.  See {@link Search} for an explanation of the supported $query formats.
+ * </p>
+ */
+public class MaxKey extends KeyBound {
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName("lux", FunCall.LUX_NAMESPACE, "max-key");
+    }
+
+    @Override
+    protected boolean isGreatest() {
+        return true;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
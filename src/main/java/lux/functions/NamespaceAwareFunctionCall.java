@@ -2,17 +2,21 @@ package lux.functions;
 
 import java.util.Iterator;
 
+import lux.Compiler;
 import lux.Evaluator;
+import lux.functions.SearchBase.QueryParser;
 import lux.query.parser.LuxQueryParser;
 import net.sf.saxon.dom.NodeOverNodeInfo;
 import net.sf.saxon.expr.Expression;
 import net.sf.saxon.expr.StaticContext;
+import net.sf.saxon.expr.parser.ExpressionTool;
 import net.sf.saxon.expr.instruct.SavedNamespaceContext;
 import net.sf.saxon.lib.ExtensionFunctionCall;
 import net.sf.saxon.lib.NamespaceConstant;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.NamespaceResolver;
 import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 
 import org.apache.lucene.queryparser.classic.ParseException;
@@ -20,10 +24,23 @@ import org.apache.lucene.queryparser.xml.ParserException;
 import org.apache.lucene.search.Query;
 import org.w3c.dom.Element;
 
+/**
+ * A function call that retains the namespace bindings in scope where it appears, and uses them
+ * to parse its query argument.  Parsed queries are cached by the {@link Compiler}, keyed by the query text (or
+ * the serialized query element) and the namespace bindings, since the optimizer generates the same queries
+ * over and over.  When the query argument is constant, it is parsed only once, and the parsed query is
+ * retained by the function call, and so by the compiled query in which it appears.
+ */
 public abstract class NamespaceAwareFunctionCall extends ExtensionFunctionCall {
 
     private NamespaceResolver namespaceResolver;
     
+    private String namespaceBindings;
+    
+    private boolean isQueryConstant;
+    
+    private volatile Query boundQuery;
+    
     public NamespaceResolver getNamespaceResolver() {
         return namespaceResolver;
     }
@@ -34,14 +51,85 @@ public abstract class NamespaceAwareFunctionCall extends ExtensionFunctionCall {
         if (!(namespaceResolver instanceof SavedNamespaceContext)) {
             namespaceResolver = new SavedNamespaceContext(namespaceResolver);
         }
+        // a query argument that depends on nothing (such as a literal string, or a constructed query element
+        // generated by the optimizer) yields the same query every time
+        int iquery = getQueryArgumentIndex();
+        isQueryConstant = arguments.length > iquery && arguments[iquery].getDependencies() == 0 
+                && ! ExpressionTool.refersToVariableOrFunction(arguments[iquery]);
+    }
+    
+    /**
+     * @return the position of the query among the function's arguments, if it has one
+     */
+    protected int getQueryArgumentIndex () {
+        return 0;
     }
     
     @Override
     public void copyLocalData (ExtensionFunctionCall destination) {
-        ((NamespaceAwareFunctionCall) destination).namespaceResolver = namespaceResolver;
+        NamespaceAwareFunctionCall call = (NamespaceAwareFunctionCall) destination;
+        call.namespaceResolver = namespaceResolver;
+        call.namespaceBindings = namespaceBindings;
+        call.isQueryConstant = isQueryConstant;
+        call.boundQuery = boundQuery;
+    }
+    
+    /**
+     * Parses the query argument, or returns a previously parsed query.  The returned Query may be shared,
+     * and must not be modified.
+     * @param queryArg the query: either an element, which is parsed using the Lucene XML query parser, or any
+     * other item, whose string value is parsed using the Lux query parser
+     * @param eval the evaluator, which supplies the parsers
+     * @return the parsed query
+     * @throws XPathException if the query cannot be parsed
+     */
+    protected Query parseQuery(Item queryArg, Evaluator eval) throws XPathException {
+        Query query = boundQuery;
+        if (query != null) {
+            return query;
+        }
+        Compiler compiler = eval.getCompiler();
+        QueryParser parser;
+        String queryString;
+        if (queryArg instanceof NodeInfo && NodeOverNodeInfo.wrap((NodeInfo) queryArg) instanceof Element) {
+            parser = QueryParser.XML;
+            queryString = new XdmNode((NodeInfo) queryArg).toString();
+        } else {
+            parser = QueryParser.CLASSIC;
+            queryString = queryArg.getStringValue();
+        }
+        String namespaces = getNamespaceBindings();
+        query = compiler.getParsedQuery(parser, queryString, namespaces);
+        if (query == null) {
+            query = parseQueryArg(queryArg, eval);
+            compiler.cacheParsedQuery(parser, queryString, namespaces, query);
+        }
+        if (isQueryConstant) {
+            boundQuery = query;
+        }
+        return query;
+    }
+    
+    /*
+     * @return the in-scope namespace bindings that are declared to the Lux query parser, as a string
+     */
+    private String getNamespaceBindings () {
+        if (namespaceBindings == null) {
+            StringBuilder buf = new StringBuilder();
+            Iterator<String> prefixes = namespaceResolver.iteratePrefixes();
+            while (prefixes.hasNext()) {
+                String prefix = prefixes.next();
+                String nsURI = namespaceResolver.getURIForPrefix(prefix, false);
+                if (! NamespaceConstant.isReservedInQuery(nsURI)) {
+                    buf.append(prefix).append('=').append(nsURI).append(' ');
+                }
+            }
+            namespaceBindings = buf.toString();
+        }
+        return namespaceBindings;
     }
     
-   protected Query parseQuery(Item queryArg, Evaluator eval) throws XPathException {
+    private Query parseQueryArg(Item queryArg, Evaluator eval) throws XPathException {
         if (queryArg instanceof NodeInfo) {
             NodeInfo queryNodeInfo = (NodeInfo) queryArg;
             NodeOverNodeInfo queryDocument = NodeOverNodeInfo.wrap(queryNodeInfo); 
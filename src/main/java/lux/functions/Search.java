@@ -1,6 +1,7 @@
 package lux.functions;
 
 import lux.Evaluator;
+import lux.ParallelSearchResultIterator;
 import lux.SearchResultIterator;
 import lux.query.parser.LuxQueryParser;
 import lux.query.parser.XmlQueryParser;
@@ -17,7 +18,7 @@ import net.sf.saxon.value.SequenceType;
 import org.apache.lucene.search.Query;
 
 /**
- * <code>function lux:search($query as item(), $sort as xs:string?, $start as xs:int?) as document-node()*</code>
+ * <code>function lux:search($query as item(), $sort as xs:string?, $start as xs:int?, $limit as xs:numeric?) as document-node()*</code>
  * <p>Executes a Lucene search query and returns documents.  If the query argument is an element or document 
  * node, it is parsed using the {@link XmlQueryParser}; otherwise its string value is parsed using the {@link LuxQueryParser}.
  * For details about the query syntaxes, see the parser documentation.</p>
@@ -27,6 +28,11 @@ import org.apache.lucene.search.Query;
  * </p>
  * <p>$start indiciates the (1-based) index of the first result to return. Skipped results don't need to be loaded 
  * in memory, so providing $start allows for more efficient processing of queries that require "deep paging".
+ * <p>$limit indicates the maximum number of results that will be used; no more than this number of results 
+ * are retrieved, and sorted searches only need to rank the top $start + $limit results. The optimizer supplies
+ * $start and $limit when a search is the subject of subsequence() or a positional predicate.</p>
+ * <p>If the Compiler has been configured with {@link lux.Compiler#setSearchThreads(int) search threads}, the results 
+ * of searches in document order with no $start or $limit are retrieved in parallel, using a {@link ParallelSearchResultIterator}.</p>
  */
 public class Search extends SearchBase {
     
@@ -43,7 +49,8 @@ public class Search extends SearchBase {
         return new SequenceType[] { 
                 SequenceType.SINGLE_ITEM,       // query: as element node or string
                 SequenceType.STRING_SEQUENCE,   // sort key stanza
-                SequenceType.OPTIONAL_INTEGER   // start - index of first result (1-based)
+                SequenceType.OPTIONAL_INTEGER,  // start - index of first result (1-based)
+                SequenceType.OPTIONAL_NUMERIC   // limit - maximum number of results
                 };
     }
     
@@ -68,8 +75,28 @@ public class Search extends SearchBase {
      */
     @Override
     public SequenceIterator<NodeInfo> iterate(final Query query, Evaluator eval, String[] sortCriteria, int start) throws XPathException {        
+        return iterate (query, eval, sortCriteria, start, 0);
+    }
+    
+    /**
+     * Iterate over a limited number of search results
+     *
+     * @param query the Lucene query to execute
+     * @param eval 
+     * @param limit the maximum number of results to retrieve, or 0 to retrieve all of them
+     * @return an iterator with the results of executing the query and applying the
+     * expression to its result.
+     * @throws XPathException
+     */
+    @Override
+    public SequenceIterator<NodeInfo> iterate(final Query query, Evaluator eval, String[] sortCriteria, int start, int limit) throws XPathException {        
         try {
-            return new SearchResultIterator (eval, query, sortCriteria, start);
+            // retrieving a few results in parallel would only waste effort reading ahead 
+            if (start <= 1 && limit <= 0 && SearchResultIterator.isDocumentOrder(sortCriteria) 
+                    && eval.getCompiler().getSearchExecutor() != null) {
+                return new ParallelSearchResultIterator (eval, query);
+            }
+            return new SearchResultIterator (eval, query, sortCriteria, start, limit);
         } catch (Exception e) {
             throw new XPathException (e);
         }
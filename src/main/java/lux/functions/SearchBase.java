@@ -17,6 +17,7 @@ import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.IntegerValue;
+import net.sf.saxon.value.NumericValue;
 import net.sf.saxon.value.SequenceType;
 
 import org.apache.lucene.search.Query;
@@ -38,6 +39,21 @@ public abstract class SearchBase extends ExtensionFunctionDefinition {
 
     protected abstract SequenceIterator<? extends Item> iterate(final Query query, final Evaluator eval, final String[] sortCriteria, final int start) throws XPathException;
 
+    /**
+     * Executes the query, retrieving no more than a limited number of results.  Functions that don't return
+     * search results ignore the limit; this implementation simply calls {@link #iterate(Query, Evaluator, String[], int)}.
+     * @param query the query to execute
+     * @param eval the evaluator
+     * @param sortCriteria the sort criteria, or null
+     * @param start the (1-based) position of the first result
+     * @param limit the maximum number of results that will be used, or 0 if there is no limit
+     * @return an iterator over the function's results
+     * @throws XPathException
+     */
+    protected SequenceIterator<? extends Item> iterate(final Query query, final Evaluator eval, final String[] sortCriteria, final int start, final int limit) throws XPathException {
+        return iterate (query, eval, sortCriteria, start);
+    }
+
     protected abstract SequenceIterator<? extends Item> iterateDistributed(final String query, final QueryParser queryParser, final Evaluator eval, final String[] sortCriteria, final int start) throws XPathException;
 
     @Override
@@ -71,7 +87,7 @@ public abstract class SearchBase extends ExtensionFunctionDefinition {
         @Override
         public Sequence call(XPathContext context, Sequence[] arguments) throws XPathException {
             
-            if (arguments.length == 0 || arguments.length > 3) {
+            if (arguments.length == 0 || arguments.length > 4) {
                 throw new XPathException ("wrong number of arguments for " + getFunctionQName());
             }
             Item queryArg = arguments[0].head();
@@ -100,6 +116,17 @@ public abstract class SearchBase extends ExtensionFunctionDefinition {
                     start = (int) integerValue.longValue();
                 }
             }
+            int limit = 0;
+            if (arguments.length >= 4) {
+                Item limitArg = arguments[3].head();
+                if (limitArg != null) {
+                    // round up any fractional limit, which may arise from a subsequence() length
+                    double dlimit = Math.ceil(((NumericValue) limitArg).getDoubleValue());
+                    if (dlimit > 0) {
+                        limit = (int) Math.min(dlimit, Integer.MAX_VALUE);
+                    }
+                }
+            }
             Evaluator eval = getEvaluator(context);
             QueryContext queryContext = eval.getQueryContext();
             if (queryContext instanceof SolrQueryContext) {
@@ -121,7 +148,7 @@ public abstract class SearchBase extends ExtensionFunctionDefinition {
             }
             Query query = parseQuery(queryArg, eval);
             LoggerFactory.getLogger(SearchBase.class).debug("executing query: {}", query);
-            return new LazySequence(iterate (query, eval, sortCriteria, start));
+            return new LazySequence(iterate (query, eval, sortCriteria, start, limit));
         }
 
     }
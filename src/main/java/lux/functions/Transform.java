@@ -17,7 +17,6 @@ import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmDestination;
 import net.sf.saxon.s9api.XdmNode;
-import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.trans.XPathException;
@@ -66,9 +65,7 @@ public class Transform extends ExtensionFunctionDefinition {
         return new TransformCall ();
     }
     
-    class TransformCall extends InterpreterCall {
-        
-        private XsltTransformer transformer;
+    class TransformCall extends InterpreterCall<XsltTransformer> {
 
         @Override
         public Sequence call(XPathContext context, Sequence[] arguments)
@@ -77,16 +74,14 @@ public class Transform extends ExtensionFunctionDefinition {
             NodeInfo node = (NodeInfo) arguments[1].head();
 
             Evaluator eval = SearchBase.getEvaluator(context);
-            XsltCompiler xsltCompiler = eval.getCompiler().getXsltCompiler();
-            xsltCompiler.setErrorListener(eval.getErrorListener());
             try {
-                // TODO: cache compiled xslt somewhere
-                XsltExecutable xsltexec = xsltCompiler.compile(stylesheet);
-                transformer = xsltexec.load();
+                // compiled stylesheets are cached by the Compiler
+                XsltExecutable xsltexec = eval.getCompiler().compileXslt(stylesheet, eval.getErrorListener());
+                XsltTransformer transformer = xsltexec.load();
                 transformer.setSource(node);
                 transformer.setErrorListener(eval.getErrorListener());
                 if (arguments.length > 2) {
-                    bindParameters(arguments[2]);
+                    bindParameters(transformer, arguments[2]);
                 }
                 XdmDestination dest = new XdmDestination();
                 transformer.setDestination(dest);
@@ -106,7 +101,7 @@ public class Transform extends ExtensionFunctionDefinition {
         }
 
         @Override
-        protected void setParameter(StructuredQName name, Item value) {
+        protected void setParameter(XsltTransformer transformer, StructuredQName name, Item value) {
             transformer.getUnderlyingController().setParameter(name, value);
         }
         
@@ -0,0 +1,307 @@
+package lux.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lux.exception.LuxException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.IndexWriter;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Indexes many documents concurrently, using a pool of worker threads, each with its own {@link XmlIndexer},
+ * all writing to a single (thread-safe) {@link IndexWriter}.  Documents are submitted using one of the add() methods,
+ * which queue them for indexing; when the queue is full, add() blocks until a worker becomes free, so
+ * that documents are not read faster than they can be indexed.  Call {@link #finish()} to wait for all the
+ * queued documents to be indexed; committing and closing the IndexWriter is left to the caller.</p>
+ *
+ * <p>A document that cannot be indexed (because it is not well-formed, for example) is reported to the
+ * {@link ErrorListener}, if any, and otherwise logged; it does not interrupt the indexing of other documents.
+ * Any other failure of a worker (an Error, or an exception thrown by the ErrorListener) stops the indexing:
+ * the remaining documents are discarded, and the failure is rethrown by the next call to add() or finish().</p>
+ *
+ * <p>Documents are indexed concurrently, so those submitted with the same uri are not necessarily indexed in the
+ * order they were submitted: the one that remains in the index may be any of them.</p>
+ */
+public class BulkIndexer {
+
+    /**
+     * Receives notifications of documents that could not be indexed.  Notifications are delivered on the worker threads,
+     * so implementations must be thread-safe.
+     */
+    public interface ErrorListener {
+        /**
+         * @param uri the uri of the document that could not be indexed
+         * @param e the cause of the failure
+         */
+        void error (String uri, Exception e);
+    }
+
+    private static final Task FINISHED = new Task (null, null, null);
+
+    private final IndexConfiguration config;
+    private final IndexWriter indexWriter;
+    private final BlockingQueue<Task> queue;
+    private final Thread[] workers;
+    private final AtomicLong documentCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private volatile ErrorListener errorListener;
+    private volatile Throwable failure;
+    private volatile long startTime;
+    private volatile long endTime;
+    private boolean finished;
+
+    /**
+     * Creates a bulk indexer with one worker thread per available processor.
+     * @param config the index configuration
+     * @param indexWriter the writer for the index to which documents are added
+     */
+    public BulkIndexer (IndexConfiguration config, IndexWriter indexWriter) {
+        this (config, indexWriter, Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    /**
+     * @param config the index configuration
+     * @param indexWriter the writer for the index to which documents are added
+     * @param threads the number of worker threads
+     * @param queueSize the number of documents that may wait to be indexed before add() blocks; if &lt;= 0,
+     * four times the number of threads
+     */
+    public BulkIndexer (IndexConfiguration config, IndexWriter indexWriter, int threads, int queueSize) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException ("threads must be positive: " + threads);
+        }
+        this.config = config;
+        this.indexWriter = indexWriter;
+        queue = new ArrayBlockingQueue<Task>(queueSize > 0 ? queueSize : threads * 4);
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread (new Worker(), "lux-bulk-indexer-" + (i + 1));
+            workers[i].setDaemon(true);
+        }
+    }
+
+    /**
+     * Queues a document for indexing, blocking if the queue is full.  The stream is read, and closed, by a worker thread.
+     * @param uri the uri of the document; any existing document with the same uri is replaced
+     * @param in the document, as a stream of bytes
+     * @throws InterruptedException if interrupted while waiting for a worker
+     * @throws LuxException if a worker has failed; an Error is rethrown as is
+     */
+    public void add (String uri, InputStream in) throws InterruptedException {
+        enqueue (new Task (uri, in, null));
+    }
+
+    /**
+     * Queues a document for indexing, blocking if the queue is full.  The file is read by a worker thread.
+     * @param uri the uri of the document; any existing document with the same uri is replaced
+     * @param file the file containing the document
+     * @throws InterruptedException if interrupted while waiting for a worker
+     * @throws LuxException if a worker has failed; an Error is rethrown as is
+     */
+    public void add (String uri, File file) throws InterruptedException {
+        enqueue (new Task (uri, null, file));
+    }
+
+    /**
+     * Queues all the files in a directory, and its subdirectories, whose names end with ".xml", for indexing.
+     * Each document's uri is the path of its file, relative to the directory.
+     * @param directory the directory to read
+     * @return the number of files queued
+     * @throws InterruptedException if interrupted while waiting for a worker
+     */
+    public int addDirectory (File directory) throws InterruptedException {
+        return addDirectory (directory, "/");
+    }
+
+    private int addDirectory (File directory, String path) throws InterruptedException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException (directory + " is not a directory");
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                count += addDirectory (file, path + file.getName() + '/');
+            } else if (file.getName().endsWith(".xml")) {
+                add (path + file.getName(), file);
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private synchronized void enqueue (Task task) throws InterruptedException {
+        if (finished) {
+            throw new IllegalStateException ("BulkIndexer is finished");
+        }
+        checkFailure ();
+        if (startTime == 0) {
+            startTime = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+        }
+        queue.put(task);
+    }
+
+    /**
+     * Waits for all the queued documents to be indexed, and stops the worker threads.  No more documents
+     * may be added after this is called.  If a worker failed, its failure is rethrown each time this is called.
+     * @throws InterruptedException if interrupted while waiting
+     * @throws LuxException if a worker failed; an Error is rethrown as is
+     */
+    public synchronized void finish () throws InterruptedException {
+        if (finished) {
+            checkFailure ();
+            return;
+        }
+        finished = true;
+        if (startTime == 0) {
+            // nothing was ever added
+            return;
+        }
+        for (int i = 0; i < workers.length; i++) {
+            queue.put(FINISHED);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        endTime = System.nanoTime();
+        checkFailure ();
+    }
+
+    private void checkFailure () {
+        Throwable t = failure;
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new LuxException ("bulk indexing failed", t);
+        }
+    }
+
+    /**
+     * @param errorListener receives notification of documents that could not be indexed. If null, errors are logged.
+     */
+    public void setErrorListener (ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * @return the error listener
+     */
+    public ErrorListener getErrorListener () {
+        return errorListener;
+    }
+
+    /**
+     * @return the number of documents indexed so far
+     */
+    public long getDocumentCount () {
+        return documentCount.get();
+    }
+
+    /**
+     * @return the number of documents that could not be indexed
+     */
+    public long getErrorCount () {
+        return errorCount.get();
+    }
+
+    /**
+     * @return the time elapsed since the first document was added, until {@link #finish()} returned, if it has,
+     * in milliseconds.
+     */
+    public long getElapsedTime () {
+        long start = startTime, end = endTime;
+        if (start == 0) {
+            return 0;
+        }
+        return ((end > 0 ? end : System.nanoTime()) - start) / 1000000;
+    }
+
+    /**
+     * @return the number of documents indexed per second, on average, over the elapsed time
+     */
+    public double getDocumentsPerSecond () {
+        long elapsed = getElapsedTime();
+        return elapsed == 0 ? 0 : getDocumentCount() * 1000.0 / elapsed;
+    }
+
+    private void reportError (String uri, Exception e) {
+        errorCount.incrementAndGet();
+        ErrorListener listener = errorListener;
+        if (listener != null) {
+            listener.error(uri, e);
+        } else {
+            LoggerFactory.getLogger(BulkIndexer.class).error("failed to index " + uri, e);
+        }
+    }
+
+    private static class Task {
+        final String uri;
+        final InputStream in;
+        final File file;
+
+        Task (String uri, InputStream in, File file) {
+            this.uri = uri;
+            this.in = in;
+            this.file = file;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final XmlIndexer indexer = new XmlIndexer (config);
+
+        @Override
+        public void run() {
+            for (;;) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == FINISHED) {
+                    return;
+                }
+                InputStream in = task.in;
+                try {
+                    if (failure != null) {
+                        // discard the remaining documents, so that add() never waits for a worker
+                        continue;
+                    }
+                    try {
+                        if (in == null) {
+                            in = new FileInputStream(task.file);
+                        }
+                        indexer.indexDocument(indexWriter, task.uri, in);
+                        documentCount.incrementAndGet();
+                    } catch (Exception e) {
+                        reportError (task.uri, e);
+                    }
+                } catch (Throwable t) {
+                    if (failure == null) {
+                        failure = t;
+                    }
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -71,8 +71,10 @@ public class IndexConfiguration {
      */
     public final static int INDEX_VALUES =      0x00000100;
 
-    /** enables the computation and storage of term offsets in the index. Currently there is no reason to enable
-     * this flag.  In the future term offsets may be used to accelerate highlighting. */
+    /** enables the computation and storage of term offsets in the index: the full text and element text fields
+     * store term vectors with the positions and offsets of their terms, where the offsets are character positions
+     * in the text of the document (the concatenation of its text nodes).  lux:highlight uses these to highlight
+     * documents without analyzing their text. */
     public final static int COMPUTE_OFFSETS =   0x00000200;
     
     /** causes all namespace information to be stripped from incoming documents */
@@ -82,6 +84,11 @@ public class IndexConfiguration {
      * rather than indexing unique paths and tokenizing */
     public final static int INDEX_EACH_PATH = 	0x00000800;
     
+    /** causes the text fields (lux_text, lux_elt_text and lux_att_text) to be generated from a single pass
+     * over each document, in which each text node and attribute value is analyzed only once, and the tokens
+     * buffered and replayed into each field.  This applies only when the text fields share the same analyzer. */
+    public final static int SINGLE_PASS =       0x00001000;
+
     /** mask covering all of the indexing options */
     public final static int INDEXES = INDEX_QNAMES | INDEX_PATHS | INDEX_FULLTEXT | INDEX_VALUES;
     
@@ -125,6 +132,7 @@ public class IndexConfiguration {
     private final HashMap<String, FieldDefinition> fieldsByName; // map of fields by their lucene field name
     private MultiFieldAnalyzer fieldAnalyzers;
     private final HashMap<String,String> namespaceMap;
+    private int generation;
 
     // element visibility
     private HashMap<String,ElementVisibility> eltVis;
@@ -227,6 +235,7 @@ public class IndexConfiguration {
         fieldsByName.put(field.getName(), field);
         // get query analyzer
         fieldAnalyzers.put(field.getName(), field.getQueryAnalyzer());
+        ++generation;
     }
     
     /** 
@@ -259,6 +268,7 @@ public class IndexConfiguration {
         field.setName(name);
         fieldsByName.remove(currentName);
         fieldsByName.put(name, field);
+        ++generation;
     }
 
     /**
@@ -302,6 +312,16 @@ public class IndexConfiguration {
     
     public void defineNamespaceMapping (String prefix, String namespaceURI) {
         namespaceMap.put(prefix, namespaceURI);
+        ++generation;
+    }
+    
+    /**
+     * @return a number that changes whenever a field is added or renamed, or a namespace mapping
+     * is defined.  Compiled queries depend on these, so caches of compiled queries should be keyed
+     * by generation.
+     */
+    public int getGeneration () {
+        return generation;
     }
     
     public String getUriFieldName () {
@@ -14,8 +14,11 @@ import javax.xml.stream.XMLStreamException;
 
 import lux.Compiler;
 import lux.exception.LuxException;
+import lux.index.analysis.DefaultAnalyzer;
+import lux.index.analysis.ElementVisibility;
+import lux.index.analysis.XmlTokenBuffer;
 import lux.index.field.FieldDefinition;
-import lux.xml.OffsetDocBuilder;
+import lux.xml.Offsets;
 import lux.xml.SaxonDocBuilder;
 import lux.xml.Serializer;
 import lux.xml.XmlReader;
@@ -29,6 +32,7 @@ import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
@@ -78,6 +82,8 @@ public class XmlIndexer {
     private byte[] documentBytes;
     private XdmNode xdmNode;
     private HashMap<String,XPathExecutable> xpathCache;
+    private XmlTokenBuffer tokenBuffer;
+    private Offsets offsets;
     
     /**
      * Make a new instance with default options
@@ -151,6 +157,9 @@ public class XmlIndexer {
         if (isOption (STRIP_NAMESPACES)) {
             xmlReader.setStripNamespaces(true);
         }
+        if (isOption (SINGLE_PASS) && isOption (INDEX_FULLTEXT)) {
+            tokenBuffer = new XmlTokenBuffer();
+        }
     }
     
     /**
@@ -206,16 +215,8 @@ public class XmlIndexer {
     }
     
     private void initDocBuilder () {
-        try {
-            if (isOption (COMPUTE_OFFSETS)) {
-                saxonBuilder = new OffsetDocBuilder(getProcessor());                    
-            } else {
-                saxonBuilder = new SaxonDocBuilder(getProcessor());
-            }
-            xmlReader.addHandler(saxonBuilder);
-        } catch (SaxonApiException e) {
-            throw new LuxException (e);
-        }
+        saxonBuilder = new SaxonDocBuilder(getProcessor());
+        xmlReader.addHandler(saxonBuilder);
     }
     
     /**
@@ -268,6 +269,10 @@ public class XmlIndexer {
         uri = null;
         xdmNode = null;
         documentBytes = null;
+        offsets = null;
+        if (tokenBuffer != null) {
+            tokenBuffer.clear();
+        }
     }
 
     /**
@@ -427,8 +432,8 @@ public class XmlIndexer {
     }
 
     private void addLuceneDocument(IndexWriter indexWriter) throws CorruptIndexException, IOException {
-        indexWriter.deleteDocuments(new Term(configuration.getUriFieldName(), uri));
-        indexWriter.addDocument(createLuceneDocument());
+        // replaces any existing document atomically, so that concurrent indexers may share the writer
+        indexWriter.updateDocument(new Term(configuration.getUriFieldName(), uri), createLuceneDocument());
     }
 
     /** Primarily for internal use.
@@ -438,6 +443,65 @@ public class XmlIndexer {
         return saxonBuilder;
     }
 
+    /** Primarily for internal use.
+     * @return the offsets of the text nodes within the text of the document cached from the last invocation of #index,
+     * which are used to compute the offsets of text tokens.  This will be null unless the {@link IndexConfiguration#COMPUTE_OFFSETS}
+     * option is set.
+     */
+    public Offsets getOffsets () {
+        if (offsets == null && isOption (COMPUTE_OFFSETS) && xdmNode != null) {
+            offsets = Offsets.forText(xdmNode.getUnderlyingNode());
+        }
+        return offsets;
+    }
+
+    /** Primarily for internal use.
+     * @return the tokens of the text fields of the document cached from the last invocation of #index,
+     * gathered in a single pass over the document. This will be null unless the {@link IndexConfiguration#SINGLE_PASS}
+     * option is set, and the text fields can share their tokens.
+     */
+    public XmlTokenBuffer getTokenBuffer () {
+        if (tokenBuffer == null || ! XmlTokenBuffer.isSupported(xdmNode)) {
+            return null;
+        }
+        if (! tokenBuffer.isFilled()) {
+            Analyzer analyzer = getSharedTextAnalyzer();
+            if (analyzer == null) {
+                return null;
+            }
+            try {
+                tokenBuffer.fill(xdmNode, configuration.getFieldName(FieldRole.XML_TEXT), analyzer, getOffsets(), this);
+            } catch (IOException e) {
+                throw new LuxException (e);
+            }
+        }
+        return tokenBuffer;
+    }
+
+    /*
+     * @return the analyzer shared by all the text fields, or null if they don't analyze text in the same way,
+     * or if text that is hidden from element text would not be hidden from the full text.
+     */
+    private Analyzer getSharedTextAnalyzer () {
+        if (configuration.getDefaultVisibility() == ElementVisibility.HIDDEN) {
+            return null;
+        }
+        Analyzer shared = null;
+        for (FieldRole role : new FieldRole[] { FieldRole.XML_TEXT, FieldRole.ELEMENT_TEXT, FieldRole.ATTRIBUTE_TEXT }) {
+            FieldDefinition field = configuration.getField(role);
+            if (field == null) {
+                continue;
+            }
+            Analyzer analyzer = field.getAnalyzer();
+            if (shared == null) {
+                shared = analyzer;
+            } else if (analyzer != shared && ! (analyzer instanceof DefaultAnalyzer && shared instanceof DefaultAnalyzer)) {
+                return null;
+            }
+        }
+        return shared;
+    }
+
     /** Primarily for internal use.
      * @return the {@link XmlPathMapper} used by the indexer to gather node paths.
      */
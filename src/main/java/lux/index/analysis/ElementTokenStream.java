@@ -1,8 +1,10 @@
 package lux.index.analysis;
 
+import java.util.HashMap;
+
 import lux.xml.Offsets;
+import net.sf.saxon.om.NamePool;
 import net.sf.saxon.s9api.Processor;
-import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
 
@@ -31,10 +33,25 @@ import org.apache.lucene.analysis.TokenStream;
  * </dl>
  */
 public final class ElementTokenStream extends TextOffsetTokenStream {
-    
+
+    private final NamePool namePool;
+    // element names, interned by name code, so that each is allocated only once per document
+    private final HashMap<Integer, lux.xml.QName> qnames;
+    // the visibility and name of each element enclosing the current text node, indexed by depth;
+    // a null visibility marks a depth where the enclosing node is not an element
+    private ElementVisibility[] visStack;
+    private lux.xml.QName[] qnameStack;
+
     public ElementTokenStream(String fieldName, Analyzer analyzer, TokenStream wrapped, XdmNode doc, Offsets offsets, Processor processor) {
         super(fieldName, analyzer, wrapped, doc, offsets, processor);
-        contentIter = new TextIterator(doc);
+        namePool = processor.getUnderlyingConfiguration().getNamePool();
+        qnames = new HashMap<Integer, lux.xml.QName>();
+        visStack = new ElementVisibility[16];
+        qnameStack = new lux.xml.QName[16];
+        textWalker = TinyTextWalker.create(doc.getUnderlyingNode());
+        if (textWalker == null) {
+            contentIter = new TextIterator(doc);
+        }
         setWrappedTokenStream (qnameTokenFilter);
     }
     
@@ -46,35 +63,38 @@ public final class ElementTokenStream extends TextOffsetTokenStream {
     
     private void getAncestorQNames() {
         // list the QNames of containing elements in qnameAtt filtered by the visibility rules
-        assert(curNode.getNodeKind() == XdmNodeKind.TEXT);
-        AncestorIterator nodeAncestors = new AncestorIterator(curNode);
+        int depth;
+        if (textWalker != null) {
+            // only the elements entered since the previous text node need to be looked up
+            depth = textWalker.getTextDepth();
+            for (int i = textWalker.getChangedDepth(); i < depth; i++) {
+                setAncestor (i, textWalker.getNameCode(i));
+            }
+        } else {
+            depth = getAncestors();
+        }
         qnameAtt.clearQNames();
         boolean isOpaque = false;
-        while (nodeAncestors.hasNext()) {
-            XdmNode e = (XdmNode) nodeAncestors.next();
-            assert (e.getNodeKind() == XdmNodeKind.ELEMENT);
-            int nameCode = e.getUnderlyingNode().getNameCode();
-            ElementVisibility vis = eltVis.get(nameCode);
+        for (int i = depth - 1; i >= 0; i--) {
+            ElementVisibility vis = visStack[i];
             if (vis == null) {
-                // nothing configured for this QName, use the default visibility
-                vis = defVis;
+                // not an element
+                continue;
             }
             if (vis == ElementVisibility.HIDDEN) {
                 // this node is hidden: don't index its content
                 qnameAtt.clearQNames();
                 return;
             }
-            // TODO; avoid allocating all these QNames?
-            QName qname = e.getNodeName();
             if (isOpaque) {
                 // we hit an opaque element in a previous iteration, so this element can't "see" the content
                 // unless it is a container, which sees through opaque elements
                 if (vis == ElementVisibility.CONTAINER) {
-                    qnameAtt.addQName(new lux.xml.QName(qname.getNamespaceURI(),  qname.getLocalName(), qname.getPrefix()));
+                    qnameAtt.addQName(qnameStack[i]);
                 }
             } else {
                 // all elements so far have been transparent, so tag the content with this element name
-                qnameAtt.addQName(new lux.xml.QName(qname.getNamespaceURI(),  qname.getLocalName(), qname.getPrefix()));
+                qnameAtt.addQName(qnameStack[i]);
                 if (vis == ElementVisibility.OPAQUE || vis == ElementVisibility.CONTAINER) {
                     // set the opaque flag if this element is opaque (containers are always opaque).
                     // still continue, because there might be containers
@@ -84,6 +104,63 @@ public final class ElementTokenStream extends TextOffsetTokenStream {
         }
     }
 
+    /*
+     * Records the ancestors of curNode, when the document is not a TinyTree
+     * @return the number of ancestors
+     */
+    private int getAncestors () {
+        assert(curNode.getNodeKind() == XdmNodeKind.TEXT);
+        AncestorIterator nodeAncestors = new AncestorIterator(curNode);
+        int depth = 0;
+        while (nodeAncestors.hasNext()) {
+            XdmNode e = (XdmNode) nodeAncestors.next();
+            assert (e.getNodeKind() == XdmNodeKind.ELEMENT);
+            setAncestor (depth++, e.getUnderlyingNode().getNameCode());
+        }
+        // the ancestors were listed innermost first; reverse them so they are indexed by depth
+        for (int i = 0, j = depth - 1; i < j; i++, j--) {
+            ElementVisibility vis = visStack[i];
+            visStack[i] = visStack[j];
+            visStack[j] = vis;
+            lux.xml.QName qname = qnameStack[i];
+            qnameStack[i] = qnameStack[j];
+            qnameStack[j] = qname;
+        }
+        return depth;
+    }
+
+    private void setAncestor (int depth, int nameCode) {
+        if (depth >= visStack.length) {
+            ElementVisibility[] vis = new ElementVisibility[visStack.length * 2];
+            System.arraycopy(visStack, 0, vis, 0, visStack.length);
+            visStack = vis;
+            lux.xml.QName[] names = new lux.xml.QName[qnameStack.length * 2];
+            System.arraycopy(qnameStack, 0, names, 0, qnameStack.length);
+            qnameStack = names;
+        }
+        if (nameCode == -1) {
+            visStack[depth] = null;
+            qnameStack[depth] = null;
+            return;
+        }
+        ElementVisibility vis = eltVis.get(nameCode);
+        if (vis == null) {
+            // nothing configured for this QName, use the default visibility
+            vis = defVis;
+        }
+        visStack[depth] = vis;
+        qnameStack[depth] = getQName (nameCode);
+    }
+
+    private lux.xml.QName getQName (int nameCode) {
+        lux.xml.QName qname = qnames.get(nameCode);
+        if (qname == null) {
+            qname = new lux.xml.QName(namePool.getURI(nameCode), namePool.getLocalName(nameCode), namePool.getPrefix(nameCode));
+            qnames.put(nameCode, qname);
+        }
+        return qname;
+    }
+
 }
 
 /* This Source Code Form is subject to the terms of the Mozilla Public
@@ -11,28 +11,57 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 
 /**
- * <p>This TokenStream records the offsets (character positions in the original text) of every token.
- * It records the start offset of each text node, and whenever there is a difference between the 
- * length of the serialized XML and the length of the text, it records the offset just after the 
- * discrepancy.  For example if a character entity (like &amp;amp;) occurs in the XML, this is translated
- * to "&amp;" in the text, and a character offset is recorded for the character just following the "&amp;".
- * </p>
+ * <p>This TokenStream records the offsets of every token within the text of the document (the concatenation
+ * of its text nodes), when it is given the {@link Offsets} of the document's text nodes.  Every text node is
+ * counted, including those that are not tokenized, so that the offsets of the tokens remain aligned with the
+ * text nodes.</p>
  */
 public abstract class TextOffsetTokenStream extends XmlTokenStreamBase {
 
     private int iText;
-    private int iDelta;
+    // the index of the current text node, counting every text node, including those that are not tokenized
+    private int textIndex;
     private Offsets offsets;
     
     private CharSequenceStream charSequenceStream;
 
+    /**
+     * If set, text nodes are drawn from this walker, rather than from contentIter, and curNode is not maintained.
+     */
+    protected TinyTextWalker textWalker;
+
     public TextOffsetTokenStream(String fieldName, Analyzer analyzer, TokenStream wrapped, XdmNode doc, Offsets offsets, Processor processor) {
         super(fieldName, analyzer, wrapped, processor);
         //charSequenceStream = new CharSequenceStream(null);
         //charStream = new OffsetCharFilter(charSequenceStream);
         this.offsets = offsets;
         iText = 0;
-        iDelta = 0;
+    }
+
+    @Override
+    protected boolean nextNode () {
+        if (textWalker != null) {
+            if (textWalker.next()) {
+                textIndex = iText++;
+                return true;
+            }
+            return false;
+        }
+        if (super.nextNode()) {
+            if (curNode.getNodeKind() == XdmNodeKind.TEXT) {
+                textIndex = iText++;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected CharSequence getNodeText () {
+        if (textWalker != null) {
+            return textWalker.getText();
+        }
+        return super.getNodeText();
     }
 
     @Override
@@ -41,7 +70,7 @@ public abstract class TextOffsetTokenStream extends XmlTokenStreamBase {
         OffsetCharFilter offsetCharFilter = null;
         if (offsets != null) {
             charStream = offsetCharFilter = new OffsetCharFilter(charSequenceStream);
-            updateOffsets (offsetCharFilter, text.length());
+            updateOffsets (offsetCharFilter);
         } else {
             charStream = charSequenceStream;
         }
@@ -56,28 +85,10 @@ public abstract class TextOffsetTokenStream extends XmlTokenStreamBase {
         }
     }
 
-    private void updateOffsets (OffsetCharFilter offsetCharFilter, int length) {
-        if (curNode.getNodeKind() == XdmNodeKind.TEXT && offsets != null) {
-            int location = offsets.getTextLocation(iText++); // location in the original XML
-            offsetCharFilter.addOffset(0, location);
-            // skip over any deltas preceding this text
-            int deltaLocation = offsets.getDeltaLocation(iDelta);
-            while (iDelta < offsets.getDeltaCount() && deltaLocation < location) {
-                deltaLocation = offsets.getDeltaLocation(++iDelta);
-            }
-            // apply all the deltas occurring within this text
-            while (iDelta < offsets.getDeltaCount()) {
-                // accumulate the deltas
-                location += offsets.getDelta(iDelta);
-                // calculate the offset within this text (not the original XML-encoded text) where the delta is
-                int dOff = deltaLocation - location;
-                if (dOff > length) {
-                    break;
-                }
-                // the offset at dOff is the difference between the original position and dOff
-                offsetCharFilter.addOffset(dOff, location);
-                deltaLocation = offsets.getDeltaLocation(++iDelta);
-            }
+    private void updateOffsets (OffsetCharFilter offsetCharFilter) {
+        if (offsets != null && (textWalker != null || curNode.getNodeKind() == XdmNodeKind.TEXT)) {
+            // the location of the text node within the text of the document
+            offsetCharFilter.addOffset(0, offsets.getTextLocation(textIndex));
         }
     }
 }
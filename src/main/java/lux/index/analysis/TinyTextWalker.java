@@ -0,0 +1,144 @@
+package lux.index.analysis;
+
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTextImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.tree.tiny.WhitespaceTextImpl;
+import net.sf.saxon.type.Type;
+
+/**
+ * Iterates over the descendant text nodes of a node in a TinyTree, in document order, reading the tree's
+ * arrays directly so that no node objects are created.  A stack of the name codes of the elements enclosing
+ * the current text node is maintained as the walk proceeds, indexed by depth in the tree: an element replaces
+ * the entry at its depth when it is encountered, and the ancestors of a text node at depth d are the entries at
+ * depths 0 through d-1.  Callers that derive state from the enclosing elements can use {@link #getChangedDepth()}
+ * to update only the levels of the stack that have changed since the previous text node.
+ */
+final class TinyTextWalker {
+
+    private final TinyTree tree;
+    private final byte[] kinds;
+    private final short[] depths;
+    private final int[] nameCodes;
+    private final int rootDepth;
+    private int nodeNr;
+    private int[] stack;
+    private int textDepth;
+    private int changedDepth;
+    private boolean selfText;
+
+    /**
+     * @param root the node whose descendant text nodes are to be walked
+     */
+    TinyTextWalker (TinyNodeImpl root) {
+        tree = root.getTree();
+        kinds = tree.getNodeKindArray();
+        depths = tree.getNodeDepthArray();
+        nameCodes = tree.getNameCodeArray();
+        nodeNr = root.getNodeNumber();
+        rootDepth = depths[nodeNr];
+        stack = new int[rootDepth + 16];
+        // the elements enclosing the root are ancestors of every text node
+        int depth = rootDepth;
+        for (NodeInfo node = root; node != null; node = node.getParent()) {
+            stack[depth--] = node.getNodeKind() == Type.ELEMENT ? node.getNameCode() : -1;
+        }
+        selfText = root.getNodeKind() == Type.TEXT;
+        changedDepth = 0;
+    }
+
+    /**
+     * @param node a node
+     * @return a walker over the text of the node, or null if the node is not in a TinyTree
+     */
+    static TinyTextWalker create (NodeInfo node) {
+        if (node instanceof TinyNodeImpl) {
+            return new TinyTextWalker ((TinyNodeImpl) node);
+        }
+        return null;
+    }
+
+    /**
+     * Advances to the next text node.
+     * @return false if there are no more text nodes
+     */
+    boolean next () {
+        if (selfText) {
+            // the root is itself a text node
+            selfText = false;
+            textDepth = rootDepth;
+            return true;
+        }
+        int n = tree.getNumberOfNodes();
+        while (++nodeNr < n) {
+            byte kind = kinds[nodeNr];
+            if (kind == Type.PARENT_POINTER) {
+                continue;
+            }
+            int depth = depths[nodeNr];
+            if (depth <= rootDepth || kind == Type.STOPPER) {
+                break;
+            }
+            if (kind == Type.ELEMENT) {
+                if (depth >= stack.length) {
+                    int[] grown = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, grown, 0, stack.length);
+                    stack = grown;
+                }
+                stack[depth] = nameCodes[nodeNr];
+                if (depth < changedDepth) {
+                    changedDepth = depth;
+                }
+            } else if (kind == Type.TEXT || kind == Type.WHITESPACE_TEXT) {
+                textDepth = depth;
+                return true;
+            }
+        }
+        nodeNr = n;
+        return false;
+    }
+
+    /**
+     * @return the text of the current text node
+     */
+    CharSequence getText () {
+        if (kinds[nodeNr] == Type.WHITESPACE_TEXT) {
+            return WhitespaceTextImpl.getStringValueCS(tree, nodeNr);
+        }
+        return TinyTextImpl.getStringValue(tree, nodeNr);
+    }
+
+    /**
+     * @return the depth of the current text node; its ancestors are at depths 0 through this depth - 1
+     */
+    int getTextDepth () {
+        return textDepth;
+    }
+
+    /**
+     * @param depth a depth less than the depth of the current text node
+     * @return the name code of the ancestor of the current text node at the given depth, or -1 if that ancestor
+     * is not an element (ie, it is a document node).
+     */
+    int getNameCode (int depth) {
+        return stack[depth];
+    }
+
+    /**
+     * Returns the least depth at which the ancestors of the current text node may differ from those of the previous
+     * text node, and resets it, so that the next call reports changes relative to the current text node.
+     * For the first text node, this is 0.
+     * @return the least depth at which the stack of ancestors has changed.
+     */
+    int getChangedDepth () {
+        int changed = changedDepth;
+        changedDepth = Integer.MAX_VALUE;
+        return changed;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -14,6 +14,9 @@ import org.apache.lucene.analysis.TokenStream;
  */
 public final class XmlTextTokenStream extends TextOffsetTokenStream {
 
+    // whether each node enclosing the current text node is a hidden element, indexed by depth
+    private boolean[] hidden;
+
     /**
      * Creates a TokenStream returning tokens drawn from the text content of the document.
      * @param fieldName nominally: the field to be analyzed; the analyzer receives this when the
@@ -21,9 +24,8 @@ public final class XmlTextTokenStream extends TextOffsetTokenStream {
      * @param analyzer specifies what text processing to apply to node text
      * @param wrapped a TokenStream generated by the analyzer
      * @param doc tokens will be drawn from all of the text in this document
-     * @param offsets if provided, character offsets are captured in this object
-     * In theory this can be used for faster highlighting, but until that is proven, 
-     * this should always be null.
+     * @param offsets if provided, the offsets of the document's text nodes, used to record the offsets of tokens
+     * within the text of the document, for highlighting
      * @param processor the Saxon XPath/XQuery processor that created the document doc
      */
     
@@ -33,11 +35,33 @@ public final class XmlTextTokenStream extends TextOffsetTokenStream {
             // don't add qnames to our tokens
             setWrappedTokenStream (qnameTokenFilter.getInput());
         }
-        contentIter = new TextIterator(doc);
+        hidden = new boolean[16];
+        textWalker = TinyTextWalker.create(doc.getUnderlyingNode());
+        if (textWalker == null) {
+            contentIter = new TextIterator(doc);
+        }
     }
 
     @Override
     public boolean updateNodeAtts() {
+        if (textWalker != null) {
+            // only the elements entered since the previous text node need to be looked up
+            int depth = textWalker.getTextDepth();
+            if (depth > hidden.length) {
+                boolean[] grown = new boolean[Math.max(depth, hidden.length * 2)];
+                System.arraycopy(hidden, 0, grown, 0, hidden.length);
+                hidden = grown;
+            }
+            for (int i = textWalker.getChangedDepth(); i < depth; i++) {
+                hidden[i] = eltVis.get(textWalker.getNameCode(i)) == ElementVisibility.HIDDEN;
+            }
+            for (int i = 0; i < depth; i++) {
+                if (hidden[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
         AncestorIterator nodeAncestors = new AncestorIterator(curNode);
         while (nodeAncestors.hasNext()) {
             XdmNode e = (XdmNode) nodeAncestors.next();
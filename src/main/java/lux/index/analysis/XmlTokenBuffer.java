@@ -0,0 +1,366 @@
+package lux.index.analysis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import lux.index.IndexConfiguration;
+import lux.index.XmlIndexer;
+import lux.index.attribute.QNameAttribute;
+import lux.xml.Offsets;
+import lux.xml.QName;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * <p>Collects the tokens of the text fields (lux_text, lux_elt_text and lux_att_text) of a document in a single pass,
+ * so that each text node and attribute value is analyzed only once, and then replays them as pre-analyzed
+ * TokenStreams, one per field.  This is used by {@link XmlIndexer} when the {@link IndexConfiguration#SINGLE_PASS}
+ * option is set.</p>
+ *
+ * <p>Text tokens are recorded together with the names of the elements that "see" them, according to the
+ * element visibility rules of {@link ElementTokenStream}. The text field replays the tokens as they were analyzed, and
+ * the element text field replays each token once for each of its element names, prefixed by the name, just as
+ * {@link QNameTokenFilter} does.  Attribute tokens are recorded with the name of their attribute.</p>
+ *
+ * <p>The buffers are retained and reused from one document to the next; the streams returned by
+ * {@link #getTextTokens()} etc. are only valid until the buffer is refilled.  This class is not thread-safe.</p>
+ */
+public final class XmlTokenBuffer {
+
+    // the terms of all the buffered tokens, concatenated
+    private char[] chars;
+    private int charCount;
+
+    // for each token: the end of its term in chars, its position increment, its offsets, and the range of its names in qnames
+    private int[] termEnd;
+    private int[] posIncr;
+    private int[] startOffset;
+    private int[] endOffset;
+    private int[] qnameStart;
+    private int[] qnameEnd;
+    private int tokenCount;
+    // the text tokens precede the attribute tokens
+    private int textTokenCount;
+
+    // the names associated with the tokens, and their text as used to prefix tokens; consecutive tokens
+    // from the same text node share their names.
+    private QName[] qnames;
+    private String[] qnameTerms;
+    private int qnameCount;
+
+    private final HashMap<QName, String> encodedNames;
+    private final HashMap<Integer, QName> attributeNames;
+    private boolean namespaceAware;
+    private boolean filled;
+
+    public XmlTokenBuffer () {
+        chars = new char[4096];
+        termEnd = new int[512];
+        posIncr = new int[512];
+        startOffset = new int[512];
+        endOffset = new int[512];
+        qnameStart = new int[512];
+        qnameEnd = new int[512];
+        qnames = new QName[256];
+        qnameTerms = new String[256];
+        encodedNames = new HashMap<QName, String>();
+        attributeNames = new HashMap<Integer, QName>();
+    }
+
+    /** Discards the buffered tokens. */
+    public void clear () {
+        charCount = 0;
+        tokenCount = 0;
+        textTokenCount = 0;
+        qnameCount = 0;
+        filled = false;
+    }
+
+    /**
+     * @return whether the buffer has been filled with the tokens of a document since it was last cleared
+     */
+    public boolean isFilled () {
+        return filled;
+    }
+
+    /**
+     * @param doc a document
+     * @return whether the document can be tokenized by this class: it must be stored as a TinyTree.
+     */
+    public static boolean isSupported (XdmNode doc) {
+        return doc != null && doc.getUnderlyingNode() instanceof TinyNodeImpl;
+    }
+
+    /**
+     * Analyzes the text of a document, and the values of its attributes, and records the resulting tokens.
+     * @param doc the document to tokenize; must be stored as a TinyTree
+     * @param fieldName the name of the field that is passed to the analyzer
+     * @param analyzer the analyzer shared by the text fields
+     * @param offsets if provided, the offsets of the document's text nodes, used to record the offsets of text tokens
+     * within the text of the document
+     * @param indexer supplies the element visibility configuration
+     * @throws IOException if the analyzer throws one
+     */
+    public void fill (XdmNode doc, String fieldName, Analyzer analyzer, Offsets offsets, XmlIndexer indexer) throws IOException {
+        clear ();
+        namespaceAware = indexer.getConfiguration().isOption(IndexConfiguration.NAMESPACE_AWARE);
+        fillText (doc, fieldName, analyzer, offsets, indexer);
+        textTokenCount = tokenCount;
+        fillAttributes (doc, fieldName, analyzer, indexer.getProcessor().getUnderlyingConfiguration().getNamePool());
+        filled = true;
+    }
+
+    private void fillText (XdmNode doc, String fieldName, Analyzer analyzer, Offsets offsets, XmlIndexer indexer) throws IOException {
+        TokenStream textTokens = analyzer.tokenStream(fieldName, new CharSequenceReader(""));
+        ElementTokenStream tokens = new ElementTokenStream (fieldName, analyzer, textTokens, doc, offsets, indexer.getProcessor());
+        tokens.configureElementVisibility(indexer);
+        // record the analyzed text, and the element names, rather than expanding each token with each element name
+        tokens.setWrappedTokenStream(tokens.qnameTokenFilter.getInput());
+        QNameAttribute qnameAtt = tokens.qnameAtt;
+        CharTermAttribute termAtt = tokens.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute posAtt = tokens.addAttribute(PositionIncrementAttribute.class);
+        OffsetAttribute offsetAtt = tokens.addAttribute(OffsetAttribute.class);
+        tokens.reset();
+        while (tokens.incrementToken()) {
+            addToken (termAtt, posAtt.getPositionIncrement(), offsetAtt.startOffset(), offsetAtt.endOffset());
+            addQNames (qnameAtt);
+        }
+        tokens.end();
+        tokens.close();
+    }
+
+    /*
+     * The attributes of a TinyTree are stored together, in document order, so they can be read without
+     * traversing the document.
+     */
+    private void fillAttributes (XdmNode doc, String fieldName, Analyzer analyzer, NamePool namePool) throws IOException {
+        TinyTree tree = ((TinyNodeImpl) doc.getUnderlyingNode()).getTree();
+        int[] nameCodes = tree.getAttributeNameCodeArray();
+        CharSequence[] values = tree.getAttributeValueArray();
+        int count = tree.getNumberOfAttributes();
+        for (int i = 0; i < count; i++) {
+            QName qname = getAttributeName (nameCodes[i], namePool);
+            TokenStream tokens = analyzer.tokenStream(fieldName, new CharSequenceReader(values[i]));
+            CharTermAttribute termAtt = tokens.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posAtt = tokens.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offsetAtt = tokens.addAttribute(OffsetAttribute.class);
+            tokens.reset();
+            boolean first = true;
+            while (tokens.incrementToken()) {
+                if (termAtt.length() == 0) {
+                    continue;
+                }
+                addToken (termAtt, posAtt.getPositionIncrement(), offsetAtt.startOffset(), offsetAtt.endOffset());
+                if (first) {
+                    // attribute tokens are always namespace-aware; see AttributeTokenStream
+                    addQName (qname, encode (qname, true));
+                    first = false;
+                } else {
+                    shareQNames ();
+                }
+            }
+            tokens.end();
+            tokens.close();
+        }
+    }
+
+    private QName getAttributeName (int nameCode, NamePool namePool) {
+        QName qname = attributeNames.get(nameCode);
+        if (qname == null) {
+            qname = new QName(namePool.getURI(nameCode), namePool.getLocalName(nameCode), namePool.getPrefix(nameCode));
+            attributeNames.put(nameCode, qname);
+        }
+        return qname;
+    }
+
+    private void addToken (CharTermAttribute termAtt, int increment, int start, int end) {
+        int length = termAtt.length();
+        if (charCount + length > chars.length) {
+            chars = ArrayUtil.grow(chars, charCount + length);
+        }
+        System.arraycopy(termAtt.buffer(), 0, chars, charCount, length);
+        charCount += length;
+        if (tokenCount >= termEnd.length) {
+            termEnd = ArrayUtil.grow(termEnd, tokenCount + 1);
+            posIncr = ArrayUtil.grow(posIncr, tokenCount + 1);
+            startOffset = ArrayUtil.grow(startOffset, tokenCount + 1);
+            endOffset = ArrayUtil.grow(endOffset, tokenCount + 1);
+            qnameStart = ArrayUtil.grow(qnameStart, tokenCount + 1);
+            qnameEnd = ArrayUtil.grow(qnameEnd, tokenCount + 1);
+        }
+        termEnd[tokenCount] = charCount;
+        posIncr[tokenCount] = increment;
+        startOffset[tokenCount] = start;
+        endOffset[tokenCount] = end;
+        ++tokenCount;
+    }
+
+    /*
+     * Records the names of the element text token just added.  The names are shared with the previous token if they
+     * are the same (as they are when the tokens came from the same text node).
+     */
+    private void addQNames (QNameAttribute qnameAtt) {
+        int start = qnameCount;
+        while (qnameAtt.hasNext()) {
+            ensureQNameCapacity ();
+            qnames[qnameCount++] = qnameAtt.next();
+        }
+        if (tokenCount > 1) {
+            int prevStart = qnameStart[tokenCount - 2], prevEnd = qnameEnd[tokenCount - 2];
+            if (prevEnd - prevStart == qnameCount - start) {
+                int i = 0;
+                while (i < prevEnd - prevStart && qnames[prevStart + i] == qnames[start + i]) {
+                    ++i;
+                }
+                if (i == prevEnd - prevStart) {
+                    // discard the copy
+                    qnameCount = start;
+                    shareQNames ();
+                    return;
+                }
+            }
+        }
+        for (int i = start; i < qnameCount; i++) {
+            qnameTerms[i] = encode (qnames[i], namespaceAware);
+        }
+        qnameStart[tokenCount - 1] = start;
+        qnameEnd[tokenCount - 1] = qnameCount;
+    }
+
+    private void addQName (QName qname, String term) {
+        ensureQNameCapacity ();
+        qnameStart[tokenCount - 1] = qnameCount;
+        qnames[qnameCount] = qname;
+        qnameTerms[qnameCount++] = term;
+        qnameEnd[tokenCount - 1] = qnameCount;
+    }
+
+    private void shareQNames () {
+        qnameStart[tokenCount - 1] = qnameStart[tokenCount - 2];
+        qnameEnd[tokenCount - 1] = qnameEnd[tokenCount - 2];
+    }
+
+    private void ensureQNameCapacity () {
+        if (qnameCount >= qnames.length) {
+            int size = ArrayUtil.oversize(qnameCount + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+            qnames = Arrays.copyOf(qnames, size);
+            qnameTerms = Arrays.copyOf(qnameTerms, size);
+        }
+    }
+
+    private String encode (QName qname, boolean isNamespaceAware) {
+        // see QNameTokenFilter
+        if (isNamespaceAware) {
+            String encoded = encodedNames.get(qname);
+            if (encoded == null) {
+                encoded = qname.getEncodedName();
+                encodedNames.put(qname, encoded);
+            }
+            return encoded;
+        }
+        if (qname.getPrefix().length() > 0) {
+            return qname.getPrefix() + ':' + qname.getLocalPart();
+        }
+        return qname.getLocalPart();
+    }
+
+    /**
+     * @return a stream replaying the text tokens, as analyzed
+     */
+    public TokenStream getTextTokens () {
+        return new ReplayTokenStream (0, textTokenCount, false);
+    }
+
+    /**
+     * @return a stream replaying the text tokens, each prefixed by the name of each element that sees it
+     */
+    public TokenStream getElementTokens () {
+        return new ReplayTokenStream (0, textTokenCount, true);
+    }
+
+    /**
+     * @return a stream replaying the attribute tokens, each prefixed by the name of its attribute
+     */
+    public TokenStream getAttributeTokens () {
+        return new ReplayTokenStream (textTokenCount, tokenCount, true);
+    }
+
+    /**
+     * Replays a range of the buffered tokens.
+     */
+    private class ReplayTokenStream extends TokenStream {
+
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute posAtt = addAttribute(PositionIncrementAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final int start;
+        private final int end;
+        private final boolean prefixed;
+        private int iToken;
+        private int iQName;
+
+        ReplayTokenStream (int start, int end, boolean prefixed) {
+            this.start = start;
+            this.end = end;
+            this.prefixed = prefixed;
+        }
+
+        @Override
+        public void reset () {
+            iToken = start;
+            iQName = start < end ? qnameStart[start] : 0;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (iToken >= end) {
+                return false;
+            }
+            clearAttributes();
+            int i = iToken;
+            int termStart = i > 0 ? termEnd[i - 1] : 0;
+            int termLength = termEnd[i] - termStart;
+            if (prefixed) {
+                // emit <qname>:<term>
+                String prefix = qnameTerms[iQName];
+                int prefixLength = prefix.length();
+                char[] buffer = termAtt.resizeBuffer(prefixLength + 1 + termLength);
+                prefix.getChars(0, prefixLength, buffer, 0);
+                buffer[prefixLength] = ':';
+                System.arraycopy(chars, termStart, buffer, prefixLength + 1, termLength);
+                termAtt.setLength(prefixLength + 1 + termLength);
+                // only the first of the terms emitted for a token advances the position
+                posAtt.setPositionIncrement(iQName == qnameStart[i] ? posIncr[i] : 0);
+                if (++iQName >= qnameEnd[i]) {
+                    if (++iToken < end) {
+                        iQName = qnameStart[iToken];
+                    }
+                }
+            } else {
+                termAtt.copyBuffer(chars, termStart, termLength);
+                posAtt.setPositionIncrement(posIncr[i]);
+                ++iToken;
+            }
+            offsetAtt.setOffset(startOffset[i], endOffset[i]);
+            return true;
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -12,7 +12,6 @@ import lux.index.XmlIndexer;
 import lux.index.attribute.QNameAttribute;
 
 import net.sf.saxon.om.NamePool;
-import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmSequenceIterator;
@@ -148,20 +147,38 @@ public abstract class XmlTokenStreamBase extends TokenStream {
     }
 
     private boolean advanceToTokenNode() {
-        while (contentIter.hasNext()) {
-            curNode = (XdmNode) contentIter.next();            
-            // wrap the content in a reader and hand it to the tokenizer
-            NodeInfo nodeInfo = curNode.getUnderlyingNode();
+        while (nextNode()) {
             if (! updateNodeAtts ()) {
                 continue;
             }
-            if (resetTokenizer(nodeInfo.getStringValueCS())) {
+            // wrap the content in a reader and hand it to the tokenizer
+            if (resetTokenizer(getNodeText())) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Advances to the next node with text to index.  This implementation sets curNode to the next node
+     * returned by contentIter.
+     * @return false if there are no more nodes
+     */
+    protected boolean nextNode () {
+        if (contentIter.hasNext()) {
+            curNode = contentIter.next();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the text of the current node
+     */
+    protected CharSequence getNodeText () {
+        return curNode.getUnderlyingNode().getStringValueCS();
+    }
+
     abstract boolean resetTokenizer(CharSequence cs);
 
     /** @return false if the node is hidden */
@@ -7,7 +7,7 @@ import lux.index.FieldRole;
 import lux.index.XmlIndexer;
 import lux.index.analysis.AttributeTokenStream;
 import lux.index.analysis.DefaultAnalyzer;
-import lux.xml.SaxonDocBuilder;
+import lux.index.analysis.XmlTokenBuffer;
 import net.sf.saxon.s9api.XdmNode;
 
 import org.apache.commons.io.input.CharSequenceReader;
@@ -30,13 +30,18 @@ public class AttributeTextField extends FieldDefinition {
     public Iterable<IndexableField> getFieldValues(XmlIndexer indexer) {
         XdmNode doc = indexer.getXdmNode();
         if (doc != null && doc.getUnderlyingNode() != null) {
-            SaxonDocBuilder builder = indexer.getSaxonDocBuilder();
+            XmlTokenBuffer tokenBuffer = indexer.getTokenBuffer();
+            if (tokenBuffer != null) {
+                // replay the tokens gathered in a single pass
+                return new FieldValues (this, Collections.singleton(new TextField(getName(), tokenBuffer.getAttributeTokens())));
+            }
             Analyzer analyzer = getAnalyzer();
             TokenStream textTokens=null;
             try {
                 textTokens = analyzer.tokenStream(getName(), new CharSequenceReader(""));
             } catch (IOException e) { }
-            AttributeTokenStream tokens = new AttributeTokenStream(getName(), analyzer, textTokens, doc, builder.getOffsets(), indexer.getProcessor());
+            // attribute values are not text nodes, so they have no text offsets
+            AttributeTokenStream tokens = new AttributeTokenStream(getName(), analyzer, textTokens, doc, null, indexer.getProcessor());
             return new FieldValues (this, Collections.singleton(new TextField(getName(), tokens)));
         }
         return Collections.emptySet();
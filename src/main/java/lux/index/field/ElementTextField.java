@@ -7,15 +7,14 @@ import lux.index.FieldRole;
 import lux.index.XmlIndexer;
 import lux.index.analysis.DefaultAnalyzer;
 import lux.index.analysis.ElementTokenStream;
+import lux.index.analysis.XmlTokenBuffer;
 import lux.index.analysis.XmlTokenStreamBase;
-import lux.xml.SaxonDocBuilder;
 import net.sf.saxon.s9api.XdmNode;
 
 import org.apache.commons.io.input.CharSequenceReader;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexableField;
 
 /**
@@ -31,16 +30,20 @@ public class ElementTextField extends FieldDefinition {
     public Iterable<IndexableField> getFieldValues(XmlIndexer indexer) {
         XdmNode doc = indexer.getXdmNode();
         if (doc != null && doc.getUnderlyingNode() != null) {
-            SaxonDocBuilder builder = indexer.getSaxonDocBuilder();
+            XmlTokenBuffer tokenBuffer = indexer.getTokenBuffer();
+            if (tokenBuffer != null) {
+                // replay the tokens gathered in a single pass
+                return new FieldValues (this, Collections.singleton(createTextField(indexer, tokenBuffer.getElementTokens())));
+            }
             Analyzer analyzer = getAnalyzer();
             TokenStream textTokens=null;
             try {
                 textTokens = analyzer.tokenStream(getName(), new CharSequenceReader(""));
             } catch (IOException e) { }
  
-            XmlTokenStreamBase tokens = new ElementTokenStream (getName(), analyzer, textTokens, doc, builder.getOffsets(), indexer.getProcessor());
+            XmlTokenStreamBase tokens = new ElementTokenStream (getName(), analyzer, textTokens, doc, indexer.getOffsets(), indexer.getProcessor());
             tokens.configureElementVisibility(indexer);
-            return new FieldValues (this, Collections.singleton(new TextField(getName(), tokens)));
+            return new FieldValues (this, Collections.singleton(createTextField(indexer, tokens)));
         }
         return Collections.emptySet();
     }
@@ -2,13 +2,18 @@ package lux.index.field;
 
 import lux.exception.LuxException;
 import lux.index.FieldRole;
+import lux.index.IndexConfiguration;
 import lux.index.XmlIndexer;
 import lux.query.RangePQuery;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.search.SortField;
 import org.apache.solr.schema.FieldProperties;
@@ -85,6 +90,18 @@ public abstract class FieldDefinition {
 
     private final Store isStored;
     
+    // text whose term vectors record positions and offsets, for highlighting
+    private static final FieldType TEXT_WITH_OFFSETS = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        TEXT_WITH_OFFSETS.setStoreTermVectors(true);
+        TEXT_WITH_OFFSETS.setStoreTermVectorPositions(true);
+        TEXT_WITH_OFFSETS.setStoreTermVectorOffsets(true);
+        TEXT_WITH_OFFSETS.freeze();
+    }
+
+    // the type of DocValues recorded for the field, or null if none
+    private DocValuesType docValuesType;
+    
     /**
      * Represents a Solr/Lucene field
      * @param role the role of the field; may be null if the field has no special role.
@@ -147,6 +164,20 @@ public abstract class FieldDefinition {
     }
 
 
+    /**
+     * Creates an unstored text field.  If the {@link IndexConfiguration#COMPUTE_OFFSETS} option is set, the field's
+     * term vectors are stored, with positions and offsets, so that highlighting need not re-analyze the text.
+     * @param indexer the indexer that holds the field values
+     * @param tokens the field's tokens
+     * @return the field
+     */
+    protected Field createTextField (XmlIndexer indexer, TokenStream tokens) {
+        if (indexer.getConfiguration().isOption(IndexConfiguration.COMPUTE_OFFSETS)) {
+            return new Field (getName(), tokens, TEXT_WITH_OFFSETS);
+        }
+        return new TextField (getName(), tokens);
+    }
+
     /** The Solr XmlUpdateProcessor calls this.  If it returns null, the caller should use the values
      * from getFieldValues() instead.
      * @param indexer the indexer that holds the field values
@@ -199,8 +230,49 @@ public abstract class FieldDefinition {
         return isStored;
     }
     
+    /**
+     * Declares that the field's values are also to be recorded as DocValues, so that they can be retrieved
+     * (by lux:key, and for sorting) without loading the stored document.  NUMERIC DocValues may be declared 
+     * for int and long fields, and SORTED or SORTED_SET DocValues for string fields.  NUMERIC and SORTED fields
+     * must have no more than a single value in any document.  Note that SORTED_SET values are retrieved in
+     * sorted order, without duplicates, and that documents are sorted by the greatest of their SORTED_SET values,
+     * using {@link lux.search.SortedSetComparatorSource}.
+     * @param docValuesType the type of DocValues to record, or null if none are to be recorded
+     * @throws LuxException if the type of DocValues is not supported for the type of the field 
+     */
+    public void setDocValuesType (DocValuesType docValuesType) {
+        if (docValuesType != null) {
+            boolean supported;
+            switch (docValuesType) {
+            case NUMERIC:
+                supported = type == Type.INT || type == Type.LONG;
+                break;
+            case SORTED: case SORTED_SET:
+                supported = type == Type.STRING;
+                break;
+            default:
+                supported = false;
+            }
+            if (! supported) {
+                throw new LuxException ("Unsupported combination of " + docValuesType + " DocValues and field " + name + " of type: " + type);
+            }
+        }
+        this.docValuesType = docValuesType;
+    }
+    
+    /**
+     * @return the type of DocValues recorded for the field, or null if none are recorded
+     */
+    public DocValuesType getDocValuesType () {
+        return docValuesType;
+    }
+    
+    /**
+     * @return whether the field has no more than a single value in any document.  This is true of
+     * fields with NUMERIC or SORTED DocValues.
+     */
     public boolean isSingleValued () {
-        return false;
+        return docValuesType == DocValuesType.NUMERIC || docValuesType == DocValuesType.SORTED;
     }
     
     /**
@@ -232,6 +304,9 @@ public abstract class FieldDefinition {
         if (type != Type.TOKENS) {
             options |= 0x10; // OMIT_NORMS
         }
+        if (docValuesType != null) {
+            options |= 0x8000; // DOC_VALUES
+        }
         return options;
     }
 
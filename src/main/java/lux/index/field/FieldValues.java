@@ -4,10 +4,14 @@ import java.util.Iterator;
 
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
 
 public class FieldValues implements Iterable<IndexableField> {
     
@@ -28,6 +32,8 @@ public class FieldValues implements Iterable<IndexableField> {
     
     class FieldIterator implements Iterator<IndexableField> {
         private Iterator<?> iter;
+        // the DocValues field recording the previous value, if any, which is returned next
+        private IndexableField docValue;
 
         FieldIterator (Iterator<?> iter) {
             this.iter = iter;
@@ -35,15 +41,23 @@ public class FieldValues implements Iterable<IndexableField> {
         
         @Override
         public boolean hasNext() {
-            return iter.hasNext();
+            return docValue != null || iter.hasNext();
         }
 
         @Override
         public IndexableField next() {
+            if (docValue != null) {
+                IndexableField f = docValue;
+                docValue = null;
+                return f;
+            }
             Object value = iter.next();
             if (value instanceof IndexableField) {
                 return (IndexableField) value;
             }
+            if (field.getDocValuesType() != null) {
+                docValue = createDocValuesField (value);
+            }
             switch (field.getType()) {
             case BYTES:
                 if (value instanceof byte[]) {
@@ -73,6 +87,19 @@ public class FieldValues implements Iterable<IndexableField> {
             }
         }
 
+        private IndexableField createDocValuesField (Object value) {
+            switch (field.getDocValuesType()) {
+            case NUMERIC:
+                return new NumericDocValuesField(fieldName, ((Number) value).longValue());
+            case SORTED:
+                return new SortedDocValuesField(fieldName, new BytesRef(value.toString()));
+            case SORTED_SET:
+                return new SortedSetDocValuesField(fieldName, new BytesRef(value.toString()));
+            default:
+                throw new IllegalStateException("unimplemented DocValues type: " + field.getDocValuesType());
+            }
+        }
+
         @Override
         public void remove() {
             throw new UnsupportedOperationException();
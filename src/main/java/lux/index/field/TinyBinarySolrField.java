@@ -9,7 +9,14 @@ public class TinyBinarySolrField extends TinyBinaryField {
     
     @Override
     public Iterable<?> getValues(XmlIndexer indexer) {
-        TinyBinary tinyBinary = makeTinyBinary(indexer);
+        return Collections.singleton(getBytes(makeTinyBinary(indexer)));
+    }
+
+    /**
+     * @param tinyBinary an encoded document
+     * @return the encoded bytes, in an array of exactly the encoded length
+     */
+    public static byte[] getBytes (TinyBinary tinyBinary) {
         byte[] bytes = tinyBinary.getBytes();
         if (bytes.length > tinyBinary.length()) {
             // copy the bytes - SolrJ doesn't have a way to deal with a reference
@@ -17,6 +24,6 @@ public class TinyBinarySolrField extends TinyBinaryField {
             bytes = new byte[tinyBinary.length()];
             System.arraycopy(tinyBinary.getBytes(), 0, bytes, 0, tinyBinary.length());
         }
-        return Collections.singleton(bytes);
+        return bytes;
     }
 }
@@ -7,14 +7,13 @@ import lux.index.FieldRole;
 import lux.index.XmlIndexer;
 import lux.index.analysis.DefaultAnalyzer;
 import lux.index.analysis.XmlTextTokenStream;
-import lux.xml.SaxonDocBuilder;
+import lux.index.analysis.XmlTokenBuffer;
 import net.sf.saxon.s9api.XdmNode;
 
 import org.apache.commons.io.input.CharSequenceReader;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexableField;
 
 public class XmlTextField extends FieldDefinition {
@@ -32,17 +31,22 @@ public class XmlTextField extends FieldDefinition {
     public Iterable<IndexableField> getFieldValues(XmlIndexer indexer) {
         XdmNode doc = indexer.getXdmNode();
         if (doc != null && doc.getUnderlyingNode() != null) {
-            SaxonDocBuilder builder = indexer.getSaxonDocBuilder();
+            // other instances of this class may analyze text differently
+            XmlTokenBuffer tokenBuffer = this == indexer.getConfiguration().getField(FieldRole.XML_TEXT) ? indexer.getTokenBuffer() : null;
+            if (tokenBuffer != null) {
+                // replay the tokens gathered in a single pass
+                return new FieldValues (this, Collections.singleton(createTextField(indexer, tokenBuffer.getTextTokens())));
+            }
             String fieldName = getName();
             Analyzer analyzer = getAnalyzer();
             TokenStream textTokens=null;
             try {
                 textTokens = analyzer.tokenStream(fieldName, new CharSequenceReader(""));
             } catch (IOException e) { }
-            XmlTextTokenStream tokens = new XmlTextTokenStream (fieldName, analyzer, textTokens, doc, builder.getOffsets(), indexer.getProcessor());
+            XmlTextTokenStream tokens = new XmlTextTokenStream (fieldName, analyzer, textTokens, doc, indexer.getOffsets(), indexer.getProcessor());
             
             tokens.configureElementVisibility(indexer);
-            return new FieldValues (this, Collections.singleton(new TextField(fieldName, tokens)));
+            return new FieldValues (this, Collections.singleton(createTextField(indexer, tokens)));
         }
         return Collections.emptySet();
     }
@@ -1,15 +1,33 @@
 package lux.search;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import lux.cache.LRUCache;
+import lux.exception.LuxException;
+
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
 
 public class LuxSearcher extends IndexSearcher {
 
@@ -17,6 +35,14 @@ public class LuxSearcher extends IndexSearcher {
   private final IndexReader indexReader;
   
   private final IndexSearcher wrappedSearcher;
+  
+  // query counts, cached for each index reader, and shared by all the searchers of that reader, since 
+  // (in Solr, say) a new searcher may be created for each request.  The keys are the readers' 
+  // combined core and deletes keys; the caches are discarded once their readers are no longer in use.
+  private static final Map<Object, LRUCache<Query, Integer>> countCaches = new WeakHashMap<Object, LRUCache<Query,Integer>>();
+  
+  // the maximum number of query counts to cache for each reader
+  private static final int COUNT_CACHE_SIZE = 256;
     
   /**
    * creates a Lux searcher that searches the given {@link Directory}.
@@ -70,18 +96,48 @@ public class LuxSearcher extends IndexSearcher {
   public TopFieldDocs search (Weight weight, int size, Sort sort, boolean b1, boolean b2) throws IOException {
       return super.search(weight,  size, sort, b1, b2);
   }
+
+  @Override
+  public TopFieldDocs search (Weight weight, FieldDoc after, int size, Sort sort, boolean fillFields, boolean doDocScores, boolean doMaxScore) throws IOException {
+      return super.search(weight, after, size, sort, fillFields, doDocScores, doMaxScore);
+  }
   
   /**
    * @param query the Lucene query
    * @param sort the sort criteria
    * @return the results of the query as a Lucene DocIdSetIterator, ordered using the sort criterion. 
-   * Results are returned in batches, so deep paging is possible, but expensive.
+   * Results are returned in batches; each batch resumes where the previous one left off.
    * @throws IOException
    */
   public TopDocsIterator search (Query query, Sort sort) throws IOException {
       return new TopDocsIterator (this, query, sort);
   }
 
+  /**
+   * @param query the Lucene query
+   * @param sort the sort criteria
+   * @param start the (0-based) position of the first result that will be used: the results preceding it are
+   * retrieved in a single batch, so they can be skipped efficiently.
+   * @return the results of the query as a Lucene DocIdSetIterator, ordered using the sort criterion. 
+   * @throws IOException
+   */
+  public TopDocsIterator search (Query query, Sort sort, int start) throws IOException {
+      return new TopDocsIterator (this, query, sort, start);
+  }
+
+  /**
+   * @param query the Lucene query
+   * @param sort the sort criteria
+   * @param start the (0-based) position of the first result that will be used
+   * @param limit the maximum number of results that will be used, following start, or 0 if there is no limit.
+   * When there is a limit, only the top start + limit results are ranked, and no more are returned.
+   * @return the results of the query as a Lucene DocIdSetIterator, ordered using the sort criterion. 
+   * @throws IOException
+   */
+  public TopDocsIterator search (Query query, Sort sort, int start, int limit) throws IOException {
+      return new TopDocsIterator (this, query, sort, start, limit);
+  }
+
   /**
    * @param query the Lucene query
    * @return the results of the query as a Lucene DocIdSetIterator in docID order
@@ -91,6 +147,143 @@ public class LuxSearcher extends IndexSearcher {
       return new DocIterator (this, query, true);
   }
   
+  /**
+   * Counts the documents matching a query, without scoring them or loading them.
+   * @param query the Lucene query
+   * @return the number of (live) documents matching the query
+   * @throws IOException
+   */
+  public int count (Query query) throws IOException {
+      return count (query, null);
+  }
+
+  /**
+   * Counts the documents matching a query, without scoring them or loading them.  Since an index reader's view of the
+   * index never changes, counts are cached for each reader, so repeated counts of the same query are free.  Otherwise, counting
+   * {@link MatchAllDocsQuery} uses the reader's numDocs(), and counting a {@link TermQuery} uses the term's docFreq
+   * in those segments that have no deletions.  Other queries are counted by iterating over their matches in each
+   * segment, using the executor (if one is provided) to count multiple segments concurrently.
+   * @param query the Lucene query
+   * @param executor an executor used to count each segment in parallel, or null to count on the calling thread
+   * @return the number of (live) documents matching the query
+   * @throws IOException
+   */
+  public int count (Query query, ExecutorService executor) throws IOException {
+      LRUCache<Query, Integer> countCache = getCountCache();
+      Integer count = countCache.get(query);
+      if (count == null) {
+          count = countUncached(query, executor);
+          // queries are mutable, so the cache keeps its own copy
+          countCache.put(query.clone(), count);
+      }
+      return count;
+  }
+
+  private LRUCache<Query, Integer> getCountCache () {
+      Object readerKey = getIndexReader().getCombinedCoreAndDeletesKey();
+      synchronized (countCaches) {
+          LRUCache<Query, Integer> countCache = countCaches.get(readerKey);
+          if (countCache == null) {
+              countCache = new LRUCache<Query, Integer>(COUNT_CACHE_SIZE);
+              countCaches.put(readerKey, countCache);
+          }
+          return countCache;
+      }
+  }
+
+  private int countUncached (Query query, ExecutorService executor) throws IOException {
+      if (query instanceof MatchAllDocsQuery) {
+          return getIndexReader().numDocs();
+      }
+      List<AtomicReaderContext> leaves = getIndexReader().leaves();
+      Weight weight = null;
+      int count = 0;
+      ArrayList<Future<Integer>> futures = null;
+      for (AtomicReaderContext leaf : leaves) {
+          if (query instanceof TermQuery && ! leaf.reader().hasDeletions()) {
+              count += leaf.reader().docFreq(((TermQuery) query).getTerm());
+              continue;
+          }
+          if (weight == null) {
+              weight = createNormalizedWeight(query);
+          }
+          if (executor == null || leaves.size() == 1) {
+              count += countLeaf (weight, leaf);
+          } else {
+              if (futures == null) {
+                  futures = new ArrayList<Future<Integer>>();
+              }
+              final Weight w = weight;
+              final AtomicReaderContext l = leaf;
+              futures.add(executor.submit(new Callable<Integer>() {
+                  @Override
+                  public Integer call() throws IOException {
+                      return countLeaf (w, l);
+                  }
+              }));
+          }
+      }
+      if (futures != null) {
+          try {
+              for (Future<Integer> future : futures) {
+                  count += future.get();
+              }
+          } catch (InterruptedException e) {
+              throw new LuxException (e);
+          } catch (ExecutionException e) {
+              if (e.getCause() instanceof IOException) {
+                  throw (IOException) e.getCause();
+              }
+              throw new LuxException (e.getCause());
+          }
+      }
+      return count;
+  }
+  
+  private int countLeaf (Weight weight, AtomicReaderContext leaf) throws IOException {
+      TotalHitCountCollector collector = new TotalHitCountCollector();
+      search (Collections.singletonList(leaf), weight, collector);
+      return collector.getTotalHits();
+  }
+  
+  /**
+   * Finds the least term of a field that occurs in any document matching a query, without loading any documents.
+   * @param query the Lucene query
+   * @param field the field whose terms are searched
+   * @param prefix only terms beginning with this prefix are considered
+   * @return the least matching term, or null if there is none
+   * @throws IOException
+   * @see TermBounds
+   */
+  public BytesRef getLeastTerm (Query query, String field, BytesRef prefix) throws IOException {
+      return getBound (query, field, prefix, false);
+  }
+
+  /**
+   * Finds the greatest term of a field that occurs in any document matching a query, without loading any documents.
+   * @param query the Lucene query
+   * @param field the field whose terms are searched
+   * @param prefix only terms beginning with this prefix are considered
+   * @return the greatest matching term, or null if there is none
+   * @throws IOException
+   * @see TermBounds
+   */
+  public BytesRef getGreatestTerm (Query query, String field, BytesRef prefix) throws IOException {
+      return getBound (query, field, prefix, true);
+  }
+
+  private BytesRef getBound (Query query, String field, BytesRef prefix, boolean greatest) throws IOException {
+      TermBounds bounds = new TermBounds (this, query, field, prefix);
+      BytesRef bound = null;
+      for (AtomicReaderContext leaf : getIndexReader().leaves()) {
+          BytesRef leafBound = bounds.getBound(leaf, greatest);
+          if (leafBound != null && (bound == null || (leafBound.compareTo(bound) > 0) == greatest)) {
+              bound = leafBound;
+          }
+      }
+      return bound;
+  }
+
   /**
    * @return the searcher from which this was created, or null.
    */
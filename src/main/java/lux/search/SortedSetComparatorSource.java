@@ -0,0 +1,147 @@
+package lux.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Sorts by the values of a string field that records SORTED_SET DocValues.  Lucene's FieldCache can't
+ * sort such a field, since it refuses to un-invert a field that has DocValues of another type.  Each document
+ * is ordered by its greatest value, as it would be by the FieldCache were the field indexed only.
+ * Since the ordinals of different segments are unrelated, values are compared as bytes.
+ */
+public class SortedSetComparatorSource extends FieldComparatorSource {
+
+    private final boolean missingGreatest;
+
+    /**
+     * @param missingGreatest whether documents with no value are greater than all others; otherwise they
+     * are less.
+     */
+    public SortedSetComparatorSource (boolean missingGreatest) {
+        this.missingGreatest = missingGreatest;
+    }
+
+    @Override
+    public FieldComparator<BytesRef> newComparator(String fieldname, int numHits, int sortPos, boolean reversed)
+            throws IOException {
+        return new SortedSetComparator(numHits, fieldname, missingGreatest);
+    }
+
+    /**
+     * @return whether documents with no value are greater than all others
+     */
+    public boolean isMissingGreatest () {
+        return missingGreatest;
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        return o instanceof SortedSetComparatorSource && ((SortedSetComparatorSource) o).missingGreatest == missingGreatest;
+    }
+
+    @Override
+    public int hashCode () {
+        return missingGreatest ? 1 : 0;
+    }
+
+    static class SortedSetComparator extends FieldComparator<BytesRef> {
+
+        private final BytesRef[] values;
+        private final String field;
+        private final boolean missingGreatest;
+        private final BytesRef scratch = new BytesRef();
+        private SortedSetDocValues docValues;
+        private BytesRef bottom;
+
+        SortedSetComparator (int numHits, String field, boolean missingGreatest) {
+            values = new BytesRef[numHits];
+            this.field = field;
+            this.missingGreatest = missingGreatest;
+        }
+
+        // the greatest value of the document, in scratch, or null if it has none
+        private BytesRef getValue (int doc) {
+            if (docValues == null) {
+                return null;
+            }
+            docValues.setDocument(doc);
+            long ord, last = -1;
+            while ((ord = docValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                last = ord;
+            }
+            if (last < 0) {
+                return null;
+            }
+            docValues.lookupOrd(last, scratch);
+            return scratch;
+        }
+
+        @Override
+        public int compare(int slot1, int slot2) {
+            return compareValues(values[slot1], values[slot2]);
+        }
+
+        @Override
+        public void setBottom(int slot) {
+            bottom = values[slot];
+        }
+
+        @Override
+        public int compareBottom(int doc) throws IOException {
+            return compareValues(bottom, getValue(doc));
+        }
+
+        @Override
+        public void copy(int slot, int doc) throws IOException {
+            BytesRef value = getValue(doc);
+            if (value == null) {
+                values[slot] = null;
+            } else if (values[slot] == null) {
+                values[slot] = BytesRef.deepCopyOf(value);
+            } else {
+                values[slot].copyBytes(value);
+            }
+        }
+
+        @Override
+        public FieldComparator<BytesRef> setNextReader(AtomicReaderContext context) throws IOException {
+            docValues = context.reader().getSortedSetDocValues(field);
+            return this;
+        }
+
+        @Override
+        public BytesRef value(int slot) {
+            return values[slot];
+        }
+
+        @Override
+        public int compareValues(BytesRef first, BytesRef second) {
+            if (first == null) {
+                if (second == null) {
+                    return 0;
+                }
+                return missingGreatest ? 1 : -1;
+            }
+            if (second == null) {
+                return missingGreatest ? -1 : 1;
+            }
+            return first.compareTo(second);
+        }
+
+        @Override
+        public int compareDocToValue(int doc, BytesRef value) throws IOException {
+            return compareValues(getValue(doc), value);
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,183 @@
+package lux.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TermsEnum.SeekStatus;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Finds the least or greatest term of a field that occurs in some document matching a query, using only
+ * the term dictionary and postings, without retrieving any documents.  Each segment is searched separately.
+ * The query's matches in a segment are collected into a bit set; then the segment's terms are visited from
+ * the appropriate end, and the first term whose postings intersect the matches is the segment's bound.
+ *
+ * <p>Lucene's TermsEnum only iterates forwards, so the greatest term (and each of its predecessors, when the
+ * query doesn't match its documents) is located by a binary search over the term space, one byte at a time,
+ * using {@link TermsEnum#seekCeil(BytesRef)}.  This costs about nine seeks per byte of the term.</p>
+ *
+ * <p>Only terms beginning with a given prefix are considered: for numeric fields, the prefix selects the full
+ * precision terms, which are the only ones that represent actual field values.</p>
+ */
+class TermBounds {
+
+    private final Weight weight;
+    private final String field;
+    private final BytesRef prefix;
+
+    /**
+     * @param searcher the searcher
+     * @param query the query; the terms of all (live) documents are considered if this is a {@link MatchAllDocsQuery}.
+     * @param field the field whose terms are to be searched
+     * @param prefix only terms beginning with this prefix are considered
+     * @throws IOException
+     */
+    TermBounds (LuxSearcher searcher, Query query, String field, BytesRef prefix) throws IOException {
+        weight = (query instanceof MatchAllDocsQuery) ? null : searcher.createNormalizedWeight(query);
+        this.field = field;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param leaf a segment
+     * @param greatest whether to find the greatest term; otherwise the least term is found.
+     * @return the least (or greatest) term in the segment that occurs in a document matching the query, or
+     * null if there is none.  The returned term is a copy, and may be retained by the caller.
+     * @throws IOException
+     */
+    BytesRef getBound (AtomicReaderContext leaf, boolean greatest) throws IOException {
+        Terms terms = leaf.reader().terms(field);
+        if (terms == null) {
+            return null;
+        }
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        FixedBitSet matches = null;
+        if (weight != null) {
+            Scorer scorer = weight.scorer(leaf, true, false, liveDocs);
+            if (scorer == null) {
+                return null;
+            }
+            matches = new FixedBitSet(leaf.reader().maxDoc());
+            int doc;
+            while ((doc = scorer.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                matches.set(doc);
+            }
+        }
+        TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docs = null;
+        if (! greatest) {
+            if (termsEnum.seekCeil(prefix) == SeekStatus.END) {
+                return null;
+            }
+            BytesRef term = termsEnum.term();
+            while (term != null && StringHelper.startsWith(term, prefix)) {
+                docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+                if (intersects (docs, matches)) {
+                    return BytesRef.deepCopyOf(term);
+                }
+                term = termsEnum.next();
+            }
+            return null;
+        }
+        BytesRef upper = null;
+        for (;;) {
+            BytesRef term = floor (termsEnum, upper);
+            if (term == null) {
+                return null;
+            }
+            termsEnum.seekExact(term);
+            docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+            if (intersects (docs, matches)) {
+                return term;
+            }
+            upper = term;
+        }
+    }
+
+    /*
+     * @return whether any of the documents are among the matches; all the documents match if matches is null.
+     */
+    private static boolean intersects (DocsEnum docs, FixedBitSet matches) throws IOException {
+        int doc = docs.nextDoc();
+        if (matches == null) {
+            return doc != DocIdSetIterator.NO_MORE_DOCS;
+        }
+        while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+            if (matches.get(doc)) {
+                return true;
+            }
+            if (doc + 1 >= matches.length()) {
+                return false;
+            }
+            int next = matches.nextSetBit(doc + 1);
+            if (next < 0) {
+                return false;
+            }
+            doc = docs.advance(next);
+        }
+        return false;
+    }
+
+    /*
+     * Finds the greatest term beginning with the prefix that is less than upper (or the greatest such term,
+     * if upper is null), by extending the prefix one byte at a time.  At each step, the next byte is the greatest
+     * one for which some term, beginning with the extended prefix, lies below the upper bound.
+     * @return the term, or null if there is none.
+     */
+    private BytesRef floor (TermsEnum termsEnum, BytesRef upper) throws IOException {
+        BytesRef term = BytesRef.deepCopyOf(prefix);
+        if (! hasTermBelow (termsEnum, term, term, upper)) {
+            return null;
+        }
+        for (;;) {
+            BytesRef extended = new BytesRef(term.length + 1);
+            System.arraycopy(term.bytes, term.offset, extended.bytes, 0, term.length);
+            extended.length = term.length + 1;
+            int last = term.length;
+            // extended now has a trailing zero byte: is there any longer term?
+            if (! hasTermBelow (termsEnum, extended, term, upper)) {
+                // term itself must exist
+                return term;
+            }
+            int lo = 0, hi = 255;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                extended.bytes[last] = (byte) mid;
+                if (hasTermBelow (termsEnum, extended, term, upper)) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            extended.bytes[last] = (byte) lo;
+            term = extended;
+        }
+    }
+
+    /*
+     * @return whether there is a term >= from, that begins with prefix, and that is less than upper (if upper is not null)
+     */
+    private static boolean hasTermBelow (TermsEnum termsEnum, BytesRef from, BytesRef prefix, BytesRef upper) throws IOException {
+        if (termsEnum.seekCeil(from) == SeekStatus.END) {
+            return false;
+        }
+        BytesRef term = termsEnum.term();
+        return StringHelper.startsWith(term, prefix) && (upper == null || term.compareTo(upper) < 0);
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -1,32 +1,76 @@
 package lux.search;
 
 import java.io.IOException;
+import java.util.List;
 
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
 
 /**
- * Used to return results that are sorted by field value
+ * Used to return results that are sorted by field value.  The leaf (segment) containing each result is made
+ * available, so that documents can be retrieved directly from the leaf reader.  Results are retrieved in batches of a fixed size;
+ * each batch after the first resumes the search from the last result of the previous one (search-after), so
+ * paging through N results costs N/BATCH_SIZE searches, each maintaining a priority queue of BATCH_SIZE hits.
+ * The first batch is made large enough to cover the results preceding a given starting position,
+ * so that skipping over them requires only a single search.  When the number of results needed is known
+ * in advance, the first batch holds exactly those results, and the iteration ends with them.
  */
-class TopDocsIterator extends DocIdSetIterator {
+public class TopDocsIterator extends DocIdSetIterator {
 
     private final LuxSearcher searcher;
 
-    private final Query query;
+    private final Weight weight;
     private final Sort sort;
     private int docID = -1;
     private int iDocNext = 0;
-    // private int iDocBase = 0;
+    // the number of results returned from previous batches
+    private int iDocBase = 0;
     private TopDocs topDocs;
-    private static final int BATCH_SIZE = 200;
+    private final List<AtomicReaderContext> leaves;
+    // the leaf ordinal of each result in the current batch
+    private int[] leafOrds;
+    // the number of results after which the iteration ends
+    private final int maxResults;
+    static final int BATCH_SIZE = 200;
 
-    TopDocsIterator(LuxSearcher luxSearcher, Query query, Sort sort) throws IOException {
+    /**
+     * @param luxSearcher the searcher
+     * @param query the query whose results will be iterated
+     * @param sort the order in which results are returned
+     * @param start the (0-based) position of the first result the caller expects to use; the results
+     * preceding this are retrieved in the first batch, in addition to a full batch of BATCH_SIZE results.
+     * @param limit the maximum number of results following start that the caller will use, or 0 if there is no limit.
+     * When there is a limit, the first batch is made just large enough to include the last of these results.
+     * @throws IOException
+     */
+    TopDocsIterator(LuxSearcher luxSearcher, Query query, Sort sort, int start, int limit) throws IOException {
         this.searcher = luxSearcher;
-        this.query = query;
         this.sort = sort;
-        topDocs = searcher.search(searcher.createNormalizedWeight(query), BATCH_SIZE, sort, false, false);
+        weight = searcher.createNormalizedWeight(query);
+        leaves = searcher.getIndexReader().leaves();
+        int firstBatchSize = (limit > 0 ? limit : BATCH_SIZE) + Math.max(0, start);
+        if (firstBatchSize < 0) {
+            // overflow
+            firstBatchSize = Integer.MAX_VALUE;
+        }
+        maxResults = limit > 0 ? firstBatchSize : Integer.MAX_VALUE;
+        topDocs = searcher.search(weight, null, firstBatchSize, sort, true, false, false);
+        assignLeaves();
+    }
+
+    TopDocsIterator(LuxSearcher luxSearcher, Query query, Sort sort, int start) throws IOException {
+        this (luxSearcher, query, sort, start, 0);
+    }
+
+    TopDocsIterator(LuxSearcher luxSearcher, Query query, Sort sort) throws IOException {
+        this (luxSearcher, query, sort, 0, 0);
     }
 
     @Override
@@ -36,37 +80,65 @@ class TopDocsIterator extends DocIdSetIterator {
 
     @Override
     public int nextDoc() throws IOException {
-        if (iDocNext < topDocs.scoreDocs.length) {
-            docID = topDocs.scoreDocs[iDocNext++].doc;
-        } else if (iDocNext < topDocs.totalHits) {
-            // load a larger batch of docs
-            // TODO: a better implementation would remember the previous
-            // endpoint
-            // by value (total ordering=sortkey,docID) and skip over the first
-            // set of docs,
-            // storing only the next batch - we could possibly add a term to the
-            // query expressing
-            // this?
-            // iDocBase = iDocNext;
-            topDocs = this.searcher.search(
-                    this.searcher.createNormalizedWeight(query), iDocNext
-                            + BATCH_SIZE, sort, false, false);
-        } else {
-            // exhausted the entire result set
-            docID = NO_MORE_DOCS;
+        if (iDocNext >= topDocs.scoreDocs.length) {
+            int total = iDocBase + topDocs.scoreDocs.length;
+            if (topDocs.scoreDocs.length == 0 || total >= topDocs.totalHits || total >= maxResults) {
+                // exhausted the entire result set
+                return docID = NO_MORE_DOCS;
+            }
+            // load the next batch of docs, picking up where the previous batch left off
+            ScoreDoc last = topDocs.scoreDocs[topDocs.scoreDocs.length - 1];
+            topDocs = searcher.search(weight, (FieldDoc) last, BATCH_SIZE, sort, true, false, false);
+            iDocBase = total;
+            iDocNext = 0;
+            assignLeaves();
+            if (topDocs.scoreDocs.length == 0) {
+                // the index must have changed?
+                return docID = NO_MORE_DOCS;
+            }
         }
+        docID = topDocs.scoreDocs[iDocNext++].doc;
         return docID;
     }
 
+    /**
+     * @return the leaf reader context containing the current document, which is the document whose (absolute)
+     * docID was most recently returned by {@link #nextDoc()}
+     */
+    public AtomicReaderContext getCurrentReaderContext () {
+        return leaves.get(leafOrds[iDocNext - 1]);
+    }
+
+    /*
+     * Finds the leaf of each result in the current batch.
+     */
+    private void assignLeaves () {
+        ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+        leafOrds = new int[scoreDocs.length];
+        for (int i = 0; i < scoreDocs.length; i++) {
+            leafOrds[i] = ReaderUtil.subIndex(scoreDocs[i].doc, leaves);
+        }
+    }
+
+    /**
+     * Since results are not in docID order, this simply advances through the results, in sort order,
+     * until a result with docID &gt;= target is found.
+     */
     @Override
     public int advance(int target) throws IOException {
-        // unimplemented - do we need this?
-        return NO_MORE_DOCS;
+        int doc;
+        do {
+            doc = nextDoc();
+        } while (doc < target);
+        return doc;
     }
 
+    /**
+     * @return the total number of hits
+     */
     @Override
     public long cost() {
-        return 0;
+        return topDocs.totalHits;
     }
 
 }
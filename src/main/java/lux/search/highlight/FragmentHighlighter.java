@@ -0,0 +1,361 @@
+package lux.search.highlight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.xml.stream.XMLStreamException;
+
+import lux.exception.LuxException;
+import lux.index.IndexConfiguration;
+import lux.xml.QName;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.value.Whitespace;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.QueryTermExtractor;
+import org.apache.lucene.search.highlight.WeightedTerm;
+
+/**
+ * <p>Selects the passages of a node that best match a query, and highlights them.  A passage is an element
+ * having some non-whitespace text among its children, together with all of its descendants; elements
+ * contained in a passage do not form passages of their own.  Each passage is scored, in document order, by
+ * analyzing its text with a {@link QueryScorer}: its score is the sum of the weights of the distinct query terms
+ * it contains.  The best-scoring passages are then highlighted using an {@link XmlHighlighter}, and returned as
+ * copies of their elements.</p>
+ *
+ * <p>Scoring stops as soon as the requested number of passages have been found that contain every term
+ * in the query, since no later passage could displace them, so the text of a large document need not be
+ * analyzed in full.  Phrases are matched only within a single passage.</p>
+ */
+public class FragmentHighlighter {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final XmlHighlighter xmlHighlighter;
+    private final String textFieldName;
+    private final Analyzer analyzer;
+    private final StreamingElementTokens elementTokens;
+    private QueryScorer scorer;
+    private boolean positional;
+    private final CharTermAttribute termAtt;
+    private HashMap<String, Float> termWeights;
+    // sets of terms, one of which a passage must contain in full in order to match a positional query
+    private ArrayList<HashSet<String>> requiredTerms;
+    private final HashSet<String> passageTerms = new HashSet<String>();
+    private float maxScore;
+    private int passageCount;
+
+    public FragmentHighlighter (Processor processor, IndexConfiguration indexConfig, HighlightFormatter highlighter) {
+        xmlHighlighter = new XmlHighlighter(processor, indexConfig, highlighter);
+        textFieldName = indexConfig.getTextFieldName();
+        analyzer = indexConfig.getFieldAnalyzers();
+        try {
+            elementTokens = new StreamingElementTokens(analyzer.tokenStream(textFieldName, new CharSequenceReader("")));
+            termAtt = elementTokens.addAttribute(CharTermAttribute.class);
+        } catch (IOException e) {
+            throw new LuxException(e);
+        }
+    }
+
+    /**
+     * @param highlighter the formatter that marks up matching text in subsequent calls to highlight()
+     */
+    public void setHighlightFormatter (HighlightFormatter highlighter) {
+        xmlHighlighter.setHighlightFormatter(highlighter);
+    }
+
+    /**
+     * @param query the query whose matching terms are to be highlighted
+     * @param node the node whose passages are to be highlighted
+     * @param maxFragments the greatest number of passages to return
+     * @return highlighted copies of at most maxFragments of the passages matching the query, those with the highest scores,
+     * in document order.  Each is the root element of a new document.
+     * @throws XMLStreamException
+     * @throws SaxonApiException
+     */
+    public List<XdmNode> highlight (Query query, NodeInfo node, int maxFragments) throws XMLStreamException, SaxonApiException {
+        if (maxFragments <= 0) {
+            return Collections.emptyList();
+        }
+        positional = XmlHighlighter.needsPositions(query);
+        if (positional) {
+            query = XmlHighlighter.replaceFields(query, textFieldName);
+        }
+        scorer = new QueryScorer(query);
+        scorer.setMaxDocCharsToAnalyze(Integer.MAX_VALUE);
+        termWeights = getTermWeights(query);
+        requiredTerms = new ArrayList<HashSet<String>>();
+        if (! (positional && addRequiredTerms(query))) {
+            requiredTerms = null;
+        }
+        maxScore = 0;
+        for (Float weight : termWeights.values()) {
+            maxScore += weight;
+        }
+        passageCount = 0;
+        // maxFragments may be far larger than the number of passages
+        PriorityQueue<Passage> best = new PriorityQueue<Passage>(Math.min(maxFragments, INITIAL_CAPACITY), WORST_FIRST);
+        try {
+            if (! positional) {
+                // the scorer reads the terms of the live token stream
+                scorer.init(elementTokens);
+            }
+            int depth = node.getNodeKind() == Type.ELEMENT ? pushAncestors (node.getParent()) : 0;
+            findPassages (node, best, maxFragments);
+            while (depth-- > 0) {
+                elementTokens.popElement();
+            }
+        } catch (IOException e) {
+            throw new LuxException (e);
+        }
+        ArrayList<Passage> passages = new ArrayList<Passage>(best);
+        Collections.sort(passages, DOCUMENT_ORDER);
+        ArrayList<XdmNode> fragments = new ArrayList<XdmNode>(passages.size());
+        for (Passage passage : passages) {
+            XdmNode doc = xmlHighlighter.highlight(query, passage.element);
+            fragments.add(new XdmNode(doc.getUnderlyingNode().iterateAxis(AxisInfo.CHILD, NodeKindTest.ELEMENT).next()));
+        }
+        return fragments;
+    }
+
+    /**
+     * Scores the passages in the node, retaining the best of them.
+     * @return false if enough passages matching every term have been found that the search may stop
+     */
+    private boolean findPassages (NodeInfo node, PriorityQueue<Passage> best, int maxFragments) throws IOException {
+        if (node.getNodeKind() == Type.ELEMENT && hasText (node)) {
+            float score = scorePassage (node);
+            if (score > 0) {
+                Passage passage = new Passage (node, score, passageCount++);
+                if (best.size() < maxFragments) {
+                    best.add(passage);
+                } else if (WORST_FIRST.compare(passage, best.peek()) > 0) {
+                    best.poll();
+                    best.add(passage);
+                }
+                if (best.size() == maxFragments && maxScore > 0 && best.peek().score >= maxScore) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (node.getNodeKind() == Type.ELEMENT || node.getNodeKind() == Type.DOCUMENT) {
+            boolean isElement = node.getNodeKind() == Type.ELEMENT;
+            if (isElement) {
+                elementTokens.pushElement(getQName(node));
+            }
+            try {
+                AxisIterator children = node.iterateAxis(AxisInfo.CHILD, NodeKindTest.ELEMENT);
+                NodeInfo child;
+                while ((child = children.next()) != null) {
+                    if (! findPassages (child, best, maxFragments)) {
+                        return false;
+                    }
+                }
+            } finally {
+                if (isElement) {
+                    elementTokens.popElement();
+                }
+            }
+        }
+        return true;
+    }
+
+    private float scorePassage (NodeInfo element) throws IOException {
+        TokenStream scorerTokens = null;
+        if (positional) {
+            if (requiredTerms != null && ! containsRequiredTerms(element)) {
+                // skip indexing passages that can't match
+                return 0;
+            }
+            // let the scorer find the positions of phrases within this passage
+            TokenStream passageTokens = xmlHighlighter.createTextTokens(element);
+            passageTokens.reset();
+            scorerTokens = scorer.init(passageTokens);
+            if (scorerTokens == null) {
+                passageTokens.close();
+                scorer.init(elementTokens);
+            }
+        }
+        // QueryScorer only resets its score here, and ignores the fragment
+        scorer.startFragment(null);
+        scoreText (element, scorerTokens);
+        return scorer.getFragmentScore();
+    }
+
+    private void scoreText (NodeInfo element, TokenStream scorerTokens) throws IOException {
+        elementTokens.pushElement(getQName(element));
+        AxisIterator children = element.iterateAxis(AxisInfo.CHILD);
+        NodeInfo child;
+        while ((child = children.next()) != null) {
+            if (child.getNodeKind() == Type.ELEMENT) {
+                scoreText (child, scorerTokens);
+            } else if (child.getNodeKind() == Type.TEXT) {
+                TokenStream tokenStream = analyzer.tokenStream(textFieldName, new CharSequenceReader(child.getStringValueCS()));
+                elementTokens.reset(tokenStream);
+                while (elementTokens.incrementToken()) {
+                    if (scorerTokens == null) {
+                        scorer.getTokenScore();
+                    } else if (elementTokens.isPlainToken()) {
+                        scorerTokens.incrementToken();
+                        scorer.getTokenScore();
+                    }
+                }
+                tokenStream.end();
+                tokenStream.close();
+            }
+        }
+        elementTokens.popElement();
+    }
+
+    /*
+     * Records the sets of terms of the term and phrase queries within the query; a passage must contain all
+     * the terms of one of these to match.
+     * @return false if the query contains some other kind of query, which might match any passage
+     */
+    private boolean addRequiredTerms (Query query) {
+        if (query instanceof TermQuery) {
+            HashSet<String> terms = new HashSet<String>();
+            terms.add(((TermQuery) query).getTerm().text());
+            requiredTerms.add(terms);
+            return true;
+        }
+        if (query instanceof PhraseQuery) {
+            HashSet<String> terms = new HashSet<String>();
+            for (Term term : ((PhraseQuery) query).getTerms()) {
+                terms.add(term.text());
+            }
+            requiredTerms.add(terms);
+            return true;
+        }
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                if (! clause.isProhibited() && ! addRequiredTerms(clause.getQuery())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean containsRequiredTerms (NodeInfo element) throws IOException {
+        passageTerms.clear();
+        AxisIterator texts = element.iterateAxis(AxisInfo.DESCENDANT, NodeKindTest.TEXT);
+        NodeInfo text;
+        while ((text = texts.next()) != null) {
+            TokenStream tokenStream = analyzer.tokenStream(textFieldName, new CharSequenceReader(text.getStringValueCS()));
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                String term = termAtt.toString();
+                if (termWeights.containsKey(term)) {
+                    passageTerms.add(term);
+                }
+            }
+            tokenStream.end();
+            tokenStream.close();
+        }
+        for (HashSet<String> terms : requiredTerms) {
+            if (passageTerms.containsAll(terms)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // pushes the QNames of the element and its ancestors, outermost first, and returns their number
+    private int pushAncestors (NodeInfo node) {
+        if (node == null || node.getNodeKind() != Type.ELEMENT) {
+            return 0;
+        }
+        int depth = pushAncestors (node.getParent());
+        elementTokens.pushElement(getQName(node));
+        return depth + 1;
+    }
+
+    private static boolean hasText (NodeInfo element) {
+        AxisIterator children = element.iterateAxis(AxisInfo.CHILD, NodeKindTest.TEXT);
+        NodeInfo text;
+        while ((text = children.next()) != null) {
+            if (! Whitespace.isWhite(text.getStringValueCS())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static QName getQName (NodeInfo element) {
+        return new QName (element.getURI(), element.getLocalPart(), element.getPrefix());
+    }
+
+    // the weights of the distinct (positive) terms in the query; a passage containing all of them has the
+    // greatest possible score, their sum
+    private static HashMap<String, Float> getTermWeights (Query query) {
+        HashMap<String, Float> weights = new HashMap<String, Float>();
+        for (WeightedTerm term : QueryTermExtractor.getTerms(query)) {
+            Float weight = weights.get(term.getTerm());
+            if (weight == null || weight < term.getWeight()) {
+                weights.put(term.getTerm(), term.getWeight());
+            }
+        }
+        return weights;
+    }
+
+    private static class Passage {
+        final NodeInfo element;
+        final float score;
+        final int order;
+
+        Passage (NodeInfo element, float score, int order) {
+            this.element = element;
+            this.score = score;
+            this.order = order;
+        }
+    }
+
+    // orders lower scores first; among equal scores, later passages first
+    private static final Comparator<Passage> WORST_FIRST = new Comparator<Passage>() {
+        @Override
+        public int compare(Passage a, Passage b) {
+            if (a.score != b.score) {
+                return a.score < b.score ? -1 : 1;
+            }
+            return b.order - a.order;
+        }
+    };
+
+    private static final Comparator<Passage> DOCUMENT_ORDER = new Comparator<Passage>() {
+        @Override
+        public int compare(Passage a, Passage b) {
+            return a.order - b.order;
+        }
+    };
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,402 @@
+package lux.search.highlight;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import lux.index.FieldRole;
+import lux.index.IndexConfiguration;
+import lux.xml.Offsets;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.DocumentInfo;
+import net.sf.saxon.om.NamespaceBinding;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.BuildingStreamWriterImpl;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.tree.tiny.TinyDocumentImpl;
+import net.sf.saxon.type.Type;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * <p>Highlights documents retrieved from an index whose text fields store term vectors with offsets, as they
+ * do when the {@link IndexConfiguration#COMPUTE_OFFSETS} option is set.  Unlike {@link XmlHighlighter}, this
+ * highlighter doesn't analyze the document's text: the offsets of the terms matching the query are read from
+ * the document's term vectors, and are mapped onto its text nodes using {@link Offsets#forText(NodeInfo)}.
+ * Only the text nodes containing matches are rewritten; the rest of the document is copied as is.</p>
+ *
+ * <p>Term queries and exact phrase queries (and boolean combinations of these) on the full text and element text
+ * fields are supported.  For other queries, for documents that are not in the index, or that have no term vectors,
+ * {@link #highlight(Query, NodeInfo, IndexReader)} returns null, and the caller should fall back to {@link XmlHighlighter}.</p>
+ */
+public class OffsetHighlighter {
+
+    private final DocumentBuilder builder;
+    private HighlightFormatter highlighter;
+    private final String uriFieldName;
+    private final String textFieldName;
+    private final String elementTextFieldName;
+    private IndexReader reader;
+    private int docID;
+    // the term vectors of the document being highlighted
+    private Fields termVectors;
+    // the matches, each packed as (start offset << 32 | end offset), so they sort by start offset
+    private long[] matches;
+    private int matchCount;
+    private BuildingStreamWriterImpl writer;
+
+    public OffsetHighlighter (Processor processor, IndexConfiguration indexConfig, HighlightFormatter highlighter) {
+        builder = processor.newDocumentBuilder();
+        this.highlighter = highlighter;
+        uriFieldName = indexConfig.getUriFieldName();
+        textFieldName = indexConfig.getFieldName(FieldRole.XML_TEXT);
+        elementTextFieldName = indexConfig.getFieldName(FieldRole.ELEMENT_TEXT);
+        matches = new long[16];
+    }
+
+    /**
+     * @param highlighter the formatter that marks up matching text in subsequent calls to highlight()
+     */
+    public void setHighlightFormatter (HighlightFormatter highlighter) {
+        this.highlighter = highlighter;
+    }
+
+    /**
+     * @param query the query whose matching terms are to be highlighted
+     * @param node the document to highlight; it must have been retrieved from the index read by the reader
+     * @param indexReader reads the index from which the document was retrieved
+     * @return a copy of the document with its matching terms highlighted, or null if the document can't be
+     * highlighted using term offsets.
+     * @throws IOException if there is an error reading the index
+     * @throws XMLStreamException if there is an error writing the highlighted document
+     * @throws SaxonApiException if there is an error building the highlighted document
+     */
+    public XdmNode highlight (Query query, NodeInfo node, IndexReader indexReader) throws IOException, XMLStreamException, SaxonApiException {
+        if (node.getNodeKind() != Type.DOCUMENT) {
+            return null;
+        }
+        reader = indexReader;
+        docID = getDocID ((DocumentInfo) node);
+        if (docID < 0) {
+            return null;
+        }
+        termVectors = reader.getTermVectors(docID);
+        if (termVectors == null) {
+            return null;
+        }
+        Query rewritten = query.rewrite(reader);
+        while (rewritten != query) {
+            query = rewritten;
+            rewritten = query.rewrite(reader);
+        }
+        matchCount = 0;
+        if (! addMatches (query)) {
+            return null;
+        }
+        sortMatches ();
+        writer = builder.newBuildingStreamWriter();
+        writer.writeStartDocument();
+        if (! writeChildren (node, Offsets.forText(node), new int[2])) {
+            // the offsets don't fit the document's text
+            return null;
+        }
+        writer.writeEndDocument();
+        XdmNode highlighted = writer.getDocumentNode();
+        if (highlighted.getUnderlyingNode() instanceof TinyDocumentImpl) {
+            ((TinyDocumentImpl) highlighted.getUnderlyingNode()).setBaseURI(node.getSystemId());
+        }
+        return highlighted;
+    }
+
+    /*
+     * @return the docID of the document in the index, found by looking up its uri, or -1 if the document
+     * was not retrieved from the index.
+     */
+    private int getDocID (DocumentInfo doc) throws IOException {
+        Object userData = doc.getUserData(Document.class.getName());
+        if (! (userData instanceof Document)) {
+            return -1;
+        }
+        String uri = ((Document) userData).get(uriFieldName);
+        if (uri == null) {
+            return -1;
+        }
+        Term uriTerm = new Term (uriFieldName, uri);
+        for (AtomicReaderContext leaf : reader.leaves()) {
+            DocsEnum docs = leaf.reader().termDocsEnum(uriTerm);
+            if (docs != null) {
+                int leafDocID = docs.nextDoc();
+                if (leafDocID != DocIdSetIterator.NO_MORE_DOCS) {
+                    return leaf.docBase + leafDocID;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean isTextField (String field) {
+        return field.equals(textFieldName) || field.equals(elementTextFieldName);
+    }
+
+    /*
+     * Records the offsets of the terms in the document matching the query.
+     * @return false if the query can't be highlighted using term offsets
+     */
+    private boolean addMatches (Query query) throws IOException {
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                if (! clause.isProhibited() && ! addMatches (clause.getQuery())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (query instanceof TermQuery) {
+            Term term = ((TermQuery) query).getTerm();
+            if (! isTextField(term.field())) {
+                return true;
+            }
+            Occurrences occurrences = getOccurrences (term);
+            if (occurrences == null) {
+                return false;
+            }
+            for (int i = 0; i < occurrences.count; i++) {
+                addMatch (occurrences.startOffsets[i], occurrences.endOffsets[i]);
+            }
+            return true;
+        }
+        if (query instanceof PhraseQuery) {
+            return addPhraseMatches ((PhraseQuery) query);
+        }
+        // Any other query is acceptable so long as it doesn't match text
+        Set<Term> terms = new HashSet<Term>();
+        try {
+            query.extractTerms(terms);
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+        for (Term term : terms) {
+            if (isTextField(term.field())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean addPhraseMatches (PhraseQuery query) throws IOException {
+        Term[] terms = query.getTerms();
+        if (terms.length == 0 || ! isTextField(terms[0].field())) {
+            return true;
+        }
+        if (query.getSlop() != 0) {
+            return false;
+        }
+        int[] positions = query.getPositions();
+        Occurrences[] occurrences = new Occurrences[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            occurrences[i] = getOccurrences (terms[i]);
+            if (occurrences[i] == null) {
+                return false;
+            }
+        }
+        // find the occurrences of the first term that are followed by each of the other terms at their relative positions
+        Occurrences first = occurrences[0];
+        int[] found = new int[terms.length];
+        for (int i = 0; i < first.count; i++) {
+            int phrasePosition = first.positions[i] - positions[0];
+            boolean matched = true;
+            for (int j = 1; j < terms.length && matched; j++) {
+                found[j] = Arrays.binarySearch(occurrences[j].positions, 0, occurrences[j].count, phrasePosition + positions[j]);
+                matched = found[j] >= 0;
+            }
+            if (matched) {
+                addMatch (first.startOffsets[i], first.endOffsets[i]);
+                for (int j = 1; j < terms.length; j++) {
+                    addMatch (occurrences[j].startOffsets[found[j]], occurrences[j].endOffsets[found[j]]);
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * @return the positions and offsets of the term in the document's term vector; or null if the term's field has no
+     * term vector with offsets.
+     */
+    private Occurrences getOccurrences (Term term) throws IOException {
+        Terms vector = termVectors.terms(term.field());
+        if (vector == null || ! vector.hasOffsets() || ! vector.hasPositions()) {
+            return null;
+        }
+        TermsEnum termsEnum = vector.iterator(null);
+        if (! termsEnum.seekExact(term.bytes())) {
+            return new Occurrences (0);
+        }
+        DocsAndPositionsEnum postings = termsEnum.docsAndPositions(null, null, DocsAndPositionsEnum.FLAG_OFFSETS);
+        if (postings == null || postings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+            return new Occurrences (0);
+        }
+        int freq = postings.freq();
+        Occurrences occurrences = new Occurrences (freq);
+        for (int i = 0; i < freq; i++) {
+            occurrences.positions[i] = postings.nextPosition();
+            occurrences.startOffsets[i] = postings.startOffset();
+            occurrences.endOffsets[i] = postings.endOffset();
+        }
+        return occurrences;
+    }
+
+    private void addMatch (int start, int end) {
+        if (matchCount >= matches.length) {
+            matches = ArrayUtil.grow(matches, matchCount + 1);
+        }
+        matches[matchCount++] = ((long) start << 32) | end;
+    }
+
+    /*
+     * Sorts the matches by offset, and merges those that overlap, as the same text may match several terms
+     */
+    private void sortMatches () {
+        Arrays.sort(matches, 0, matchCount);
+        int merged = 0;
+        for (int i = 0; i < matchCount; i++) {
+            if (merged > 0 && getStart(matches[i]) < getEnd(matches[merged - 1])) {
+                int end = Math.max(getEnd(matches[i]), getEnd(matches[merged - 1]));
+                matches[merged - 1] = ((long) getStart(matches[merged - 1]) << 32) | end;
+            } else {
+                matches[merged++] = matches[i];
+            }
+        }
+        matchCount = merged;
+    }
+
+    private static int getStart (long match) {
+        return (int) (match >>> 32);
+    }
+
+    private static int getEnd (long match) {
+        return (int) match;
+    }
+
+    /*
+     * Copies the children of the node to the writer, highlighting the matching text.
+     * @param state holds the index of the next text node, and of the next match
+     * @return false if a match doesn't fall within a single text node
+     */
+    private boolean writeChildren (NodeInfo node, Offsets offsets, int[] state) throws XMLStreamException {
+        AxisIterator children = node.iterateAxis(AxisInfo.CHILD);
+        for (NodeInfo child = children.next(); child != null; child = children.next()) {
+            switch (child.getNodeKind()) {
+            case Type.ELEMENT:
+                writer.writeStartElement(child.getPrefix(), child.getLocalPart(), child.getURI());
+                NamespaceBinding[] namespaces = child.getDeclaredNamespaces(null);
+                for (NamespaceBinding namespace : namespaces) {
+                    if (namespace == null) {
+                        break;
+                    }
+                    writer.writeNamespace(namespace.getPrefix(), namespace.getURI());
+                }
+                AxisIterator attributes = child.iterateAxis(AxisInfo.ATTRIBUTE);
+                for (NodeInfo attribute = attributes.next(); attribute != null; attribute = attributes.next()) {
+                    writer.writeAttribute(attribute.getPrefix(), attribute.getURI(), attribute.getLocalPart(), attribute.getStringValue());
+                }
+                if (! writeChildren (child, offsets, state)) {
+                    return false;
+                }
+                writer.writeEndElement();
+                break;
+            case Type.TEXT:
+                if (! writeText (child.getStringValue(), offsets, state)) {
+                    return false;
+                }
+                break;
+            case Type.COMMENT:
+                writer.writeComment(child.getStringValue());
+                break;
+            case Type.PROCESSING_INSTRUCTION:
+                writer.writeProcessingInstruction(child.getLocalPart(), child.getStringValue());
+                break;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+
+    private boolean writeText (String text, Offsets offsets, int[] state) throws XMLStreamException {
+        int textIndex = state[0]++;
+        int iMatch = state[1];
+        if (textIndex >= offsets.getTextCount()) {
+            return false;
+        }
+        if (iMatch >= matchCount || offsets.getTextIndex(getStart(matches[iMatch])) != textIndex) {
+            // no matches in this text node
+            writer.writeCharacters(text);
+            return true;
+        }
+        int location = offsets.getTextLocation(textIndex);
+        int written = 0;
+        while (iMatch < matchCount && offsets.getTextIndex(getStart(matches[iMatch])) == textIndex) {
+            int start = getStart(matches[iMatch]) - location;
+            int end = getEnd(matches[iMatch]) - location;
+            if (end > text.length()) {
+                return false;
+            }
+            if (start > written) {
+                writer.writeCharacters(text.substring(written, start));
+            }
+            highlighter.highlightTerm(writer, text.substring(start, end));
+            written = end;
+            ++iMatch;
+        }
+        if (written < text.length()) {
+            writer.writeCharacters(text.substring(written));
+        }
+        state[1] = iMatch;
+        return true;
+    }
+
+    /*
+     * the positions and offsets of the occurrences of a term in a document
+     */
+    private static class Occurrences {
+        final int count;
+        final int[] positions;
+        final int[] startOffsets;
+        final int[] endOffsets;
+
+        Occurrences (int count) {
+            this.count = count;
+            positions = new int[count];
+            startOffsets = new int[count];
+            endOffsets = new int[count];
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
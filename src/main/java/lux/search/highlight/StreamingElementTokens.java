@@ -53,6 +53,10 @@ public final class StreamingElementTokens extends TokenStream {
         qnames.remove(qnames.size()-1);
     }
 
+    public void clearElements () {
+        qnames.clear();
+    }
+
     @Override
     public boolean incrementToken() throws IOException {
         if (qnamePos < 0) {
@@ -8,9 +8,11 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
 import lux.exception.LuxException;
+import lux.index.FieldRole;
 import lux.index.IndexConfiguration;
 import lux.index.analysis.DefaultAnalyzer;
 import lux.index.analysis.XmlTextTokenStream;
+import lux.index.field.FieldDefinition;
 import lux.xml.QName;
 import lux.xml.SaxonDocBuilder;
 import lux.xml.XmlReader;
@@ -34,9 +36,14 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.highlight.QueryScorer;
 import org.apache.lucene.search.highlight.TextFragment;
 
+/**
+ * Highlights the text of a node that matches a query, by analyzing the text, and builds a copy of the node
+ * with the matching text marked up by a {@link HighlightFormatter}.  A highlighter may be re-used to
+ * highlight any number of nodes, one at a time; see {@link lux.Evaluator#getXmlHighlighter()}.
+ */
 public class XmlHighlighter extends SaxonDocBuilder {
 
-    private final HighlightFormatter highlighter;
+    private HighlightFormatter highlighter;
     private QueryScorer scorer;
     private final XmlStreamTextReader textReader;
     private XMLStreamReader xmlStreamReader;
@@ -50,6 +57,9 @@ public class XmlHighlighter extends SaxonDocBuilder {
     private int maxDocCharsToAnalyze = Integer.MAX_VALUE;
     private String textFieldName;
     private Analyzer analyzer;
+    private final Analyzer textAnalyzer;
+    private final String textAnalyzerFieldName;
+    private final XmlReader xmlReader;
     private Processor processor;
     
     public XmlHighlighter(Processor processor, IndexConfiguration indexConfig, HighlightFormatter highlighter) {
@@ -58,6 +68,18 @@ public class XmlHighlighter extends SaxonDocBuilder {
         textFieldName = indexConfig.getTextFieldName();
         analyzer = indexConfig.getFieldAnalyzers();
         this.highlighter = highlighter;
+        // The scorer analyzes the text as it was indexed, using the text field's own analyzer: this
+        // doesn't share its (re-used) token streams with the field analyzer wrapper used for highlighting.
+        FieldDefinition textField = indexConfig.getField(FieldRole.XML_TEXT);
+        if (textField != null && textField.getAnalyzer() != null) {
+            textAnalyzer = textField.getAnalyzer();
+            textAnalyzerFieldName = textField.getName();
+        } else {
+            textAnalyzer = new DefaultAnalyzer();
+            textAnalyzerFieldName = "xml_text";
+        }
+        xmlReader = new XmlReader ();
+        xmlReader.addHandler(this);
         textReader = new XmlStreamTextReader();
         try {
             // in order to handle highlighting element-text query terms, we need to
@@ -75,7 +97,23 @@ public class XmlHighlighter extends SaxonDocBuilder {
         tokenGroup = new TokenGroup(xmlStreamTokens);
     }
     
+    /**
+     * @param highlighter the formatter that marks up matching text in subsequent calls to {@link #highlight(Query, NodeInfo)}
+     */
+    public void setHighlightFormatter (HighlightFormatter highlighter) {
+        this.highlighter = highlighter;
+    }
+
+    /**
+     * @param query the query whose matching terms are to be highlighted
+     * @param node the node to highlight
+     * @return a new document containing a copy of the node, with its matching terms highlighted
+     * @throws XMLStreamException
+     * @throws SaxonApiException
+     */
     public XdmNode highlight (Query query, NodeInfo node) throws XMLStreamException, SaxonApiException {
+        // start a new document
+        xmlReader.reset();
         if (needsPositions(query)) {
             // A partial workaround for highlighting element text queries with phrases
             query = replaceFields (query, textFieldName);
@@ -83,15 +121,7 @@ public class XmlHighlighter extends SaxonDocBuilder {
         scorer = new QueryScorer(query);
         // grab all the text at once so Lucene's lame-ass highlighter can figure out if there are any
         // phrases in it...
-        // TODO: is this the Analyzer we're looking for???  OR ... reimplement using different HL
-        Analyzer defaultAnalyzer = new DefaultAnalyzer();
-        TokenStream textTokens = null;
-        try {
-            textTokens = defaultAnalyzer.tokenStream("xml_text", new CharSequenceReader(""));
-        } catch (IOException e) { }
-        init(new XmlTextTokenStream("xml_text", defaultAnalyzer, textTokens, new XdmNode (node), null, processor));
-        XmlReader xmlReader = new XmlReader ();
-        xmlReader.addHandler(this);
+        init(createTextTokens (node));
         xmlReader.read(node);
         // setBaseURI (URI.create(node.getBaseURI()));
         if (getDocument().getUnderlyingNode() instanceof TinyDocumentImpl) {
@@ -100,7 +130,7 @@ public class XmlHighlighter extends SaxonDocBuilder {
         return getDocument();
     }
     
-    private Query replaceFields(Query query, String fieldName) {
+    static Query replaceFields(Query query, String fieldName) {
         if (query instanceof PhraseQuery) {
             PhraseQuery pq = new PhraseQuery();
             for (Term t : ((PhraseQuery)query).getTerms()) {
@@ -112,10 +142,15 @@ public class XmlHighlighter extends SaxonDocBuilder {
             return pq;
         }
         if (query instanceof BooleanQuery) {
-            for (BooleanClause clause : ((BooleanQuery)query).getClauses()) {
-                clause.setQuery(replaceFields (clause.getQuery(), fieldName));
+            // build a new query: the given one may be shared via the Compiler's parsed query cache
+            BooleanQuery bq = (BooleanQuery) query;
+            BooleanQuery replaced = new BooleanQuery(bq.isCoordDisabled());
+            replaced.setBoost(bq.getBoost());
+            replaced.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+            for (BooleanClause clause : bq.getClauses()) {
+                replaced.add(replaceFields (clause.getQuery(), fieldName), clause.getOccur());
             }
-            return query;
+            return replaced;
         }
         if (query instanceof TermQuery) {
             TermQuery tq = (TermQuery)query;
@@ -127,7 +162,7 @@ public class XmlHighlighter extends SaxonDocBuilder {
         return query;
     }
 
-    private Term replaceField(String fieldName, Term t) {
+    private static Term replaceField(String fieldName, Term t) {
         String[] parts =  t.text().split(":");
         if (parts.length > 1) {
             return new Term (fieldName,parts[1]);
@@ -136,7 +171,7 @@ public class XmlHighlighter extends SaxonDocBuilder {
         }
     }
 
-    private boolean needsPositions(Query query) {
+    static boolean needsPositions(Query query) {
         if ((query instanceof PhraseQuery)) {
             return true;
         }
@@ -150,9 +185,25 @@ public class XmlHighlighter extends SaxonDocBuilder {
         return false;
     }
 
+    /**
+     * @param node a node
+     * @return a TokenStream over the text of the node, analyzed as it is for the full text field
+     */
+    TokenStream createTextTokens (NodeInfo node) {
+        TokenStream textTokens = null;
+        try {
+            textTokens = textAnalyzer.tokenStream(textAnalyzerFieldName, new CharSequenceReader(""));
+        } catch (IOException e) { }
+        return new XmlTextTokenStream(textAnalyzerFieldName, textAnalyzer, textTokens, new XdmNode (node), null, processor);
+    }
+
     @Override
     public void reset () {
         super.reset();
+        if (xmlStreamTokens != null) {
+            // in case the previous document was abandoned part way through
+            xmlStreamTokens.clearElements();
+        }
     }
 
     private void init (TokenStream tokenStream) {
@@ -163,6 +214,7 @@ public class XmlHighlighter extends SaxonDocBuilder {
             if (scorerTokens == null) {
                 // The scorer didn't consume any tokens (it does that for PhraseQuery),
                 // in which case we must give it the live token stream
+                tokenStream.close();
                 scorer.init(xmlStreamTokens);
             }
             // we score the entire document as a single fragment
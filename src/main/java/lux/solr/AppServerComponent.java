@@ -6,6 +6,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 
+import lux.Compiler;
+import lux.TransformErrorListener;
+import lux.exception.LuxException;
+import net.sf.saxon.s9api.XQueryExecutable;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.common.SolrException;
@@ -33,13 +38,20 @@ public class AppServerComponent extends XQueryComponent {
     private static final String RESOURCE_SCHEME = "resource:";
     private static final String CONTEXT_SCHEME = "context:";
 
+    /** When true, the module cache is cleared, and all modules are read and compiled afresh. */
+    public static final String LUX_RELOAD = "lux.reload";
+
+    private final ModuleCache moduleCache = new ModuleCache();
+
     @Override
     public void prepare(ResponseBuilder rb) throws IOException {
         SolrQueryRequest req = rb.req;
         SolrParams params = req.getParams();            
         if (rb.getQueryString() == null) {
-            queryPath = rb.req.getParams().get(LUX_XQUERY);
-            if (! StringUtils.isBlank(queryPath)) {
+            // queryPath is shared by concurrent requests, so the module is resolved and cached using local copies
+            String path = rb.req.getParams().get(LUX_XQUERY);
+            queryPath = path;
+            if (! StringUtils.isBlank(path)) {
                 String baseUri;
                 String contextBase = (String) params.get("lux.serverBaseUri");
                 if (params.get("lux.baseUri") != null) {
@@ -66,52 +78,28 @@ public class AppServerComponent extends XQueryComponent {
                 } else if (baseUri.startsWith(CONTEXT_SCHEME)) {
                 	baseUri = contextBase + baseUri.substring(CONTEXT_SCHEME.length());
                 }
-                String contents = null;
-                if (resourceBase != null) {
-                    InputStream in = AppServerComponent.class.getResourceAsStream(resourceBase + queryPath);
-                	queryPath = baseUri + queryPath;
-                    if (in == null) {
-                        throw new SolrException (ErrorCode.NOT_FOUND, queryPath + " not found");
-                    } else {
-                        try {
-                            contents = IOUtils.toString(in);
-                        } catch (IOException e) {
-                            LoggerFactory.getLogger(AppServerComponent.class).error("An error occurred while reading " + queryPath, e);
-                        }
-                        IOUtils.closeQuietly(in);
-                    }
-                } else {
-                    // url provided with scheme
-                	queryPath = baseUri + queryPath;
-                    URL url = new URL (queryPath);
-                    String scheme = url.getProtocol();
-                    if (scheme.equals("lux")) {
-                        // TODO implement lux: uri resolution
-                    	throw new SolrException (ErrorCode.NOT_FOUND, queryPath + " not found (actually lux: scheme is not implemented)");
-                    } else {
-                        InputStream in = null;
-                        try {
-                            if (url.getProtocol().equals("file")) {
-                                File f = new File(url.getPath());
-                                if (!f.exists()) {
-                                    throw new SolrException (ErrorCode.NOT_FOUND, f + " not found");
-                                }
-                                if (f.isDirectory() || ! f.canRead()) {
-                                    throw new SolrException (ErrorCode.FORBIDDEN, "access to " + f + " denied by rule");
-                                }
-                                in = new FileInputStream(f);
-                            } else {
-                                // in = url.openStream();
-                                LoggerFactory.getLogger(AppServerComponent.class).error("URL scheme not supported: " + url.getProtocol());
-                            }
-                            contents = IOUtils.toString(in);
-                        } catch (IOException e) {
-                        	LoggerFactory.getLogger(AppServerComponent.class).error("An error occurred while reading " + url, e);
-                        }
-                        if (in != null) {
-                            IOUtils.closeQuietly(in);
-                        }
+                String url = baseUri + path;
+                queryPath = url;
+                if (params.getBool(LUX_RELOAD, false)) {
+                    moduleCache.clear();
+                    solrIndexConfig.getCompiler().invalidateQueryCache();
+                }
+                ModuleCache.Module module = moduleCache.get(url);
+                if (module != null && ! module.isCurrent()) {
+                    moduleCache.remove(url, module);
+                    if (module.hasLibraries()) {
+                        // the compiler caches queries by their text, which may be unchanged though an imported module has changed
+                        solrIndexConfig.getCompiler().invalidateQueryCache();
                     }
+                    module = null;
+                }
+                if (module == null) {
+                    module = readModule (url, resourceBase, path);
+                }
+                String contents = null;
+                if (module != null) {
+                    contents = module.getContents();
+                    req.getContext().put(ModuleCache.Module.class, module);
                 }
                 rb.setQueryString(contents);
             }
@@ -119,6 +107,92 @@ public class AppServerComponent extends XQueryComponent {
         super.prepare(rb);
     }
 
+    /**
+     * Reads a query module, and caches its contents.
+     * @param moduleUrl the resolved URL of the module
+     * @param resourceBase if not null, the module is read from the classpath, relative to this path
+     * @param path the path of the module, relative to the resourceBase, or to the base URI
+     * @return the cached module, or null if the module could not be read
+     */
+    private ModuleCache.Module readModule (String moduleUrl, String resourceBase, String path) throws IOException {
+        String contents = null;
+        // the file is stamped before it is read, so that a change made while reading it is detected later
+        ModuleCache.FileStamp stamp = null;
+        if (resourceBase != null) {
+            URL resource = AppServerComponent.class.getResource(resourceBase + path);
+            if (resource == null) {
+                throw new SolrException (ErrorCode.NOT_FOUND, moduleUrl + " not found");
+            }
+            if (resource.getProtocol().equals("file")) {
+                // an unpacked resource may be modified, and is revalidated like any other file
+                stamp = new ModuleCache.FileStamp(new File(resource.getPath()));
+            }
+            InputStream in = resource.openStream();
+            try {
+                contents = IOUtils.toString(in);
+            } catch (IOException e) {
+                LoggerFactory.getLogger(AppServerComponent.class).error("An error occurred while reading " + moduleUrl, e);
+            }
+            IOUtils.closeQuietly(in);
+        } else {
+            // url provided with scheme
+            URL url = new URL (moduleUrl);
+            String scheme = url.getProtocol();
+            if (scheme.equals("lux")) {
+                // TODO implement lux: uri resolution
+                throw new SolrException (ErrorCode.NOT_FOUND, moduleUrl + " not found (actually lux: scheme is not implemented)");
+            }
+            InputStream in = null;
+            try {
+                if (url.getProtocol().equals("file")) {
+                    File f = new File(url.getPath());
+                    if (!f.exists()) {
+                        throw new SolrException (ErrorCode.NOT_FOUND, f + " not found");
+                    }
+                    if (f.isDirectory() || ! f.canRead()) {
+                        throw new SolrException (ErrorCode.FORBIDDEN, "access to " + f + " denied by rule");
+                    }
+                    stamp = new ModuleCache.FileStamp(f);
+                    in = new FileInputStream(f);
+                } else {
+                    // in = url.openStream();
+                    LoggerFactory.getLogger(AppServerComponent.class).error("URL scheme not supported: " + url.getProtocol());
+                }
+                contents = IOUtils.toString(in);
+            } catch (IOException e) {
+                LoggerFactory.getLogger(AppServerComponent.class).error("An error occurred while reading " + url, e);
+            }
+            if (in != null) {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        if (contents == null) {
+            return null;
+        }
+        return moduleCache.put(moduleUrl, contents, stamp);
+    }
+
+    /**
+     * Compiles the query module read by {@link #prepare(ResponseBuilder)}, using the Compiler's query cache,
+     * and records the library modules it imports the first time it is compiled.
+     */
+    @Override
+    protected XQueryExecutable compile (ResponseBuilder rb, Compiler compiler, String query, TransformErrorListener errorListener) throws LuxException {
+        XQueryExecutable expr = super.compile(rb, compiler, query, errorListener);
+        ModuleCache.Module module = (ModuleCache.Module) rb.req.getContext().get(ModuleCache.Module.class);
+        if (module != null && ! module.isCompiled() && module.getContents().equals(query)) {
+            module.setCompiled(expr);
+        }
+        return expr;
+    }
+
+    /**
+     * @return the cache of query modules read by this component
+     */
+    public ModuleCache getModuleCache () {
+        return moduleCache;
+    }
+
     @Override
     public String getDefaultSerialization () {
         return "html";
@@ -3,6 +3,10 @@ package lux.solr;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import lux.Evaluator;
 import lux.SearchIteratorBase;
@@ -26,6 +30,7 @@ import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.SolrIndexSearcher;
@@ -36,16 +41,29 @@ import org.apache.solr.util.SolrPluginUtils;
  * 
  * Perform distributed XQuery searches.  We mimic lazy evaluation by maintaining an iterator
  * that re-issues requests when its local cache is exhausted.  Note: deep paging may be quite expensive
- * since *all* results starting with the first must be retrieved for each page!  
+ * since *all* results starting with the first must be retrieved for each page!  To limit the number of
+ * round trips, the page size doubles with each page retrieved (up to {@link #MAX_LIMIT}), and the next page
+ * is requested in the background while the current one is consumed.  Pages that are still pending when
+ * the iterator is closed, or when the query's results have been written, are cancelled.
  * 
- * TODO: We could optimize better if we kept track of per-shard positions.  To do that we'd have to know which shard each result came from.
- * This info is held in ResponseBuilder.resultIds, which is a map from id to ShardDoc; each ShardDoc has
- * a shard id.  We can count the # of docs from each shard and calculate a position from that.
+ * Results in document order (unsorted, from the start) are retrieved from each shard separately, in
+ * parallel, and merged by docid here, so that each shard is paged through from its own position, and
+ * the results from all the shards need not be merged again for each page.
  */
 public class CloudSearchIterator extends SearchIteratorBase {
     
+    /** the greatest number of results retrieved in a single page */
+    public static final int MAX_LIMIT = 1000;
+
+    /** the greatest number of pages fetched in the background at once, by all the queries of a core */
+    public static final int PREFETCH_THREADS = 8;
+
     private int limit; // = solr 'rows'
     private SolrQueryResponse response;
+    private Future<SolrQueryResponse> nextPage;
+    private int nextPageStart;
+    private ShardCursor[] shardCursors;
+    private String[] fields;
     private final String query;
     private final QueryParser queryParser;
     private final String xmlFieldName;
@@ -84,14 +102,23 @@ public class CloudSearchIterator extends SearchIteratorBase {
     
     public long count() {
         if (response == null) {
-            this.limit = 0;
-            doCloudSearch();
+            response = doCloudSearch(position, 0, null);
+            eval.getQueryStats().docCount += getResultNumFound(response); 
         }
         return getResultNumFound(response);
     }
 
     @Override
     public NodeInfo next() throws XPathException {
+        if (shardCursors == null && response == null && sortCriteria == null && position == 0) {
+            String[] shards = ((SolrQueryContext)eval.getQueryContext()).getQueryComponent().getCurrentShards();
+            if (shards != null && shards.length > 1) {
+                openShardCursors (shards);
+            }
+        }
+        if (shardCursors != null) {
+            return nextFromShards ();
+        }
         for (;;) {
             if (response != null) {
                 if (position >= getResultNumFound(response)) {
@@ -121,20 +148,166 @@ public class CloudSearchIterator extends SearchIteratorBase {
                 }
                 // otherwise fall through and get the next page of results
             }
-            doCloudSearch();
+            nextPage ();
+        }
+    }
+
+    /*
+     * Replaces the current page of results with the next one, waiting for it if it has been prefetched,
+     * and starts to prefetch the page after that, if there are more results.
+     */
+    private void nextPage () throws XPathException {
+        if (nextPage != null && nextPageStart == position) {
+            response = getPage (nextPage);
+        } else {
+            response = doCloudSearch(position, limit, null);
+        }
+        nextPage = null;
+        long numFound = getResultNumFound(response);
+        eval.getQueryStats().docCount += numFound; 
+        int pageEnd = position + limit;
+        limit = Math.min(limit * 2, MAX_LIMIT);
+        if (pageEnd < numFound) {
+            nextPageStart = pageEnd;
+            nextPage = prefetch (pageEnd, limit, null);
+        }
+    }
+
+    private Future<SolrQueryResponse> prefetch (final int pageStart, final int rows, final String shard) {
+        SolrQueryContext context = (SolrQueryContext) eval.getQueryContext();
+        ExecutorService prefetcher = context.getQueryComponent().getSolrIndexConfig().getCloudPrefetchExecutor();
+        Future<SolrQueryResponse> page = prefetcher.submit(new Callable<SolrQueryResponse>() {
+            @Override
+            public SolrQueryResponse call() {
+                return doCloudSearch(pageStart, rows, shard);
+            }
+        });
+        // Saxon doesn't reliably close abandoned iterators, so the query context cancels any
+        // pages still pending when the query is done
+        context.addPrefetch(page);
+        return page;
+    }
+
+    private static SolrQueryResponse getPage (Future<SolrQueryResponse> page) throws XPathException {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            throw new XPathException (e);
+        } catch (ExecutionException e) {
+            throw new XPathException (e.getCause());
+        }
+    }
+
+    private void openShardCursors (String[] shards) throws XPathException {
+        shardCursors = new ShardCursor[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            shardCursors[i] = new ShardCursor (shards[i]);
+        }
+        // request the first page from every shard at once
+        for (ShardCursor cursor : shardCursors) {
+            cursor.next = prefetch (0, limit, cursor.shard);
+        }
+        for (ShardCursor cursor : shardCursors) {
+            cursor.nextPage();
+            eval.getQueryStats().docCount += cursor.numFound;
+        }
+    }
+
+    /*
+     * Returns the result with the least docid from among the next results of each shard.
+     */
+    private NodeInfo nextFromShards () throws XPathException {
+        ShardCursor least = null;
+        long leastId = 0;
+        for (ShardCursor cursor : shardCursors) {
+            SolrDocument doc = cursor.peek();
+            if (doc != null) {
+                long id = getId (doc);
+                if (least == null || id < leastId) {
+                    least = cursor;
+                    leastId = id;
+                }
+            }
+        }
+        if (least == null) {
+            return null;
+        }
+        ++position;
+        return createDocument (least.docs.get(least.index++));
+    }
+
+    /*
+     * The results from a single shard, in docid order.
+     */
+    private class ShardCursor {
+        private final String shard;
+        private SolrDocumentList docs;
+        private int index;
+        private int rows;
+        private long numFound;
+        private Future<SolrQueryResponse> next;
+
+        ShardCursor (String shard) {
+            this.shard = shard;
+            rows = limit;
+        }
+
+        /*
+         * @return the next result from the shard, without consuming it, or null if there are no more.
+         */
+        SolrDocument peek () throws XPathException {
+            if (docs == null) {
+                return null;
+            }
+            if (index >= docs.size()) {
+                if (next == null) {
+                    return null;
+                }
+                nextPage ();
+                if (docs.isEmpty()) {
+                    return null;
+                }
+            }
+            return docs.get(index);
+        }
+
+        void nextPage () throws XPathException {
+            SolrQueryResponse rsp = getPage (next);
+            next = null;
+            Object results = rsp.getValues().get("response");
+            if (! (results instanceof SolrDocumentList)) {
+                throw new XPathException ("Solr query response unexpectedly of type " + 
+                            (results == null ? "null" : results.getClass().getName()));
+            }
+            docs = (SolrDocumentList) results;
+            index = 0;
+            numFound = docs.getNumFound();
+            long pageEnd = docs.getStart() + docs.size();
+            if (pageEnd < numFound && ! docs.isEmpty()) {
+                rows = Math.min(rows * 2, MAX_LIMIT);
+                next = prefetch ((int) pageEnd, rows, shard);
+            }
         }
     }
     
     private NodeInfo getNextDocument (SolrDocumentList docs) {
         // FIXME: test pagination I think there is a bug here if w/start > 0?
-        SolrDocument doc = docs.get(position++ - (int) docs.getStart());
-        String uri = (String) doc.getFirstValue(uriFieldName);
-        Object oxml = doc.getFirstValue(xmlFieldName);
+        return createDocument (docs.get(position++ - (int) docs.getStart()));
+    }
+
+    private long getId (SolrDocument doc) {
         Long id = (Long) doc.getFirstValue(idFieldName);
         if (id == null) {
             // try to support migrating an old index?
             throw new LuxException("This index has no lux docids: it cannot support Lux on Solr Cloud");
         }
+        return id;
+    }
+
+    private NodeInfo createDocument (SolrDocument doc) {
+        String uri = (String) doc.getFirstValue(uriFieldName);
+        Object oxml = doc.getFirstValue(xmlFieldName);
+        long id = getId (doc);
         String xml = (String) ((oxml instanceof String) ? oxml : null);
         byte [] bytes = (byte[]) ((oxml instanceof byte[]) ? oxml : null);
         XdmNode node = eval.getDocReader().createXdmNode(id, uri, xml, bytes);
@@ -143,20 +316,25 @@ public class CloudSearchIterator extends SearchIteratorBase {
         return docNode;
     }
 
-    /* Make a new query request, using this.query, start calculated based on the passed-in responseBuilder
-     * sorting based on sortCriteria, and fields=lux_xml.  Also: if rb asks for debug, pass that along
+    /* Make a new query request, using this.query, the given start and rows, sorting based on sortCriteria,
+     * and fields=lux_xml etc.  Also: if rb asks for debug, pass that along.  The request is sent to the given shard,
+     * or if null, to all the shards of the original request.  This may be called on a prefetching thread.
      */
-    private void doCloudSearch () {
+    private SolrQueryResponse doCloudSearch (int pageStart, int rows, String shard) {
         ResponseBuilder origRB = ((SolrQueryContext)eval.getQueryContext()).getResponseBuilder();
         ModifiableSolrParams params = new ModifiableSolrParams();
         params.add((CommonParams.Q), query);
         if (QueryParser.XML == queryParser) {
             params.add("defType", "xml");
         }
-        params.add(CommonParams.START, Integer.toString(position));
-        params.add(CommonParams.ROWS, Integer.toString(limit));
-        //params.add(CommonParams.FL, uriFieldName, xmlFieldName, idFieldName);
-        params.add(CommonParams.FL, "*");
+        params.add(CommonParams.START, Integer.toString(pageStart));
+        params.add(CommonParams.ROWS, Integer.toString(rows));
+        if (fields == null) {
+            // lux:key() reads the values of stored fields from the retrieved documents
+            params.add(CommonParams.FL, "*");
+        } else {
+            params.add(CommonParams.FL, fields);
+        }
 
         SolrParams origParams = origRB.req.getParams();
         String debug = origParams.get(CommonParams.DEBUG);
@@ -164,18 +342,33 @@ public class CloudSearchIterator extends SearchIteratorBase {
             params.add(CommonParams.DEBUG, debug);
         }
         params.add("distrib", "true");
-        params.add("shards", origParams.get("shards"));
-        SortSpec sortSpec = makeSortSpec();
+        params.add("shards", shard != null ? shard : origParams.get("shards"));
+        SortSpec sortSpec = makeSortSpec(pageStart, rows);
         addSortParam (params, sortSpec);
         XQueryComponent xqueryComponent = ((SolrQueryContext)eval.getQueryContext()).getQueryComponent();
         SolrQueryRequest req = new CloudQueryRequest(xqueryComponent.getCore(), params, sortSpec);
-        response = new SolrQueryResponse();
-        xqueryComponent.getSearchHandler().handleRequest(req, response);
-        eval.getQueryStats().docCount += getResultNumFound(response); 
+        SolrQueryResponse rsp = new SolrQueryResponse();
+        boolean setRequestInfo = SolrRequestInfo.getRequestInfo() == null;
+        if (setRequestInfo) {
+            // on a prefetching thread
+            SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+        }
+        try {
+            xqueryComponent.getSearchHandler().handleRequest(req, rsp);
+        } finally {
+            if (setRequestInfo) {
+                SolrRequestInfo.clearRequestInfo();
+            }
+            req.close();
+        }
+        if (rsp.getException() != null) {
+            throw new LuxException ("An error occurred while searching for " + query, rsp.getException());
+        }
+        return rsp;
     }
     
     private long getResultNumFound (SolrQueryResponse rsp) {
-        Object docs = response.getValues().get("response");
+        Object docs = rsp.getValues().get("response");
         if (docs != null) {
             if (docs instanceof DocList) {
                 return ((DocList)docs).matches();
@@ -216,7 +409,7 @@ public class CloudSearchIterator extends SearchIteratorBase {
         return effectiveCriteria; 
     }
 
-    private SortSpec makeSortSpec () {
+    private SortSpec makeSortSpec (int pageStart, int rows) {
         Sort sort;
         // add the uri field as a fallback sorting criterion to enforce a consistent
         // document order
@@ -226,18 +419,52 @@ public class CloudSearchIterator extends SearchIteratorBase {
             //sort = new Sort (SortField.FIELD_SCORE, new SortField(uriFieldName, Type.STRING));
             sort = new Sort (new SortField(idFieldName, Type.LONG));
         }
-        return new SortSpec (sort, position, limit);
+        return new SortSpec (sort, pageStart, rows);
     }
     
     /**
-     * @param limit the maximum number of results to retrieve per batch
+     * Cancels any pages that are being fetched in the background.  Searches that have already been
+     * sent are allowed to complete, since interrupting them could close the index files they are reading.
+     */
+    @Override
+    public void close () {
+        if (nextPage != null) {
+            nextPage.cancel(false);
+            nextPage = null;
+        }
+        if (shardCursors != null) {
+            for (ShardCursor cursor : shardCursors) {
+                if (cursor.next != null) {
+                    cursor.next.cancel(false);
+                    cursor.next = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Restricts the stored fields retrieved for each result to the uri, xml and id fields, and the given fields.
+     * By default all stored fields are retrieved, since lux:key() may read any of them from the results.
+     * @param fieldNames the names of any additional fields to retrieve
+     */
+    public void setFields (String ... fieldNames) {
+        fields = new String[fieldNames.length + 3];
+        fields[0] = uriFieldName;
+        fields[1] = xmlFieldName;
+        fields[2] = idFieldName;
+        System.arraycopy(fieldNames, 0, fields, 3, fieldNames.length);
+    }
+
+    /**
+     * @param limit the number of results to retrieve in the first batch; the number doubles with each subsequent batch,
+     * up to {@link #MAX_LIMIT}
      */
     public void setLimit (int limit) {
         this.limit = limit;
     }
     
     /**
-     * @return the maximum number of results to retrieve per batch
+     * @return the number of results to retrieve in the next batch
      */
     public int getLimit () {
         return limit;
@@ -2,8 +2,11 @@ package lux.solr;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
 
+import net.sf.saxon.s9api.XdmItem;
+
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.util.NamedList;
@@ -18,6 +21,8 @@ import org.apache.solr.response.SolrQueryResponse;
  *  of nodes: default is html.  Output is always serialized as utf-8.
  *
  *  lux.xml-xsl-stylesheet
+ *
+ *  When the results are provided as a {@link ResultStream}, they are evaluated and serialized as they are written.
  */
 public class LuxResponseWriter implements QueryResponseWriter {
 
@@ -45,7 +50,14 @@ public class LuxResponseWriter implements QueryResponseWriter {
         List<String> errors = response.getValues().getAll("xpath-error");
         String contentType = getContentType (request, response);
         NamedList<?> values = (NamedList<?>) response.getValues().get("xpath-results");
-        if (values == null && !errors.isEmpty()) {
+        ResultStream resultStream = (ResultStream) response.getValues().get(ResultStream.RESULT_STREAM);
+        if (resultStream != null) {
+            try {
+                writeResultStream (writer, resultStream, errors, contentType, xsl);
+            } finally {
+                resultStream.close();
+            }
+        } else if (values == null && !errors.isEmpty()) {
             StringBuilder buf = new StringBuilder();
             for (String e : errors) {
                 buf.append(e).append("\n");
@@ -75,21 +87,57 @@ public class LuxResponseWriter implements QueryResponseWriter {
                     Object val = values.getVal(i);
                     writer.write(val.toString());
                 }
-                if (!errors.isEmpty()) {
-                    writer.write("<errors>");
-                    for (String error : errors) {
-                        writer.write("<error>");
-                        writer.write(error.replace("&", "&amp;"). replace("<", "&lt;"));
-                        writer.write("</error>");
-                    }
-                    writer.write("</errors>");
-                }
+                writeErrors(writer, errors);
                 if (wrapResults) {
                     writer.write("</results>");
                 }
             }
         }
     }
+
+    private void writeResultStream (Writer writer, ResultStream results, List<String> errors, String contentType, String xsl) throws IOException {
+        if (xsl != null) {
+            writer.write("<?xml-stylesheet type='text/xsl' href='" + xsl + "' ?>\n");
+        }
+        // look ahead far enough to decide whether to wrap the results
+        XdmItem first = results.next();
+        XdmItem second = first == null ? null : results.next();
+        boolean wrapResults = isXML(contentType) &&
+                (second != null || ! errors.isEmpty() || results.getError() != null ||
+                ! ResultStream.isDocumentOrElement(first));
+        if (wrapResults) {
+            writer.write("<results>");
+        }
+        if (first != null) {
+            results.write(first, writer);
+        }
+        XdmItem item = second;
+        while (item != null) {
+            results.write(item, writer);
+            item = results.next();
+        }
+        String error = results.getError();
+        if (error != null) {
+            errors = new ArrayList<String>(errors);
+            errors.add(error);
+        }
+        writeErrors(writer, errors);
+        if (wrapResults) {
+            writer.write("</results>");
+        }
+    }
+
+    private void writeErrors (Writer writer, List<String> errors) throws IOException {
+        if (!errors.isEmpty()) {
+            writer.write("<errors>");
+            for (String error : errors) {
+                writer.write("<error>");
+                writer.write(error.replace("&", "&amp;"). replace("<", "&lt;"));
+                writer.write("</error>");
+            }
+            writer.write("</errors>");
+        }
+    }
     
     private boolean isXML (String contentType) {
         return contentType.endsWith ("xml") || contentType.contains("xml; charset=");
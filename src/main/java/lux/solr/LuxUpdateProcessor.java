@@ -2,7 +2,6 @@ package lux.solr;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.nio.charset.Charset;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -10,6 +9,7 @@ import lux.index.FieldRole;
 import lux.index.IndexConfiguration;
 import lux.index.XmlIndexer;
 import lux.index.field.FieldDefinition;
+import lux.index.field.TinyBinaryField;
 import lux.xml.tinybin.TinyBinary;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.om.NodeInfo;
@@ -71,7 +71,8 @@ public class LuxUpdateProcessor extends UpdateRequestProcessor {
                     if (xml instanceof String) {
                         xmlIndexer.index (new StringReader((String) xml), uri);
                     } else if (xml instanceof byte[]) {
-                        TinyBinary xmlbin = new TinyBinary ((byte[]) xml, Charset.forName("utf-8"));
+                        // sent by SolrDocWriter: index the document directly, without parsing
+                        TinyBinary xmlbin = new TinyBinary ((byte[]) xml, TinyBinaryField.UTF8);
                         xmlIndexer.index(xmlbin.getTinyDocument(saxonConfig), uri);
                     } else if (xml instanceof NodeInfo) {
                         xmlIndexer.index((NodeInfo) xml, uri);
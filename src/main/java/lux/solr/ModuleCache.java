@@ -0,0 +1,172 @@
+package lux.solr;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.saxon.query.QueryModule;
+import net.sf.saxon.s9api.XQueryExecutable;
+
+/**
+ * Caches the source of the query modules served by {@link AppServerComponent}, keyed by their resolved URLs,
+ * so that a module requested repeatedly is not read again.  The compiled form of each module is cached by the
+ * {@link lux.Compiler}, keyed by its source, so it is not compiled again either.
+ * Modules read from files are revalidated on each request by comparing the modification time and size of the
+ * module's file, and of the files of any library modules it imports, with those recorded when it was read and compiled.
+ * Modules read from a jar on the classpath are retained until the cache is cleared.
+ */
+public class ModuleCache {
+
+    private final ConcurrentHashMap<String, Module> modules = new ConcurrentHashMap<String, Module>();
+
+    /**
+     * @param url the resolved URL of a module
+     * @return the cached module, or null if there is none.  The module may be out of date; see {@link Module#isCurrent()}.
+     */
+    public Module get (String url) {
+        return modules.get(url);
+    }
+
+    /**
+     * Caches the source of a module.
+     * @param url the resolved URL of the module
+     * @param contents the module's source
+     * @param file the file from which the module was read, or null if it was not read from a file
+     * @return the cached module
+     */
+    public Module put (String url, String contents, File file) {
+        return put (url, contents, file == null ? null : new FileStamp(file));
+    }
+
+    /**
+     * Caches the source of a module.
+     * @param url the resolved URL of the module
+     * @param contents the module's source
+     * @param stamp the state of the file from which the module was read, taken before it was read, or null
+     * if it was not read from a file
+     * @return the cached module
+     */
+    Module put (String url, String contents, FileStamp stamp) {
+        Module module = new Module (contents, stamp);
+        modules.put(url, module);
+        return module;
+    }
+
+    /**
+     * Removes a module from the cache, unless it has already been replaced by another.
+     * @param url the resolved URL of the module
+     * @param module the module to remove
+     */
+    public void remove (String url, Module module) {
+        modules.remove(url, module);
+    }
+
+    /** removes all the modules from the cache */
+    public void clear () {
+        modules.clear();
+    }
+
+    /** @return the number of cached modules */
+    public int size () {
+        return modules.size();
+    }
+
+    /**
+     * A cached query module: its source, together with the files from which it (and, once it has been compiled,
+     * any library modules it imports) were read.
+     */
+    public static class Module {
+
+        private final String contents;
+        private final FileStamp stamp;
+        private volatile List<FileStamp> libraries;
+
+        Module (String contents, FileStamp stamp) {
+            this.contents = contents;
+            this.stamp = stamp;
+        }
+
+        /** @return the source of the module */
+        public String getContents () {
+            return contents;
+        }
+
+        /** @return whether the library modules imported by the module have been recorded */
+        public boolean isCompiled () {
+            return libraries != null;
+        }
+
+        /**
+         * Records the files of the library modules imported by the module.  The compiled module itself is not
+         * retained, since it becomes stale when the Compiler's query cache is invalidated.
+         * @param executable the compiled module
+         */
+        public void setCompiled (XQueryExecutable executable) {
+            ArrayList<FileStamp> stamps = new ArrayList<FileStamp>();
+            Iterator<?> imported = executable.getUnderlyingCompiledQuery().getExecutable().getQueryLibraryModules();
+            while (imported.hasNext()) {
+                String systemId = ((QueryModule) imported.next()).getSystemId();
+                if (systemId != null && systemId.startsWith("file:")) {
+                    stamps.add(new FileStamp(new File(URI.create(systemId))));
+                }
+            }
+            libraries = stamps;
+        }
+
+        /**
+         * @return whether the module imports any library modules read from files
+         */
+        public boolean hasLibraries () {
+            List<FileStamp> libs = libraries;
+            return libs != null && ! libs.isEmpty();
+        }
+
+        /**
+         * @return whether the files from which the module, and the library modules it imports, were read remain
+         * unchanged since they were read.
+         */
+        public boolean isCurrent () {
+            if (stamp != null && ! stamp.isCurrent()) {
+                return false;
+            }
+            List<FileStamp> libs = libraries;
+            if (libs != null) {
+                for (FileStamp lib : libs) {
+                    if (! lib.isCurrent()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records the modification time and size of a file.
+     */
+    static class FileStamp {
+
+        private final File file;
+        private final long lastModified;
+        private final long length;
+
+        FileStamp (File file) {
+            this.file = file;
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+
+        /** @return whether the file's modification time and size are unchanged; false if the file no longer exists */
+        boolean isCurrent () {
+            return file.exists() && file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,185 @@
+package lux.solr;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import javax.xml.transform.TransformerException;
+
+import lux.Evaluator;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.AtomicValue;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * The results of an XQuery evaluation that are evaluated lazily, and serialized directly to the response
+ * as they are written by {@link LuxResponseWriter}, rather than being accumulated in memory as strings.
+ * {@link XQueryComponent} creates one of these in place of its usual "xpath-results" when the
+ * lux.streaming parameter is true and the response is written by a LuxResponseWriter.
+ *
+ * <p>Since evaluation continues while the response is being written, errors that occur after the first
+ * result has been produced are reported at the end of the response, rather than as an HTTP error status.</p>
+ */
+public class ResultStream {
+
+    /** The name under which the stream is stored in the Solr response */
+    public static final String RESULT_STREAM = "xpath-result-stream";
+
+    private final XQueryComponent component;
+    private final Evaluator eval;
+    private final String query;
+    private final Serializer serializer;
+    private final SolrQueryContext context;
+    private final Iterator<XdmItem> results;
+    private final int maxResults;
+    private final long deadline;
+    private XdmItem pending;
+    private int count;
+    private String error;
+    private boolean closed;
+
+    /**
+     * @param component the component that evaluated the query
+     * @param eval the evaluator that is evaluating the query
+     * @param query the query, used to report errors
+     * @param serializer a serializer, checked out of the component's pool; it is returned when this stream is closed
+     * @param context the query context
+     * @param first the first result, which has already been evaluated
+     * @param results the remaining results
+     * @param maxResults the maximum number of results to write, or 0 if there is no limit
+     * @param deadline the time (in ms) after which no further results will be written, or 0 if there is no limit
+     */
+    ResultStream (XQueryComponent component, Evaluator eval, String query, Serializer serializer, SolrQueryContext context,
+            XdmItem first, Iterator<XdmItem> results, int maxResults, long deadline) {
+        this.component = component;
+        this.eval = eval;
+        this.query = query;
+        this.serializer = serializer;
+        this.context = context;
+        this.pending = first;
+        this.results = results;
+        this.maxResults = maxResults;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the next result, or null if there are no more results, or if the limit on the number
+     * of results, or on the time allowed, has been reached.
+     */
+    public XdmItem next () {
+        if (pending != null) {
+            XdmItem item = pending;
+            pending = null;
+            ++count;
+            return item;
+        }
+        if (error != null || (maxResults > 0 && count >= maxResults) ||
+                (deadline > 0 && System.currentTimeMillis() > deadline)) {
+            return null;
+        }
+        try {
+            if (! results.hasNext()) {
+                return null;
+            }
+            ++count;
+            return results.next();
+        } catch (RuntimeException e) {
+            // the query may fail in any way while it is evaluated lazily
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+            return null;
+        }
+    }
+
+    /**
+     * Serializes a single result.  Nodes are serialized using the stream's serializer, and atomic values
+     * are written in the same form as their buffered (Java) equivalents.
+     * @param item the result to write
+     * @param writer the response writer
+     * @throws IOException if there is an error writing
+     */
+    public void write (XdmItem item, Writer writer) throws IOException {
+        if (item.isAtomicValue()) {
+            AtomicValue value = (AtomicValue) ((XdmAtomicValue) item).getUnderlyingValue();
+            try {
+                writer.write(XQueryComponent.toJavaValue(value).toString());
+            } catch (XPathException e) {
+                writer.write(value.toString());
+            }
+            return;
+        }
+        // Saxon flushes and closes its output when it finishes serializing; the response writer must stay open,
+        // and needn't be flushed after every result
+        serializer.setOutputWriter(new FilterWriter(writer) {
+            @Override public void flush () { }
+            @Override public void close () { }
+        });
+        try {
+            serializer.serializeNode((XdmNode) item);
+        } catch (SaxonApiException e) {
+            error = e.getMessage();
+        } catch (RuntimeException e) {
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+        }
+    }
+
+    /**
+     * @param item a result
+     * @return whether the result is an element or a document node, which may be written without being
+     * wrapped in an enclosing element.
+     */
+    public static boolean isDocumentOrElement (XdmItem item) {
+        if (item == null || item.isAtomicValue()) {
+            return false;
+        }
+        XdmNodeKind kind = ((XdmNode) item).getNodeKind();
+        return kind == XdmNodeKind.DOCUMENT || kind == XdmNodeKind.ELEMENT;
+    }
+
+    /**
+     * @return an error message describing all the errors that have occurred so far, or null if there were none
+     */
+    public String getError () {
+        ArrayList<TransformerException> errors = eval.getErrorListener().getErrors();
+        if (! errors.isEmpty()) {
+            return component.formatError(query, errors, eval.getQueryStats());
+        }
+        return error;
+    }
+
+    /**
+     * Cancels any results still being fetched in the background, logs the number of documents found,
+     * makes any commit requested by the query, unless an error occurred, and returns the serializer to its pool.
+     * This must be called once the stream has been written.
+     */
+    public void close () {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            context.cancelPrefetches();
+            // the response has been written, so this is the only place the final count can be reported
+            LoggerFactory.getLogger(ResultStream.class).debug("streamed: {} results, {} docs found",
+                    count, eval.getQueryStats().docCount);
+            if (getError() == null && context.isCommitPending()) {
+                component.doCommit();
+            }
+        } finally {
+            component.solrIndexConfig.returnSerializer(serializer);
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -11,11 +11,14 @@ import lux.exception.LuxException;
 import lux.index.FieldRole;
 import lux.index.IndexConfiguration;
 import lux.index.XmlIndexer;
+import lux.index.field.TinyBinaryField;
+import lux.index.field.TinyBinarySolrField;
 import lux.xml.tinybin.TinyBinary;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.tiny.TinyDocumentImpl;
 import net.sf.saxon.tree.tiny.TinyNodeImpl;
 
 import org.apache.solr.client.solrj.request.UpdateRequest;
@@ -60,17 +63,12 @@ public class SolrDocWriter implements DocWriter {
         SolrInputDocument solrDoc = new SolrInputDocument();
         solrDoc.addField(uriFieldName, uri);
         if (isCloud()) {
-            // TODO: write as binary, but we need to enable the binary update request writer for this
-            // TinyBinary tinybin = new TinyBinary(((TinyNodeImpl)node).getTree());
-            // solrDoc.addField(xmlFieldName, tinybin.getByteBuffer().array());
-            Serializer serializer = xqueryComponent.solrIndexConfig.checkoutSerializer();
-            try {
-                String xmlString = serializer.serializeNodeToString(new XdmNode(node));
-                solrDoc.addField(xmlFieldName,  xmlString);
-            } catch (SaxonApiException e) {
-                throw new LuxException (e);
-            } finally {
-                xqueryComponent.solrIndexConfig.returnSerializer(serializer);
+            if (node instanceof TinyDocumentImpl) {
+                // Distributed updates are sent using javabin, which carries the bytes as they are;
+                // LuxUpdateProcessor indexes the decoded document without re-parsing it.
+                solrDoc.addField(xmlFieldName, TinyBinarySolrField.getBytes(new TinyBinary(((TinyDocumentImpl) node).getTree(), TinyBinaryField.UTF8)));
+            } else {
+                writeXmlString (solrDoc, node);
             }
             // TODO -- if we can determine this doc only gets added locally??
             // solrDoc.addField(xmlFieldName, node);
@@ -91,6 +89,18 @@ public class SolrDocWriter implements DocWriter {
         }
     }
 
+    private void writeXmlString (SolrInputDocument solrDoc, NodeInfo node) {
+        Serializer serializer = xqueryComponent.solrIndexConfig.checkoutSerializer();
+        try {
+            String xmlString = serializer.serializeNodeToString(new XdmNode(node));
+            solrDoc.addField(xmlFieldName,  xmlString);
+        } catch (SaxonApiException e) {
+            throw new LuxException (e);
+        } finally {
+            xqueryComponent.solrIndexConfig.returnSerializer(serializer);
+        }
+    }
+
     private void writeToCloud (SolrInputDocument solrDoc, String uri) {
         ArrayList<String> urls = xqueryComponent.getShardURLs(true);
         LoggerFactory.getLogger(getClass()).debug ("writing " + uri + " to cloud at " + urls); 
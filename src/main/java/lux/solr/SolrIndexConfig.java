@@ -7,8 +7,15 @@ import java.net.URL;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lux.Compiler;
+import lux.cache.DocumentCache;
+import lux.cache.LRUCache;
 import lux.exception.LuxException;
 import lux.index.FieldRole;
 import lux.index.IndexConfiguration;
@@ -28,6 +35,8 @@ import org.apache.lucene.document.Field.Store;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.core.SolrInfoMBean;
@@ -56,6 +65,7 @@ public class SolrIndexConfig implements SolrInfoMBean {
     private ArrayBlockingQueue<XmlIndexer> indexerPool;
     private ArrayBlockingQueue<Serializer> serializerPool;
     private IndexSchema schema;
+    private ThreadPoolExecutor cloudPrefetchExecutor;
     private final Logger logger;
     
     public SolrIndexConfig (final IndexConfiguration indexConfig, NamedList<?> args) {
@@ -67,6 +77,28 @@ public class SolrIndexConfig implements SolrInfoMBean {
             applySolrConfig(args);
         }
         compiler = new Compiler (indexConfig);
+        if (args != null) {
+            Object queryCacheSize = args.get("query-cache-size");
+            if (queryCacheSize != null) {
+                compiler.getQueryCache().setMaxSize(Integer.parseInt(queryCacheSize.toString()));
+            }
+            Object xsltCacheSize = args.get("xslt-cache-size");
+            if (xsltCacheSize != null) {
+                compiler.getXsltCache().setMaxSize(Integer.parseInt(xsltCacheSize.toString()));
+            }
+            Object evalCacheSize = args.get("eval-cache-size");
+            if (evalCacheSize != null) {
+                compiler.getEvalCache().setMaxSize(Integer.parseInt(evalCacheSize.toString()));
+            }
+            Object documentCacheSize = args.get("document-cache-size");
+            if (documentCacheSize != null) {
+                compiler.getDocumentCache().setMaxBytes(Long.parseLong(documentCacheSize.toString()));
+            }
+            Object searchThreads = args.get("search-threads");
+            if (searchThreads != null) {
+                compiler.setSearchThreads(Integer.parseInt(searchThreads.toString()));
+            }
+        }
     }
     
     public Compiler getCompiler () {
@@ -101,10 +133,46 @@ public class SolrIndexConfig implements SolrInfoMBean {
     }
     
     public void returnSerializer (Serializer doneWithIt) {
+        // the serialization method is set by each request; the destination may hold on to a response
+        doneWithIt.setOutputProperty(Serializer.Property.METHOD, null);
+        doneWithIt.setOutputWriter(null);
         serializerPool.offer(doneWithIt);
         // if the pool was full, we just drop the serializer
     }
     
+    /**
+     * @return the executor that fetches pages of distributed search results in the background, using up to
+     * {@link CloudSearchIterator#PREFETCH_THREADS} threads, which are discarded when idle.  When all the threads
+     * are busy, and its queue is full, pages are fetched by the thread that requests them.
+     */
+    public synchronized ExecutorService getCloudPrefetchExecutor () {
+        if (cloudPrefetchExecutor == null) {
+            int threads = CloudSearchIterator.PREFETCH_THREADS;
+            cloudPrefetchExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread (r, "lux-cloud-prefetch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            cloudPrefetchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return cloudPrefetchExecutor;
+    }
+
+    /**
+     * Stops the threads that fetch distributed search results in the background.  Called when the core is closed.
+     */
+    public synchronized void shutdown () {
+        if (cloudPrefetchExecutor != null) {
+            cloudPrefetchExecutor.shutdownNow();
+            cloudPrefetchExecutor = null;
+        }
+    }
+
     public static SolrIndexConfig registerIndexConfiguration (SolrCore core) {
         // Read the init args from the LuxUpdateProcessorFactory's configuration
         NamedList<?> initArgs = null;
@@ -127,6 +195,16 @@ public class SolrIndexConfig implements SolrInfoMBean {
             indexConfig = SolrIndexConfig.makeIndexConfiguration(options, initArgs, configName);
             indexConfig.inform(core);
             core.getInfoRegistry().put(configName, indexConfig);
+            final SolrIndexConfig config = indexConfig;
+            core.addCloseHook(new CloseHook() {
+                @Override
+                public void preClose(SolrCore closing) {
+                }
+                @Override
+                public void postClose(SolrCore closed) {
+                    config.shutdown();
+                }
+            });
         }
         return indexConfig;
     }
@@ -139,6 +217,12 @@ public class SolrIndexConfig implements SolrInfoMBean {
             if ("yes".equals(args.get("namespace-aware"))) {
                 options |= NAMESPACE_AWARE;
             }
+            if ("yes".equals(args.get("single-pass"))) {
+                options |= SINGLE_PASS;
+            }
+            if ("yes".equals(args.get("compute-offsets"))) {
+                options |= COMPUTE_OFFSETS;
+            }
             Object format = args.get("xml-format");
             if (format != null) {
             	if ("tiny".equals(format)) {
@@ -444,7 +528,32 @@ public class SolrIndexConfig implements SolrInfoMBean {
 
     @Override
     public NamedList<?> getStatistics() {
-        return null;
+        NamedList<Object> stats = new SimpleOrderedMap<Object>();
+        addCacheStatistics (stats, "queryCache", compiler.getQueryCache());
+        addCacheStatistics (stats, "xsltCache", compiler.getXsltCache());
+        addCacheStatistics (stats, "evalCache", compiler.getEvalCache());
+        DocumentCache documentCache = compiler.getDocumentCache();
+        long hits = documentCache.getHits();
+        long lookups = hits + documentCache.getMisses();
+        stats.add("documentCache.lookups", lookups);
+        stats.add("documentCache.hits", hits);
+        stats.add("documentCache.hitratio", lookups == 0 ? 0.0f : ((float) hits) / lookups);
+        stats.add("documentCache.evictions", documentCache.getEvictions());
+        stats.add("documentCache.size", documentCache.size());
+        stats.add("documentCache.bytes", documentCache.getBytes());
+        stats.add("documentCache.maxBytes", documentCache.getMaxBytes());
+        return stats;
+    }
+    
+    private static void addCacheStatistics (NamedList<Object> stats, String name, LRUCache<?,?> cache) {
+        long hits = cache.getHits();
+        long lookups = hits + cache.getMisses();
+        stats.add(name + ".lookups", lookups);
+        stats.add(name + ".hits", hits);
+        stats.add(name + ".hitratio", lookups == 0 ? 0.0f : ((float) hits) / lookups);
+        stats.add(name + ".evictions", cache.getEvictions());
+        stats.add(name + ".size", cache.size());
+        stats.add(name + ".maxSize", cache.getMaxSize());
     }
     
 }
@@ -1,5 +1,9 @@
 package lux.solr;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Future;
+
 import javax.servlet.http.HttpServletRequest;
 
 import lux.QueryContext;
@@ -23,6 +27,8 @@ public class SolrQueryContext extends QueryContext {
     
     private boolean commitPending;
 
+    private final ArrayList<Future<?>> prefetches = new ArrayList<Future<?>>();
+
     public SolrQueryContext(XQueryComponent xQueryComponent, SolrQueryRequest req) {
         this.queryComponent = xQueryComponent;
         this.req = req;
@@ -56,4 +62,30 @@ public class SolrQueryContext extends QueryContext {
     public void setCommitPending(boolean commitPending) {
         this.commitPending = commitPending;
     }
+
+    /**
+     * Records a task that fetches results in the background, so that it may be cancelled if the results
+     * are never consumed.
+     * @param prefetch the task
+     */
+    public synchronized void addPrefetch (Future<?> prefetch) {
+        Iterator<Future<?>> it = prefetches.iterator();
+        while (it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        prefetches.add(prefetch);
+    }
+
+    /**
+     * Cancels any background tasks that have not yet started.  This is called once the query's results
+     * have all been written.
+     */
+    public synchronized void cancelPrefetches () {
+        for (Future<?> prefetch : prefetches) {
+            prefetch.cancel(false);
+        }
+        prefetches.clear();
+    }
 }
@@ -99,6 +99,8 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
 
     public static final String LUX_XQUERY = "lux.xquery";
     public static final String LUX_PATH_INFO = "lux.pathInfo";
+    public static final String LUX_PREFETCH = "lux.prefetch";
+    public static final String LUX_STREAMING = "lux.streaming";
     private static final QName LUX_HTTP = new QName(Evaluator.LUX_NAMESPACE, "http");
     // TODO: expose via configuration
     private static final int MAX_RESULT_SIZE = (int) (Runtime.getRuntime().maxMemory() / 32);
@@ -267,6 +269,20 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         }
     }
 
+    /**
+     * Compiles the query to be evaluated.  Subclasses may override this in order to reuse previously compiled queries.
+     * @param rb the response builder for the request
+     * @param compiler the compiler
+     * @param query the text of the query
+     * @param errorListener receives any compilation errors
+     * @return the compiled query
+     * @throws LuxException if the query could not be compiled
+     */
+    protected XQueryExecutable compile (ResponseBuilder rb, Compiler compiler, String query, TransformErrorListener errorListener) throws LuxException {
+        URI baseURI = queryPath == null ? null : java.net.URI.create(queryPath);
+        return compiler.compile(query, errorListener, baseURI, null);
+    }
+
     protected void evaluateQuery(ResponseBuilder rb, int start, int len) {
         String query = rb.getQueryString();
         SolrQueryRequest req = rb.req;
@@ -286,8 +302,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         evalHolder.set (eval);
         TransformErrorListener errorListener = eval.getErrorListener();
         try {
-            URI baseURI = queryPath == null ? null : java.net.URI.create(queryPath);
-            expr = compiler.compile(query, errorListener, baseURI, null);
+            expr = compile(rb, compiler, query, errorListener);
         } catch (LuxException ex) {
             // ex.printStackTrace();
             String err = formatError(query, errorListener);
@@ -305,6 +320,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         long tstart = System.currentTimeMillis();
         int count = 0;
         SolrQueryContext context = new SolrQueryContext(this, req);
+        context.setPrefetch(params.getInt(LUX_PREFETCH, 0));
         if (rb.shards != null && rb.req.getParams().getBool("distrib", true)) {
             // This is a distributed request; pass in the ResponseBuilder so it will be
             // available to a subquery.
@@ -314,6 +330,9 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
             slices = rb.slices;
         }
         bindRequestVariables(rb, req, expr, compiler, eval, context);
+        boolean streaming = params.getBool(LUX_STREAMING, false) && 
+                req.getCore().getQueryResponseWriter(req) instanceof LuxResponseWriter;
+        ResultStream resultStream = null;
         Iterator<XdmItem> queryResults = eval.iterator(expr, context);
         String err = null;
         while (queryResults.hasNext()) {
@@ -332,6 +351,15 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
                     break;
                 }
             }
+            if (streaming) {
+                // the remaining results will be evaluated as they are written out by the response writer
+                Serializer streamSerializer = solrIndexConfig.checkoutSerializer();
+                streamSerializer.setOutputProperty(Serializer.Property.METHOD, 
+                        serializer.getOutputProperty(Serializer.Property.METHOD));
+                resultStream = new ResultStream(this, eval, query, streamSerializer, context, 
+                        xpathResult, queryResults, len, timeAllowed > 0 ? tstart + timeAllowed : 0);
+                break;
+            }
             err = safeAddResult(xpathResults, xpathResult);
             if (err != null) {
                 xpathResult = null;
@@ -343,7 +371,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
             }
         }
         ArrayList<TransformerException> errors = eval.getErrorListener().getErrors();
-        if (!errors.isEmpty()) {
+        if (resultStream == null && !errors.isEmpty()) {
             err = formatError(query, errors, eval.getQueryStats());
             if (xpathResults.size() == 0) {
                 xpathResults = null; // throw a 400 error; don't return partial
@@ -353,15 +381,16 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         if (err != null) {
             rsp.add("xpath-error", err);
         }
-        if (rb.getResults() == null) {
-            // create a dummy doc list if previous query processing didn't retrieve any docs
-            // In distributed operation, there will be doc results, otherwise none.
-            SolrIndexSearcher.QueryResult result = new SolrIndexSearcher.QueryResult();
-            result.setDocList(new DocSlice(0, 0, null, null, eval.getQueryStats().docCount, 0));
-            rb.setResult(result);
-            rsp.add("response", rb.getResults().docList);
+        if (resultStream == null) {
+            context.cancelPrefetches();
         }
-        if (xpathResults != null) {
+        // When streaming, this counts only the documents retrieved before the first result, since the response
+        // is written before the rest are retrieved; the stream logs the final count once it has been written.
+        addDocList(rb, eval);
+        if (resultStream != null) {
+            // errors are reported, and any pending commit is made, by the stream once it has been written
+            rsp.add(ResultStream.RESULT_STREAM, resultStream);
+        } else if (xpathResults != null) {
             rsp.add("xpath-results", xpathResults);
             if (logger.isDebugEnabled()) {
                 logger.debug("retrieved: " + eval.getDocReader().getCacheMisses() + " docs, "
@@ -371,11 +400,26 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
             logger.warn ("xquery evaluation error: " + eval.getDocReader().getCacheMisses() + " docs, " +
                     "0 results, " + (System.currentTimeMillis() - tstart) + "ms");
         }
-        if (err == null && context.isCommitPending()) {
+        if (resultStream == null && err == null && context.isCommitPending()) {
             doCommit();
         }
     }
     
+    /**
+     * Creates a dummy doc list, whose size is the number of documents retrieved by the query, if previous query
+     * processing didn't retrieve any docs.  In distributed operation, there will be doc results, otherwise none.
+     * @param rb the response builder
+     * @param eval the evaluator that evaluated the query
+     */
+    void addDocList (ResponseBuilder rb, Evaluator eval) {
+        if (rb.getResults() == null) {
+            SolrIndexSearcher.QueryResult result = new SolrIndexSearcher.QueryResult();
+            result.setDocList(new DocSlice(0, 0, null, null, eval.getQueryStats().docCount, 0));
+            rb.setResult(result);
+            rb.rsp.add("response", rb.getResults().docList);
+        }
+    }
+
     protected void doCommit () {
         boolean isCloud = shards != null && shards.length > 1;
         SolrQueryRequest req  = new SolrQueryRequestBase (core, new ModifiableSolrParams()) {};
@@ -526,7 +570,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         return formatError(query, errors, null);
     }
 
-    private String formatError(String query, List<TransformerException> errors, QueryStats queryStats) {
+    String formatError(String query, List<TransformerException> errors, QueryStats queryStats) {
         StringBuilder buf = new StringBuilder();
         if (queryStats != null && queryStats.optimizedQuery != null) {
             query = queryStats.optimizedQuery;
@@ -574,42 +618,17 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
 
     protected void addResult(NamedList<Object> xpathResults, XdmItem item) throws SaxonApiException {
         if (item.isAtomicValue()) {
-            // We need to get Java primitive values that Solr knows how to
-            // marshal
             XdmAtomicValue xdmValue = (XdmAtomicValue) item;
             AtomicValue value = (AtomicValue) xdmValue.getUnderlyingValue();
             try {
                 String typeName = value.getItemType().toString();
-                Object javaValue;
+                Object javaValue = toJavaValue (value);
                 if (value instanceof DecimalValue) {
-                    javaValue = ((DecimalValue) value).getDoubleValue();
                     addResultBytes(8);
-                } else if (value instanceof QNameValue) {
-                    javaValue = ((QNameValue) value).getClarkName();
-                    addResultBytes(((String) javaValue).length() * 2); // close
-                                                                       // enough,
-                                                                       // modulo
-                                                                       // surrogates
-                } else if (value instanceof GDateValue) {
-                    if (value instanceof GMonthValue) {
-                        javaValue = ((GMonthValue) value).getPrimitiveStringValue().toString();
-                    } else if (value instanceof GYearValue) {
-                        javaValue = ((GYearValue) value).getPrimitiveStringValue().toString();
-                    } else if (value instanceof GDayValue) {
-                        javaValue = ((GDayValue) value).getPrimitiveStringValue().toString();
-                    } else if (value instanceof GMonthDayValue) {
-                        javaValue = ((GMonthDayValue) value).getPrimitiveStringValue().toString();
-                    } else if (value instanceof GYearMonthValue) {
-                        javaValue = ((GYearMonthValue) value).getPrimitiveStringValue().toString();
-                    } else {
-                        javaValue = SequenceTool.convertToJava(value);
-                    }
-                    addResultBytes(javaValue.toString().length() * 2);
                 } else {
-                    javaValue = SequenceTool.convertToJava(value);
-                    addResultBytes (javaValue.toString().length() * 2);
+                    // close enough, modulo surrogates
+                    addResultBytes(javaValue.toString().length() * 2);
                 }
-                // TODO hexBinary and base64Binary
                 xpathResults.add(typeName, javaValue);
             } catch (XPathException e) {
                 xpathResults.add(value.getPrimitiveType().getDisplayName(), value.toString());
@@ -627,6 +646,35 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         }
     }
 
+    /**
+     * @param value an atomic value
+     * @return a Java primitive value that Solr knows how to marshal
+     * @throws XPathException if the value cannot be converted
+     */
+    static Object toJavaValue (AtomicValue value) throws XPathException {
+        if (value instanceof DecimalValue) {
+            return ((DecimalValue) value).getDoubleValue();
+        }
+        if (value instanceof QNameValue) {
+            return ((QNameValue) value).getClarkName();
+        }
+        if (value instanceof GDateValue) {
+            if (value instanceof GMonthValue) {
+                return ((GMonthValue) value).getPrimitiveStringValue().toString();
+            } else if (value instanceof GYearValue) {
+                return ((GYearValue) value).getPrimitiveStringValue().toString();
+            } else if (value instanceof GDayValue) {
+                return ((GDayValue) value).getPrimitiveStringValue().toString();
+            } else if (value instanceof GMonthDayValue) {
+                return ((GMonthDayValue) value).getPrimitiveStringValue().toString();
+            } else if (value instanceof GYearMonthValue) {
+                return ((GYearMonthValue) value).getPrimitiveStringValue().toString();
+            }
+        }
+        // TODO hexBinary and base64Binary
+        return SequenceTool.convertToJava(value);
+    }
+
     private void addResultBytes(int count) {
         if (resultByteSize + count > MAX_RESULT_SIZE) {
             throw new ResourceExhaustedException("Maximum result size exceeded, returned result has been truncated");
@@ -3,51 +3,44 @@ package lux.xml;
 import java.util.Arrays;
 
 import lux.index.analysis.XmlTextTokenStream;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.tree.iter.AxisIterator;
 
 /**
- * This class stores the offsets of text nodes and character entities in serialized XML.  It is 
- * populated by {@link SaxonDocBuilder} and consumed by {@link XmlTextTokenStream}.
+ * This class stores the offsets of the text nodes of a document within its text, that is, within the
+ * concatenation of its text nodes in document order: see {@link #forText(NodeInfo)}.  It is used by
+ * {@link XmlTextTokenStream} to compute the offsets of text tokens, and to map those offsets back onto
+ * text nodes when highlighting.
  */
 public final class Offsets {
     
     private int iOffset;
-    private int iDelta;
     private int[] textOffsets;
-    private int[] deltaLocations;
-    private short[] deltas;
     
-    public Offsets () {
+    private Offsets () {
         textOffsets = new int[1024];
-        deltas = new short[1024];
-        deltaLocations = new int[1024];
-        reset ();
     }
-    
-    public void reset () {
-        iOffset = iDelta = 0;
-    }
-    
-    // store the character offsets of every character reference or entity in the document text,
-    // along with the difference between the length of the entity reference and its replacement text.
-    // eg, for an &amp; appearing at position 100, we would store (100, 4), since len('&amp;')=5, and len ('&')=1.
 
-    public void addDelta(int deltaLocation, short delta) {
-        if (iDelta >= deltas.length) {
-            deltas = Arrays.copyOf(deltas, deltas.length + 1024);
-            deltaLocations = Arrays.copyOf(deltaLocations, deltaLocations.length + 1024);
+    /**
+     * Computes the offsets of the text nodes of a document within its text.  These can be recomputed from any
+     * copy of the document, such as one retrieved from the index.
+     * @param node the document (or other node) whose descendant text nodes are to be located
+     * @return the offsets of the node's descendant text nodes
+     */
+    public static Offsets forText (NodeInfo node) {
+        Offsets offsets = new Offsets ();
+        AxisIterator texts = node.iterateAxis(AxisInfo.DESCENDANT_OR_SELF, NodeKindTest.TEXT);
+        int location = 0;
+        for (NodeInfo text = texts.next(); text != null; text = texts.next()) {
+            offsets.addOffset(location);
+            location += text.getStringValueCS().length();
         }
-        deltaLocations[iDelta] = deltaLocation;
-        deltas[iDelta++] = delta;
+        return offsets;
     }
 
-    // store the character offsets of all of the text nodes in the document: According to StAX javadocs,
-    // these will either be bytes or they will be characters, depending on whether the parser
-    // was fed a byte stream or a character stream!  However in practice we seem to get character
-    // offsets in both cases??
-    
-    public void addOffset(int characterOffset) {
-        // StAX documentation claims this may be a byte offset when fed a byte stream, but
-        // that doesn't seem to be the case?
+    private void addOffset(int characterOffset) {
         if (iOffset >= textOffsets.length) {
             textOffsets = Arrays.copyOf(textOffsets, textOffsets.length + 1024);
         }
@@ -56,37 +49,36 @@ public final class Offsets {
     
     /**
      * @param i the index of the text node
-     * @return the character location in the input character stream of i'th text node.
+     * @return the character location of the i'th text node within the text of the document
      */
     public int getTextLocation (int i) {
         return textOffsets[i];
     }
     
-    /** 
-     * A delta is stored whenever the number of characters in the output token is not the same
-     * as the number in the input character stream.
-     * @param i the index of the delta
-     * @return the character location in the input character stream of the i'th delta.
-     */
-    public int getDeltaLocation (int i) {
-        return deltaLocations[i];
-    }
-
     /**
-     * @return the number of deltas found in the input stream
+     * @return the number of text nodes whose locations are stored
      */
-    public int getDeltaCount() {
-        return iDelta;
+    public int getTextCount () {
+        return iOffset;
     }
 
     /**
-     * @param i the index of the delta
-     * @return the value of the i'th delta
+     * @param location a character location
+     * @return the index of the last text node whose location is at or before the given location, or -1
+     * if there is none
      */
-    public int getDelta(int i) {
-        return deltas[i];
+    public int getTextIndex (int location) {
+        int i = Arrays.binarySearch(textOffsets, 0, iOffset, location);
+        if (i < 0) {
+            return -i - 2;
+        }
+        // several (empty) text nodes may share a location: return the last of them
+        while (i + 1 < iOffset && textOffsets[i + 1] == location) {
+            ++i;
+        }
+        return i;
     }
-    
+
 }
 
 /*
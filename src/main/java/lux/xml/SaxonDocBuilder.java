@@ -133,14 +133,6 @@ public class SaxonDocBuilder implements StAXHandler {
             throw new LuxException(e);
         }
     }
-    
-    /**
-     * @return the offsets accumulated for the parsed document.  This class always returns null; to receive
-     * offsets, use {@link OffsetDocBuilder}.
-     */
-    public Offsets getOffsets() {
-        return null;
-    }
 
 }
 
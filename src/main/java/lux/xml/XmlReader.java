@@ -36,7 +36,8 @@ import com.ctc.wstx.api.WstxInputProperties;
  */
 public class XmlReader {
 
-    private XMLInputFactory inputFactory;
+    // Woodstox input factories are thread-safe once configured, so every reader shares the same one
+    private static XMLInputFactory inputFactory;
 
     private ArrayList<StAXHandler> handlers = new ArrayList<StAXHandler>();
     
@@ -103,7 +104,7 @@ public class XmlReader {
         read (xmlStreamReader);
     }
     
-    private XMLInputFactory getXMLInputFactory () {
+    private static synchronized XMLInputFactory getXMLInputFactory () {
         if (inputFactory == null) {
             // We require Woodstox for its superior character-offset reporting, which
             // is broken and incomplete in the default (sun) StAX parser in the Oracle JVM.
@@ -55,6 +55,7 @@ public class TinyBinary {
 	private LinkedHashMap<CharSequence, Integer> names;
 	private LinkedHashMap<CharSequence, Integer> attValues;
 	private HashMap<Integer, Integer> nameCodeMap;
+	private Charset charset;
 	private CharsetDecoder charsetDecoder;
 	private CharsetEncoder charsetEncoder;
 
@@ -77,7 +78,19 @@ public class TinyBinary {
      * and bytes.
      */
 	public TinyBinary(byte[] buf, Charset charset) {
-		this.byteBuffer = ByteBuffer.wrap(buf);
+		this(buf, 0, buf.length, charset);
+	}
+
+    /** To read a TinyTree from a region of a byte array in which characters are encoded according to the 
+     * given Charset.  The bytes are not copied.
+     * @param buf a byte array containing a binary-encoded tiny tree.
+     * @param offset the position in the array of the first byte of the tiny tree
+     * @param length the number of bytes in the tiny tree
+     * @param charset the charset that defines a mapping between characters (unicode code points)
+     * and bytes.
+     */
+	public TinyBinary(byte[] buf, int offset, int length, Charset charset) {
+		this.byteBuffer = ByteBuffer.wrap(buf, offset, length).slice();
 		int signature = byteBuffer.getInt();
 		if ((signature & 0xffffff00) != TIN0) {
 			throw new LuxException ("bytes lack TINY signature");
@@ -96,12 +109,33 @@ public class TinyBinary {
 		nsNameCount = byteBuffer.getInt();
 		attValueCount = byteBuffer.getInt();
 		if (charset != null) {
+			this.charset = charset;
 			this.charsetDecoder = charset.newDecoder();
 		}
 		// TODO: merge this w/getTinyDocument, which just picks up where this leaves off
 	}
 
+	/**
+	 * Decodes the entire document.
+	 * @param config the Saxon Configuration; its NamePool receives the document's names
+	 * @return the decoded document
+	 */
 	public TinyDocumentImpl getTinyDocument(Configuration config) {
+		return getTinyDocument(config, false);
+	}
+
+	/**
+	 * Decodes the document.  In lazy mode, only the structural arrays, names and namespaces are decoded
+	 * immediately. Text and attribute values are decoded on first access (to any text, or to any attribute value,
+	 * respectively), which saves a good deal of work when a query only inspects the document's structure, or a
+	 * few attributes.  The text is always decoded eagerly if the bytes are in a charset other than UTF-8 or UTF-16,
+	 * since then its length in bytes can't be computed without decoding.  Lazily-decoded documents retain a
+	 * reference to the underlying bytes until they are fully decoded.
+	 * @param config the Saxon Configuration; its NamePool receives the document's names
+	 * @param lazy whether to defer decoding text and attribute values
+	 * @return the decoded document
+	 */
+	public TinyDocumentImpl getTinyDocument(Configuration config, boolean lazy) {
 	    if (document != null) {
 	        return document;
 	    }
@@ -119,11 +153,6 @@ public class TinyBinary {
 		int[] attValueIndex = new int[attCount];
 		NamespaceBinding[] binding = new NamespaceBinding[nsCount];
 		AppendableCharSequence charBuffer;
-		if (charBufferLength > 65000) {
-			charBuffer = new LargeStringBuffer();
-		} else {
-			charBuffer = new FastStringBuffer(charBufferLength);
-		}
 		FastStringBuffer commentBuffer = null;
 		if (commentBufferLength > 0) {
 			commentBuffer = new FastStringBuffer(commentBufferLength);
@@ -144,23 +173,41 @@ public class TinyBinary {
 		readShortDeltas(in, depth, nodeCount);
 		byteBuffer.position(in.getPosition() - byteBuffer.arrayOffset());
 		
-		readChars(charBuffer, charBufferLength);
+		if (lazy && (charsetDecoder == null || isUTF8(charset))) {
+			charBuffer = new LazyCharBuffer(byteBuffer.duplicate(), charset, charBufferLength);
+			skipChars(charBufferLength);
+		} else {
+			charBuffer = newCharBuffer(charBufferLength);
+			readChars(byteBuffer, charsetDecoder, charBuffer, charBufferLength);
+		}
 		if (commentBufferLength > 0) {
-			readChars(commentBuffer, commentBufferLength);
+			readChars(byteBuffer, charsetDecoder, commentBuffer, commentBufferLength);
 		}
 		String[] nameTable = readStrings(nameCount, charsetDecoder);
 		String[] nsTable = readStrings(nsNameCount, charsetDecoder);
-		CharSequence[] attValueDict = readCharSequences(attValueCount, charsetDecoder);
 
 		// dereference attValue pointers
 		CharSequence[] attValue  = new CharSequence [attCount];
-		for (int i = 0; i < attCount; i++) {
-		    int idx = attValueIndex[i];
-		    if (idx == 0) {
-		    	attValue[i] = "";
-		    } else {
-		    	attValue[i] = attValueDict[idx - 1];
-		    }
+		if (lazy) {
+			LazyAttributeValues attValueDict = new LazyAttributeValues(byteBuffer.duplicate(), charset, attValueCount);
+			for (int i = 0; i < attCount; i++) {
+				int idx = attValueIndex[i];
+				if (idx == 0) {
+					attValue[i] = "";
+				} else {
+					attValue[i] = new LazyAttributeValue(attValueDict, idx - 1);
+				}
+			}
+		} else {
+			CharSequence[] attValueDict = readCharSequences(byteBuffer, attValueCount, charsetDecoder);
+			for (int i = 0; i < attCount; i++) {
+				int idx = attValueIndex[i];
+				if (idx == 0) {
+					attValue[i] = "";
+				} else {
+					attValue[i] = attValueDict[idx - 1];
+				}
+			}
 		}
 		NamePool namePool = config.getNamePool();
 		// TODO: Would it be faster to save the list of distinct nameCodes
@@ -230,16 +277,64 @@ public class TinyBinary {
 		f.set(tree, fieldValue);
 	}
 
+	private static AppendableCharSequence newCharBuffer (int len) {
+		if (len > 65000) {
+			return new LargeStringBuffer();
+		} else {
+			return new FastStringBuffer(len);
+		}
+	}
+
+	private static boolean isUTF8 (Charset charset) {
+		return charset != null && "UTF-8".equals(charset.name());
+	}
+
+	/**
+	 * advance the byte buffer past the given number of encoded characters without decoding them.
+	 * The characters must be encoded as UTF-16 (when there is no decoder), or as UTF-8.
+	 * @param len the number of (Java) characters to skip
+	 */
+	private void skipChars (int len) {
+		if (charsetDecoder == null) {
+			byteBuffer.position(byteBuffer.position() + len * 2);
+			return;
+		}
+		byte[] buf = byteBuffer.array();
+		int offset = byteBuffer.arrayOffset();
+		int pos = byteBuffer.position() + offset;
+		int nchars = 0;
+		while (nchars < len) {
+			int b = buf[pos] & 0xff;
+			if (b < 0x80) {
+				pos += 1;
+			} else if (b < 0xe0) {
+				pos += 2;
+			} else if (b < 0xf0) {
+				pos += 3;
+			} else {
+				// a supplemental character: two Java chars
+				pos += 4;
+				++nchars;
+			}
+			++nchars;
+		}
+		byteBuffer.position(pos - offset);
+	}
+
 	/**
 	 * decode character from the bytes ByteBuffer into the given Character
 	 * storage.
 	 * 
+	 * @param byteBuffer
+	 *            the encoded characters
+	 * @param charsetDecoder
+	 *            decodes the characters; if null, the characters are read as UTF-16
 	 * @param charBuffer
 	 *            the character storage
 	 * @param len
 	 *            the number of characters to decode
 	 */
-	private void readChars(AppendableCharSequence charBuffer, int len) {
+	private static void readChars(ByteBuffer byteBuffer, CharsetDecoder charsetDecoder, AppendableCharSequence charBuffer, int len) {
 		if (charsetDecoder == null) {
 			CharBuffer chars = byteBuffer.asCharBuffer();
 			chars.limit(len);
@@ -289,7 +384,7 @@ public class TinyBinary {
 		}
 	}
 
-	private CharSequence[] readCharSequences(final int count,
+	private static CharSequence[] readCharSequences(ByteBuffer byteBuffer, final int count,
 			CharsetDecoder decoder) {
 		CharSequence[] csqs = new CharSequence[count];
 		for (int i = 0; i < count; i++) {
@@ -823,7 +918,7 @@ public class TinyBinary {
 	/*
 	 * Use reflection to set value of FastStringBuffer.used since we want to write directly into its buffer
 	 */
-	private void setStringBufferUsed (FastStringBuffer buffer, int used) {
+	private static void setStringBufferUsed (FastStringBuffer buffer, int used) {
 		if (fsbUsed == null) {
 			try {
 				fsbUsed = FastStringBuffer.class.getDeclaredField ("used");
@@ -843,4 +938,174 @@ public class TinyBinary {
 		}
 	}
 
+
+	/**
+	 * A character buffer that is decoded from its bytes when its characters are first accessed.
+	 * Its length is known without decoding.
+	 */
+	static class LazyCharBuffer implements AppendableCharSequence {
+
+		private final int length;
+		private final Charset charset;
+		private ByteBuffer bytes;
+		private volatile AppendableCharSequence chars;
+
+		LazyCharBuffer (ByteBuffer bytes, Charset charset, int length) {
+			this.bytes = bytes;
+			this.charset = charset;
+			this.length = length;
+		}
+
+		private AppendableCharSequence decode () {
+			AppendableCharSequence decoded = chars;
+			if (decoded == null) {
+				synchronized (this) {
+					decoded = chars;
+					if (decoded == null) {
+						decoded = newCharBuffer(length);
+						readChars (bytes, charset == null ? null : charset.newDecoder(), decoded, length);
+						bytes = null;
+						chars = decoded;
+					}
+				}
+			}
+			return decoded;
+		}
+
+		/** @return whether the characters have been decoded */
+		public boolean isDecoded () {
+			return chars != null;
+		}
+
+		@Override
+		public int length() {
+			return chars == null ? length : chars.length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return decode().charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return decode().subSequence(start, end);
+		}
+
+		@Override
+		public void append(CharSequence csq) {
+			decode().append(csq);
+		}
+
+		@Override
+		public void setLength(int length) {
+			decode().setLength(length);
+		}
+
+		@Override
+		public String toString () {
+			return decode().toString();
+		}
+
+	}
+
+	/**
+	 * The table of distinct attribute values, decoded the first time any attribute value is accessed.
+	 */
+	static class LazyAttributeValues {
+
+		private final int count;
+		private final Charset charset;
+		private final int byteLength;
+		private ByteBuffer bytes;
+		private volatile CharSequence[] values;
+
+		LazyAttributeValues (ByteBuffer bytes, Charset charset, int count) {
+			this.bytes = bytes;
+			this.charset = charset;
+			this.count = count;
+			byteLength = bytes.remaining();
+		}
+
+		CharSequence get (int i) {
+			CharSequence[] decoded = values;
+			if (decoded == null) {
+				synchronized (this) {
+					decoded = values;
+					if (decoded == null) {
+						decoded = readCharSequences(bytes, count, charset == null ? null : charset.newDecoder());
+						bytes = null;
+						values = decoded;
+					}
+				}
+			}
+			return decoded[i];
+		}
+
+		boolean isDecoded () {
+			return values != null;
+		}
+
+		int estimatedLength () {
+			// each value is preceded by a 2-byte length
+			int chars = (byteLength - 2 * count) / (charset == null ? 2 : 1);
+			return count == 0 ? 0 : chars / count;
+		}
+	}
+
+	/**
+	 * An attribute value that refers to a {@link LazyAttributeValues} table.
+	 */
+	public static class LazyAttributeValue implements CharSequence {
+
+		private final LazyAttributeValues values;
+		private final int index;
+
+		LazyAttributeValue (LazyAttributeValues values, int index) {
+			this.values = values;
+			this.index = index;
+		}
+
+		/** @return whether the attribute values have been decoded */
+		public boolean isDecoded () {
+			return values.isDecoded();
+		}
+
+		/** @return an estimate of the value's length that does not require it to be decoded */
+		public int estimatedLength () {
+			return isDecoded() ? length() : values.estimatedLength();
+		}
+
+		@Override
+		public int length() {
+			return values.get(index).length();
+		}
+
+		@Override
+		public char charAt(int i) {
+			return values.get(index).charAt(i);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return values.get(index).subSequence(start, end);
+		}
+
+		@Override
+		public String toString () {
+			return values.get(index).toString();
+		}
+
+		@Override
+		public boolean equals (Object o) {
+			return (o instanceof LazyAttributeValue) && toString().equals(o.toString());
+		}
+
+		@Override
+		public int hashCode () {
+			return toString().hashCode();
+		}
+
+	}
+
 }
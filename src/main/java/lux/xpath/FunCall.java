@@ -54,7 +54,10 @@ public class FunCall extends AbstractExpression {
     public static final QName LUX_COUNT = new QName (LUX_NAMESPACE, "count", "lux");
     public static final QName LUX_EXISTS = new QName (LUX_NAMESPACE, "exists", "lux");
     public static final QName LUX_KEY = new QName (LUX_NAMESPACE, "key", "lux");
+    public static final QName LUX_KEYS = new QName (LUX_NAMESPACE, "keys", "lux");
     public static final QName LUX_FIELD_VALUES = new QName (LUX_NAMESPACE, "field-values", "lux");
+    public static final QName LUX_MIN_KEY = new QName (LUX_NAMESPACE, "min-key", "lux");
+    public static final QName LUX_MAX_KEY = new QName (LUX_NAMESPACE, "max-key", "lux");
     
     public static final String FN_NAMESPACE = "http://www.w3.org/2005/xpath-functions";
     public static final QName FN_ROOT = new QName (FN_NAMESPACE, "root", "fn");
@@ -84,6 +84,12 @@ public class SearchCall extends FunCall {
         } else {
             args.add(new LiteralExpression (FieldRole.LUX_DOCID));
         }
+        if (subs != null) {
+            // retain any start and limit arguments
+            for (int i = 2; i < subs.length; i++) {
+                args.add(subs[i]);
+            }
+        }
         subs = args.toArray(new AbstractExpression[args.size()]);
     }
 
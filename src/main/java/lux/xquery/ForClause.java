@@ -19,6 +19,13 @@ public class ForClause extends VariableBindingClause {
         var.setBindingContext(this);
     }
     
+    /**
+     * @return the position variable (at $n), or null if there is none
+     */
+    public Variable getPositionVariable () {
+        return pos;
+    }
+
     @Override
     public void toString(StringBuilder buf) {
         buf.append ("for ");
@@ -25,10 +25,13 @@ import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
 import org.junit.AfterClass;
 
 public abstract class BaseSearchTest {
@@ -44,6 +47,16 @@ public abstract class BaseSearchTest {
         config.addField(new XPathField("actnum", "/*/@act", null, Store.YES, Type.INT));
         config.addField(new XPathField("scnlong", "/*/@scene", null, Store.YES, Type.LONG));
         config.addField(new XPathField("actstr", "/*/@act", null, Store.YES, Type.STRING));
+        XPathField doctypeDV = new XPathField("doctype_dv", "name(/*)", null, Store.NO, Type.STRING);
+        doctypeDV.setDocValuesType(DocValuesType.SORTED);
+        config.addField(doctypeDV);
+        XPathField actnumDV = new XPathField("actnum_dv", "/*/@act", null, Store.NO, Type.INT);
+        actnumDV.setDocValuesType(DocValuesType.NUMERIC);
+        config.addField(actnumDV);
+        XPathField speakerDV = new XPathField("speaker_dv", "/SPEECH/SPEAKER", null, Store.NO, Type.STRING);
+        speakerDV.setDocValuesType(DocValuesType.SORTED_SET);
+        config.addField(speakerDV);
+        config.addField(new XPathField("speaker_lc", "/SPEECH/SPEAKER", new SimpleAnalyzer(Version.LUCENE_46), Store.YES, Type.STRING));
         config.setElementVisibility("hidden", ElementVisibility.HIDDEN);
         config.setElementVisibility("name", ElementVisibility.TRANSPARENT);
         config.setElementVisibility("LINE", ElementVisibility.TRANSPARENT);
@@ -171,7 +184,9 @@ public abstract class BaseSearchTest {
             assertEquals ("incorrect document result count", docCount.intValue(), stats.docCount);
         }
         if (cacheMisses != null) {
-            assertEquals ("incorrect cache misses count", cacheMisses.intValue(), eval.getDocReader().getCacheMisses());            
+            // documents may be found in the shared cache, having been read by some other query
+            assertEquals ("incorrect cache misses count", cacheMisses.intValue(), 
+                    eval.getDocReader().getCacheMisses() + eval.getDocReader().getSharedCacheHits());            
         }
         return results;
     }
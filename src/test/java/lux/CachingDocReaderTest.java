@@ -3,8 +3,12 @@ package lux;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.Arrays;
 
+import javax.xml.transform.stream.StreamSource;
+
+import lux.cache.DocumentCache;
 import lux.index.analysis.DefaultAnalyzer;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
@@ -13,8 +17,11 @@ import net.sf.saxon.tree.tiny.TinyDocumentImpl;
 
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
 import org.junit.Before;
@@ -101,4 +108,66 @@ public class CachingDocReaderTest {
         assertResult ("1", eval.evaluate("count(doc('/test'))"));
         assertResult ("2", eval.evaluate("doc('/test')/test2"));
 	}
+	
+	@Test
+	public void testSharedDocumentCache () throws Exception {
+	    assertSuccessfulResult(eval.evaluate("lux:insert('/test', <test>1</test>), lux:commit()"));
+	    eval.reopenSearcher();
+	    DocumentCache sharedCache = eval.getCompiler().getDocumentCache();
+	    long hits = sharedCache.getHits();
+	    assertResult ("1", eval.evaluate("doc('/test')/test/string()"));
+	    assertEquals (hits, sharedCache.getHits());
+	    assertTrue (sharedCache.getBytes() > 0);
+	    // The per-request cache is cleared after each evaluation; the shared cache is not
+	    assertResult ("1", eval.evaluate("doc('/test')/test/string()"));
+	    assertEquals (hits + 1, sharedCache.getHits());
+	}
+
+	/*
+	 * Deleting a document reopens its segment, but the segment's other cached documents remain valid
+	 * until the segment itself is closed.
+	 */
+	@Test
+	public void testDocumentCacheAfterDelete () throws Exception {
+	    RAMDirectory dir = new RAMDirectory();
+	    IndexWriter writer = new IndexWriter (dir, new IndexWriterConfig(Version.LUCENE_46, new DefaultAnalyzer()));
+	    writer.addDocument(Arrays.asList(new StringField[] { new StringField("uri", "/test", Store.YES) } ));
+	    writer.addDocument(Arrays.asList(new StringField[] { new StringField("uri", "/test2", Store.YES) } ));
+	    writer.commit();
+	    DirectoryReader reader = DirectoryReader.open(dir);
+	    DocumentCache cache = new DocumentCache (1000000);
+	    XdmNode doc = eval.getCompiler().getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader("<test>1</test>")));
+	    cache.put(reader.leaves().get(0), 0, doc);
+	    assertEquals (1, cache.size());
+	    writer.deleteDocuments(new Term("uri", "/test2"));
+	    writer.commit();
+	    DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+	    assertNotNull (reopened);
+	    reader.close();
+	    assertEquals (1, cache.size());
+	    // the segment's core is closed when it is merged away
+	    writer.forceMerge(1);
+	    writer.addDocument(Arrays.asList(new StringField[] { new StringField("uri", "/test3", Store.YES) } ));
+	    writer.forceMerge(1);
+	    writer.close();
+	    DirectoryReader merged = DirectoryReader.openIfChanged(reopened);
+	    reopened.close();
+	    assertEquals (0, cache.size());
+	    merged.close();
+	}
+
+	@Test
+	public void testNodeIdentity () throws Exception {
+	    assertSuccessfulResult(eval.evaluate("lux:insert('/test', <test>1</test>), lux:commit()"));
+	    eval.reopenSearcher();
+	    AtomicReaderContext leaf = eval.getSearcher().getIndexReader().leaves().get(0);
+	    CachingDocReader reader = eval.getDocReader();
+	    XdmNode doc = reader.get(0, leaf);
+	    // a document evicted from the shared cache is still the same node within a request
+	    eval.getCompiler().getDocumentCache().clear();
+	    assertSame (doc, reader.get(0, leaf));
+	    assertSame (doc, reader.get(leaf.docBase, eval.getSearcher().getIndexReader()));
+	    assertEquals (1, reader.getCacheMisses());
+	    assertEquals (2, reader.getCacheHits());
+	}
 }
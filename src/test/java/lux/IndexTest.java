@@ -18,9 +18,15 @@ import lux.query.parser.XmlQueryParser;
 import lux.search.LuxSearcher;
 import net.sf.saxon.s9api.SaxonApiException;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.surround.parser.ParseException;
 import org.apache.lucene.queryparser.surround.parser.QueryParser;
@@ -191,6 +197,52 @@ public class IndexTest {
         */
     }
     
+    /*
+     * The text fields produced in a single pass must have the same tokens as those produced by separate passes.
+     */
+    @Test
+    public void testSinglePass () throws Exception {
+        for (String path : new String[] { "lux/reader-test.xml", "lux/reader-test-ns.xml", "lux/wikipedia-ns-test.xml", "lux/hamlet.xml" }) {
+            for (int options : new int[] { DEFAULT_OPTIONS, DEFAULT_OPTIONS | COMPUTE_OFFSETS, INDEX_FULLTEXT }) {
+                XmlIndexer indexer = new XmlIndexer (options);
+                XmlIndexer singlePass = new XmlIndexer (options | SINGLE_PASS);
+                indexer.index(getClass().getClassLoader().getResourceAsStream(path), path);
+                singlePass.index(getClass().getClassLoader().getResourceAsStream(path), path);
+                assertNull (indexer.getTokenBuffer());
+                assertNotNull (singlePass.getTokenBuffer());
+                org.apache.lucene.document.Document doc = indexer.createLuceneDocument();
+                org.apache.lucene.document.Document singlePassDoc = singlePass.createLuceneDocument();
+                for (FieldRole role : new FieldRole[] { FieldRole.XML_TEXT, FieldRole.ELEMENT_TEXT, FieldRole.ATTRIBUTE_TEXT }) {
+                    FieldDefinition field = indexer.getConfiguration().getField(role);
+                    if (field == null) {
+                        continue;
+                    }
+                    String tokens = getTokens (doc.getField(field.getName()), field.getAnalyzer());
+                    assertEquals (path + " " + role, tokens, getTokens (singlePassDoc.getField(field.getName()), field.getAnalyzer()));
+                    if (role != FieldRole.ATTRIBUTE_TEXT) {
+                        assertTrue (tokens.length() > 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String getTokens (IndexableField field, Analyzer analyzer) throws IOException {
+        TokenStream tokens = field.tokenStream(analyzer);
+        CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute pos = tokens.addAttribute(PositionIncrementAttribute.class);
+        OffsetAttribute offsets = tokens.addAttribute(OffsetAttribute.class);
+        StringBuilder buf = new StringBuilder();
+        tokens.reset();
+        while (tokens.incrementToken()) {
+            buf.append(term).append('/').append(pos.getPositionIncrement()).append('/')
+                .append(offsets.startOffset()).append('-').append(offsets.endOffset()).append(' ');
+        }
+        tokens.end();
+        tokens.close();
+        return buf.toString();
+    }
+
     @Test
     public void testStoreBinary () throws Exception {
         XmlIndexer indexer = new XmlIndexer(STORE_DOCUMENT);
@@ -81,6 +81,30 @@ public class CompilerTest {
     	assertEquals ("(/)", expr.toString());
     }
     
+    @Test
+    public void testQueryCache () throws Exception {
+        String query = "1 + 1";
+        long misses = compiler.getQueryCache().getMisses();
+        XQueryExecutable xquery = compiler.compile(query);
+        assertEquals (misses + 1, compiler.getQueryCache().getMisses());
+        long hits = compiler.getQueryCache().getHits();
+        assertSame (xquery, compiler.compile(query));
+        assertEquals (hits + 1, compiler.getQueryCache().getHits());
+        // a different base URI is a different query
+        assertNotSame (xquery, compiler.compile(query, null, new URI("http://localhost/"), null));
+        // changing the namespace bindings invalidates the cache
+        compiler.bindNamespacePrefix("test", "http://localhost/test");
+        assertNotSame (xquery, compiler.compile(query));
+        // so does changing the index configuration
+        xquery = compiler.compile(query);
+        compiler.getIndexConfiguration().defineNamespaceMapping("test", "http://localhost/test");
+        assertNotSame (xquery, compiler.compile(query));
+        // evict everything
+        compiler.getQueryCache().setMaxSize(0);
+        assertEquals (0, compiler.getQueryCache().size());
+        assertNotSame (compiler.compile(query), compiler.compile(query));
+    }
+    
     @Test 
     public void testModuleImport () throws Exception {
         assertQuery ("test", "import-module.xqy"); 
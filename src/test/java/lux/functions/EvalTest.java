@@ -1,10 +1,18 @@
 package lux.functions;
 
 import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
 import lux.Evaluator;
 import lux.QueryContext;
 import lux.XdmResultSet;
+import lux.cache.LRUCache;
+import lux.cache.XQueryEvaluatorPool;
 import lux.xml.QName;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XdmAtomicValue;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -37,6 +45,44 @@ public class EvalTest {
 		assertEquals ("3", result.getXdmValue().itemAt(0).getStringValue());
 	}
 	
+	@Test
+	public void testEvalCache () throws Exception {
+		// repeated evaluations of the same query compile it only once
+		LRUCache<?,?> cache = eval.getCompiler().getEvalCache();
+		long misses = cache.getMisses(), hits = cache.getHits();
+		XdmResultSet result = eval.evaluate("string-join(for $i in 1 to 4 return string(lux:eval('declare variable $x external; $x * 2', ('x', $i))), ' ')");
+		if (! result.getErrors().isEmpty()) {
+			fail (result.getErrors().get(0).toString());
+		}
+		assertEquals ("2 4 6 8", result.getXdmValue().itemAt(0).getStringValue());
+		assertEquals (misses + 1, cache.getMisses());
+		assertEquals (hits + 3, cache.getHits());
+		// parameters bound in one evaluation are not retained by the pooled evaluators
+		result = eval.evaluate("lux:eval('declare variable $x external; $x * 2')");
+		assertFalse (result.getErrors().isEmpty());
+	}
+	
+	@Test
+	public void testNestedEval () throws Exception {
+		// the same query evaluated recursively uses a distinct evaluator at each level
+		String query = "declare variable $q external; declare variable $n external; if ($n eq 0) then 0 else $n + lux:eval($q, ('q', $q, 'n', $n - 1))";
+		QueryContext context = new QueryContext();
+		context.bindVariable(new QName("q"), query);
+		XdmResultSet result = eval.evaluate("declare variable $q external; lux:eval($q, ('q', $q, 'n', 3))", context);
+		if (! result.getErrors().isEmpty()) {
+			fail (result.getErrors().get(0).toString());
+		}
+		assertEquals ("6", result.getXdmValue().itemAt(0).getStringValue());
+		// each evaluator was returned to the pool only once
+		XQueryEvaluatorPool pool = eval.getCompiler().compileEval(query, eval.getErrorListener());
+		XQueryEvaluator e1 = pool.checkoutEvaluator(), e2 = pool.checkoutEvaluator(), e3 = pool.checkoutEvaluator(), e4 = pool.checkoutEvaluator();
+		assertEquals (4, new HashSet<XQueryEvaluator>(Arrays.asList(e1, e2, e3, e4)).size());
+		// an evaluator with a context item is not re-used
+		e1.setContextItem(new XdmAtomicValue(1));
+		pool.returnEvaluator(e1);
+		assertNotSame (e1, pool.checkoutEvaluator());
+	}
+
 	@Test
 	public void testParamNS () throws Exception {
 		XdmResultSet result = eval.evaluate("lux:eval('declare variable $lux:x external; $lux:x', ('lux:x', 3))");
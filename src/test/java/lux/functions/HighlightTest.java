@@ -1,12 +1,31 @@
 package lux.functions;
 
+import static lux.index.IndexConfiguration.*;
 import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.Iterator;
+
 import lux.Evaluator;
+import lux.IndexTestSupport;
 import lux.SearchTest;
 import lux.XdmResultSet;
+import lux.index.FieldRole;
+import lux.index.IndexConfiguration;
+import lux.index.XmlIndexer;
+import lux.search.highlight.OffsetHighlighter;
+import lux.search.highlight.TagFormatter;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
 /**
@@ -65,6 +84,156 @@ public class HighlightTest {
 		assertTrue(result.getErrors().isEmpty());
 	}
 
+	/*
+	 * When the index stores term offsets, documents retrieved from it are highlighted using the offsets, with the
+	 * same results as when their text is analyzed.
+	 */
+	@Test
+	public void testHighlightOffsets() throws Exception {
+		IndexTestSupport analyzed = new IndexTestSupport("lux/hamlet.xml", new XmlIndexer(DEFAULT_OPTIONS), new RAMDirectory());
+		XmlIndexer indexer = new XmlIndexer(DEFAULT_OPTIONS | COMPUTE_OFFSETS);
+		IndexTestSupport offsets = new IndexTestSupport("lux/hamlet.xml", indexer, new RAMDirectory());
+		Evaluator analyzedEval = analyzed.makeEvaluator();
+		Evaluator offsetsEval = offsets.makeEvaluator();
+		for (String query : new String[] { "hamlet", "tragedy of hamlet", "\"tragedy of hamlet\"", "<TITLE:hamlet", "<SPEAKER:bernardo", "ghost -hamlet" }) {
+			String xquery = "for $doc in lux:search('" + query + "')[position() <= 50] return lux:highlight($doc, '" + query + "')";
+			XdmResultSet expected = analyzedEval.evaluate(xquery);
+			XdmResultSet actual = offsetsEval.evaluate(xquery);
+			assertTrue (expected.getErrors().isEmpty());
+			assertTrue (actual.getErrors().isEmpty());
+			assertTrue (query, expected.size() > 0);
+			assertEquals (query, expected.size(), actual.size());
+			Iterator<XdmItem> actualItems = actual.iterator();
+			for (XdmItem item : expected) {
+				assertEquals (query, item.toString(), actualItems.next().toString());
+			}
+		}
+		// check that the offsets were used
+		IndexConfiguration config = indexer.getConfiguration();
+		OffsetHighlighter highlighter = new OffsetHighlighter(offsetsEval.getCompiler().getProcessor(), config, new TagFormatter("B", null));
+		TermQuery query = new TermQuery(new Term(config.getFieldName(FieldRole.XML_TEXT), "hamlet"));
+		XdmNode doc = (XdmNode) offsetsEval.evaluate("lux:search('hamlet')[1]").getXdmValue().itemAt(0);
+		XdmNode highlighted = highlighter.highlight(query, doc.getUnderlyingNode(), offsets.getSearcher().getIndexReader());
+		assertNotNull (highlighted);
+		assertTrue (highlighted.toString().toLowerCase().contains("<b>hamlet</b>"));
+		// documents that aren't in the index can't be highlighted using offsets
+		doc = (XdmNode) offsetsEval.evaluate("document { <a>hamlet</a> }").getXdmValue().itemAt(0);
+		assertNull (highlighter.highlight(query, doc.getUnderlyingNode(), offsets.getSearcher().getIndexReader()));
+		analyzed.close();
+		offsets.close();
+	}
+
+	@Test
+	public void testHighlightFragments() throws Exception {
+		XdmResultSet result = eval.evaluate("lux:highlight-fragments(<doc><title>a term</title><p>nothing here</p><p>the term and another term</p><p>the <i>last</i> term</p></doc>, 'term', 'hi', 2)");
+		assertTrue(result.getErrors().isEmpty());
+		assertEquals(2, result.size());
+		Iterator<XdmItem> items = result.iterator();
+		assertEquals("<title>a <hi>term</hi></title>", serialize(items.next()));
+		assertEquals("<p>the <hi>term</hi> and another <hi>term</hi></p>", serialize(items.next()));
+		// mixed content is kept within its passage; passages matching more of the query score higher
+		result = eval.evaluate("lux:highlight-fragments(<doc><p>a term</p><p>the <i>last</i> term</p></doc>, 'last term', (), 1)");
+		assertTrue(result.getErrors().isEmpty());
+		assertEquals(1, result.size());
+		assertEquals("<p>the <i><B>last</B></i> <B>term</B></p>", serialize(result.iterator().next()));
+		result = eval.evaluate("lux:highlight-fragments(<doc><p>a term</p></doc>, 'missing')");
+		assertTrue(result.getErrors().isEmpty());
+		assertEquals(XdmEmptySequence.getInstance(), result.getXdmValue());
+		result = eval.evaluate("lux:highlight-fragments((), 'term')");
+		assertEquals(XdmEmptySequence.getInstance(), result.getXdmValue());
+		// a large count doesn't allocate space for that many passages
+		result = eval.evaluate("count(lux:highlight-fragments(<doc><p>a term</p></doc>, 'term', (), 2147483647))");
+		assertEquals("1", result.getXdmValue().toString());
+		result = eval.evaluate("lux:highlight-fragments(<doc><p>a term</p></doc>, 'term', (), 2147483648)");
+		assertFalse(result.getErrors().isEmpty());
+		result = eval.evaluate("lux:highlight-fragments(<doc><p>a term</p></doc>, 'term', (), -1)");
+		assertFalse(result.getErrors().isEmpty());
+	}
+
+	/*
+	 * Phrases and element text queries are matched within passages.
+	 */
+	@Test
+	public void testHighlightFragmentsHamlet() throws Exception {
+		IndexTestSupport index = new IndexTestSupport("lux/hamlet.xml", new XmlIndexer(DEFAULT_OPTIONS), new RAMDirectory());
+		Evaluator hamletEval = index.makeEvaluator();
+		XdmResultSet result = hamletEval.evaluate("lux:highlight-fragments(lux:search('<SPEAKER:bernardo')[1], '<SPEAKER:bernardo', 'b', 5)");
+		assertTrue(result.getErrors().isEmpty());
+		assertTrue(result.size() > 0);
+		for (XdmItem item : result) {
+			assertEquals("<SPEAKER><b>BERNARDO</b></SPEAKER>", serialize(item));
+		}
+		result = hamletEval.evaluate("for $doc in lux:search('\"tragedy of hamlet\"') return lux:highlight-fragments($doc, '\"tragedy of hamlet\"')");
+		assertTrue(result.getErrors().isEmpty());
+		assertTrue(result.size() > 0);
+		for (XdmItem item : result) {
+			assertTrue(serialize(item), serialize(item).contains("<B>Tragedy</B> <B>of</B> <B>Hamlet</B>"));
+		}
+		index.close();
+	}
+
+	/*
+	 * Highlighting must not alter the parsed query that later searches share.
+	 */
+	@Test
+	public void testHighlightKeepsCachedQuery() throws Exception {
+		IndexTestSupport index = new IndexTestSupport("lux/hamlet.xml", new XmlIndexer(DEFAULT_OPTIONS), new RAMDirectory());
+		Evaluator hamletEval = index.makeEvaluator();
+		// the phrase occurs in the play's lines, but not in any speaker's name
+		String query = "'<SPEAKER:\"to be\" <SPEAKER:zzzz'";
+		XdmResultSet result = hamletEval.evaluate("count(lux:search(" + query + "))");
+		assertTrue(result.getErrors().isEmpty());
+		String count = result.getXdmValue().toString();
+		assertEquals("0", count);
+		result = hamletEval.evaluate("lux:highlight(<SPEECH><SPEAKER>to be</SPEAKER><LINE>to be</LINE></SPEECH>, " + query + ")");
+		assertTrue(result.getErrors().isEmpty());
+		result = hamletEval.evaluate("lux:highlight-fragments(<SPEECH><SPEAKER>to be</SPEAKER><LINE>to be</LINE></SPEECH>, " + query + ")");
+		assertTrue(result.getErrors().isEmpty());
+		assertEquals(count, hamletEval.evaluate("count(lux:search(" + query + "))").getXdmValue().toString());
+		assertEquals(count, index.makeEvaluator().evaluate("count(lux:search(" + query + "))").getXdmValue().toString());
+		index.close();
+	}
+
+	/*
+	 * Measures the throughput of lux:highlight and lux:highlight-fragments over a page of search results.
+	 */
+	@Test @Ignore
+	public void testBenchmark() throws Exception {
+		IndexTestSupport index = new IndexTestSupport("lux/hamlet.xml", new XmlIndexer(DEFAULT_OPTIONS), new RAMDirectory());
+		Evaluator hamletEval = index.makeEvaluator();
+		for (String query : new String[] { "hamlet", "\"tragedy of hamlet\"" }) {
+			doBenchmark (hamletEval, "lux:highlight($doc, '" + query + "')", query, 100, 20);
+			doBenchmark (hamletEval, "lux:highlight-fragments($doc, '" + query + "')", query, 100, 20);
+		}
+		index.close();
+	}
+
+	private void doBenchmark (Evaluator hamletEval, String highlight, String query, int pageSize, int iterations) {
+		String xquery = "for $doc in lux:search('" + query + "')[position() <= " + pageSize + "] return " + highlight;
+		// warm up
+		for (int i = 0; i < iterations; i++) {
+			hamletEval.evaluate(xquery);
+		}
+		long start = System.nanoTime();
+		int count = 0;
+		for (int i = 0; i < iterations; i++) {
+			XdmResultSet result = hamletEval.evaluate(xquery);
+			assertTrue (result.getErrors().isEmpty());
+			count += result.size();
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%s: %d results in %dms; %.0f highlights/sec", xquery, count, elapsed / 1000000, count * 1e9 / elapsed));
+	}
+
+	private String serialize (XdmItem item) throws SaxonApiException {
+		StringWriter out = new StringWriter();
+		Serializer serializer = eval.getCompiler().getProcessor().newSerializer(out);
+		serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+		serializer.setOutputProperty(Serializer.Property.INDENT, "no");
+		serializer.serializeNode((XdmNode) item);
+		return out.toString();
+	}
+
 	@Test
 	public void testHighlightBadTagName() throws Exception {
 		XdmResultSet result = eval.evaluate("lux:highlight(<a>there is a term here</a>, 'term', <hi />)");
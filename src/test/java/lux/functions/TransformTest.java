@@ -5,6 +5,7 @@ import static org.junit.Assert.assertNotNull;
 import lux.Evaluator;
 import lux.QueryContext;
 import lux.XdmResultSet;
+import lux.cache.LRUCache;
 import lux.xml.QName;
 import net.sf.saxon.s9api.XdmAtomicValue;
 
@@ -27,6 +28,21 @@ public class TransformTest extends XQueryTest {
         assertXQueryFile ("2", "transform-1.xqy");
     }
     
+    @Test
+    public void testTransformCache () throws Exception {
+        // a stylesheet applied repeatedly is compiled only once
+        LRUCache<?,?> cache = evaluator.getCompiler().getXsltCache();
+        long misses = cache.getMisses(), hits = cache.getHits();
+        String xslt = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>" +
+                "<xsl:template match='test'><xsl:value-of select='. * %d' /></xsl:template></xsl:stylesheet>";
+        assertXQuery ("2 4 6", "string-join(for $i in 1 to 3 return lux:transform(" + String.format(xslt, 2) + ", <test>{$i}</test>), ' ')");
+        assertEquals (misses + 1, cache.getMisses());
+        assertEquals (hits + 2, cache.getHits());
+        // a different stylesheet is compiled separately
+        assertXQuery ("3", "lux:transform(" + String.format(xslt, 3) + ", <test>1</test>)");
+        assertEquals (misses + 2, cache.getMisses());
+    }
+
     @Test
     public void testOutputURIResolution() throws Exception {
         // test a transform that writes a document using result-document
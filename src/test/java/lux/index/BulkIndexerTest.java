@@ -0,0 +1,123 @@
+package lux.index;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import lux.exception.LuxException;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+public class BulkIndexerTest {
+
+    @Test
+    public void testBulkIndex () throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        XmlIndexer indexer = new XmlIndexer ();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        BulkIndexer bulk = new BulkIndexer (indexer.getConfiguration(), indexWriter, 4, 8);
+        final Set<String> failed = Collections.synchronizedSet(new HashSet<String>());
+        bulk.setErrorListener(new BulkIndexer.ErrorListener() {
+            @Override
+            public void error(String uri, Exception e) {
+                failed.add(uri);
+            }
+        });
+        // index each document twice: the second replaces the first
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 100; i++) {
+                bulk.add("/doc/" + i, new ByteArrayInputStream(("<doc><title>" + i + "</title><test>pass" + pass + "</test></doc>").getBytes("utf-8")));
+            }
+        }
+        bulk.add("/malformed", new ByteArrayInputStream("<doc>".getBytes("utf-8")));
+        bulk.finish();
+        indexWriter.commit();
+        assertEquals (200, bulk.getDocumentCount());
+        assertEquals (1, bulk.getErrorCount());
+        assertEquals (Collections.singleton("/malformed"), failed);
+        assertTrue (bulk.getElapsedTime() >= 0);
+        try {
+            bulk.add("/late", new ByteArrayInputStream("<doc/>".getBytes("utf-8")));
+            fail ("expected an exception adding to a finished BulkIndexer");
+        } catch (IllegalStateException e) { }
+
+        DirectoryReader reader = DirectoryReader.open(dir);
+        assertEquals (100, reader.numDocs());
+        IndexSearcher searcher = new IndexSearcher(reader);
+        String uriField = indexer.getConfiguration().getUriFieldName();
+        assertEquals (1, searcher.search(new TermQuery(new Term(uriField, "/doc/17")), 10).totalHits);
+        reader.close();
+        indexWriter.close();
+    }
+
+    @Test
+    public void testWorkerFailure () throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        XmlIndexer indexer = new XmlIndexer ();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        BulkIndexer bulk = new BulkIndexer (indexer.getConfiguration(), indexWriter, 2, 2);
+        bulk.setErrorListener(new BulkIndexer.ErrorListener() {
+            @Override
+            public void error(String uri, Exception e) {
+                throw new IllegalStateException ("listener failed on " + uri);
+            }
+        });
+        bulk.add("/malformed", new ByteArrayInputStream("<doc>".getBytes("utf-8")));
+        try {
+            // the failure is reported by add(), or if the worker is slow, by finish()
+            for (int i = 0; i < 100; i++) {
+                bulk.add("/doc/" + i, new ByteArrayInputStream(("<doc>" + i + "</doc>").getBytes("utf-8")));
+            }
+            bulk.finish();
+            fail ("expected the worker's failure to be rethrown");
+        } catch (LuxException e) {
+            assertEquals ("listener failed on /malformed", e.getCause().getMessage());
+        }
+        // the workers are stopped, and the failure is reported again
+        try {
+            bulk.finish();
+            fail ("expected the worker's failure to be rethrown");
+        } catch (LuxException e) { }
+        assertTrue (bulk.getDocumentCount() < 100);
+        indexWriter.close();
+    }
+
+    @Test
+    public void testBulkIndexDirectory () throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        XmlIndexer indexer = new XmlIndexer ();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        BulkIndexer bulk = new BulkIndexer (indexer.getConfiguration(), indexWriter);
+        final Set<String> failed = Collections.synchronizedSet(new HashSet<String>());
+        bulk.setErrorListener(new BulkIndexer.ErrorListener() {
+            @Override
+            public void error(String uri, Exception e) {
+                failed.add(uri);
+            }
+        });
+        int count = bulk.addDirectory(new File ("src/test/resources/lux"));
+        bulk.finish();
+        indexWriter.close();
+        assertTrue (count > 0);
+        assertEquals (count, bulk.getDocumentCount() + bulk.getErrorCount());
+        assertEquals (failed.size(), bulk.getErrorCount());
+        DirectoryReader reader = DirectoryReader.open(dir);
+        assertEquals (bulk.getDocumentCount(), reader.numDocs());
+        reader.close();
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
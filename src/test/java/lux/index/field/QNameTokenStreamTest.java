@@ -5,15 +5,20 @@ import static org.junit.Assert.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 
+import javax.xml.transform.stream.StreamSource;
+
 import lux.index.analysis.AttributeTokenStream;
 import lux.index.analysis.DefaultAnalyzer;
 import lux.index.analysis.ElementTokenStream;
 import lux.index.analysis.ElementVisibility;
 import lux.index.analysis.XmlTextTokenStream;
 import lux.index.analysis.XmlTokenStreamBase;
-import lux.xml.OffsetDocBuilder;
 import lux.xml.Offsets;
+import lux.xml.SaxonDocBuilder;
 import lux.xml.XmlReader;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.TreeModel;
+import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.XdmNode;
 
@@ -24,6 +29,7 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class QNameTokenStreamTest {
@@ -141,27 +147,118 @@ public class QNameTokenStreamTest {
         assertFalse (tokenStream.incrementToken());
     }
     
-    private void setup(String filename, Class<?> tokenStreamClass) throws Exception {
-        byte[] input = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(filename));
-        inputString = new String (input, "utf-8");
+    /*
+     * Text is drawn directly from the arrays of a TinyTree, and from other trees by navigating their nodes:
+     * check that both yield the same tokens.
+     */
+    @Test
+    public void testTinyTreeMatchesLinkedTree () throws Exception {
+        processor = new Processor(false);
+        for (String filename : new String[] { "lux/reader-test.xml", "lux/hamlet.xml" }) {
+            XdmNode tiny = buildDocument (filename, TreeModel.TINY_TREE);
+            XdmNode linked = buildDocument (filename, TreeModel.LINKED_TREE);
+            assertEquals (getTokens(tiny, XmlTextTokenStream.class, null), getTokens(linked, XmlTextTokenStream.class, null));
+            for (ElementVisibility vis : ElementVisibility.values()) {
+                if (vis == ElementVisibility.HIDDEN) {
+                    continue;
+                }
+                String tinyTokens = getTokens(tiny, ElementTokenStream.class, vis);
+                assertEquals (tinyTokens, getTokens(linked, ElementTokenStream.class, vis));
+                assertTrue (tinyTokens.length() > 0);
+            }
+        }
+        // and from a subtree
+        XdmNode tiny = buildDocument ("lux/hamlet.xml", TreeModel.TINY_TREE);
+        XdmNode linked = buildDocument ("lux/hamlet.xml", TreeModel.LINKED_TREE);
+        XdmNode tinyAct = (XdmNode) processor.newXPathCompiler().evaluateSingle("/PLAY/ACT[2]", tiny);
+        XdmNode linkedAct = (XdmNode) processor.newXPathCompiler().evaluateSingle("/PLAY/ACT[2]", linked);
+        assertEquals (getTokens(tinyAct, ElementTokenStream.class, ElementVisibility.TRANSPARENT),
+                getTokens(linkedAct, ElementTokenStream.class, ElementVisibility.TRANSPARENT));
+    }
+
+    /*
+     * Compares the throughput of element-text tokenization over a TinyTree, which walks the tree's arrays,
+     * with that over a linked tree, which navigates the ancestors of each text node.
+     */
+    @Test @Ignore
+    public void testBenchmark () throws Exception {
         processor = new Processor(false);
-        OffsetDocBuilder builder = new OffsetDocBuilder(processor);
-        boolean hasCRLF = false;
-        for (byte b : input) {
-            if (b == '\r') {
-                hasCRLF = true;
-                break;
+        XdmNode tiny = buildDocument ("lux/hamlet.xml", TreeModel.TINY_TREE);
+        XdmNode linked = buildDocument ("lux/hamlet.xml", TreeModel.LINKED_TREE);
+        for (int round = 0; round < 3; round++) {
+            int iterations = 100;
+            long start = System.nanoTime();
+            int tokens = 0;
+            for (int i = 0; i < iterations; i++) {
+                tokens += countTokens(tiny);
             }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                countTokens(linked);
+            }
+            long t2 = System.nanoTime();
+            System.out.println (String.format("%d element-text tokens: TinyTree: %dms; linked tree: %dms",
+                    tokens, (t1-start)/1000000, (t2-t1)/1000000));
+        }
+    }
+
+    private XdmNode buildDocument (String filename, TreeModel treeModel) throws Exception {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        builder.setTreeModel(treeModel);
+        return builder.build(new StreamSource(getClass().getClassLoader().getResourceAsStream(filename)));
+    }
+
+    private TokenStream makeTokenStream (XdmNode doc, Class<?> tokenStreamClass, ElementVisibility defVis) throws Exception {
+        DefaultAnalyzer defaultAnalyzer = new DefaultAnalyzer();
+        TokenStream textTokens = defaultAnalyzer.tokenStream("dummy", new CharSequenceReader(""));
+        XmlTokenStreamBase tokens = (XmlTokenStreamBase) tokenStreamClass.getConstructor(String.class, Analyzer.class, TokenStream.class, XdmNode.class, Offsets.class, Processor.class).
+                newInstance("dummy", defaultAnalyzer, textTokens, doc, null, processor);
+        if (defVis != null) {
+            NamePool namePool = processor.getUnderlyingConfiguration().getNamePool();
+            tokens.setDefaultVisibility(defVis);
+            tokens.setElementVisibility(namePool.allocateClarkName("SPEAKER"), ElementVisibility.HIDDEN);
+            tokens.setElementVisibility(namePool.allocateClarkName("SCENE"), ElementVisibility.CONTAINER);
+            tokens.setElementVisibility(namePool.allocateClarkName("LINE"), ElementVisibility.TRANSPARENT);
+            tokens.setElementVisibility(namePool.allocateClarkName("test"), ElementVisibility.CONTAINER);
+        }
+        tokens.reset();
+        return tokens;
+    }
+
+    private String getTokens (XdmNode doc, Class<?> tokenStreamClass, ElementVisibility defVis) throws Exception {
+        TokenStream tokens = makeTokenStream(doc, tokenStreamClass, defVis);
+        CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute pos = tokens.addAttribute(PositionIncrementAttribute.class);
+        StringBuilder buf = new StringBuilder();
+        while (tokens.incrementToken()) {
+            buf.append(term).append('/').append(pos.getPositionIncrement()).append(' ');
+        }
+        return buf.toString();
+    }
+
+    private int countTokens (XdmNode doc) throws Exception {
+        TokenStream tokens = makeTokenStream(doc, ElementTokenStream.class, ElementVisibility.OPAQUE);
+        int count = 0;
+        while (tokens.incrementToken()) {
+            ++count;
         }
-        builder.setFixupCRLF(hasCRLF); // TODO: should be autodetected
+        return count;
+    }
+
+    private void setup(String filename, Class<?> tokenStreamClass) throws Exception {
+        byte[] input = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(filename));
+        processor = new Processor(false);
+        SaxonDocBuilder builder = new SaxonDocBuilder(processor);
         XmlReader reader = new XmlReader();
         reader.addHandler(builder);
         reader.read(new ByteArrayInputStream(input));
         XdmNode doc = builder.getDocument();
+        // offsets are measured in the text of the document
+        inputString = doc.getStringValue();
         DefaultAnalyzer defaultAnalyzer = new DefaultAnalyzer();
         TokenStream textTokens = defaultAnalyzer.tokenStream("dummy", new CharSequenceReader(""));
         tokenStream = (TokenStream) tokenStreamClass.getConstructor(String.class, Analyzer.class, TokenStream.class, XdmNode.class, Offsets.class, Processor.class).
-                newInstance("dummy", defaultAnalyzer, textTokens, doc, builder.getOffsets(), processor);
+                newInstance("dummy", defaultAnalyzer, textTokens, doc, Offsets.forText(doc.getUnderlyingNode()), processor);
         termAtt = tokenStream.addAttribute(CharTermAttribute.class);
         offsetAtt = tokenStream.addAttribute(OffsetAttribute.class);
         posAtt = tokenStream.addAttribute(PositionIncrementAttribute.class);
@@ -182,10 +279,7 @@ public class QNameTokenStreamTest {
     }
 
     private Object normalize(String t) {
-        // It might be nice to have a slightly more general normalization routine
-        t = t.replace ("&#48;", "0");
-        t = t.replace ("&#x123;", "\u0123");
-        t = t.toLowerCase();
-        return t;
+        // character references have already been replaced in the text of the document
+        return t.toLowerCase();
     }
 }
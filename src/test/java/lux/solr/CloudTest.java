@@ -81,6 +81,14 @@ public class CloudTest extends BaseDistributedSearchTestCase {
 
         // lux:exists()
         query ("qt", "/xquery", "q", "exists(/ACT)");
+
+        // results retrieved in several pages (of 20, 40, 80, ...), sorted by a field
+        query ("qt", "/xquery", "q", "(for $doc in collection() order by $doc/lux:key('lux_uri') return $doc/base-uri())[position() = (1, 20, 21, 60, 61, 140, 141, 300, 301)]");
+        // unsorted results, merged from several pages of each shard; the results don't depend on their order
+        query ("qt", "/xquery", "q", "count(/SPEECH[contains(., 'mercy')])");
+        query ("qt", "/xquery", "q", "sum(for $sp in /SPEECH return string-length($sp/SPEAKER[1]))");
+        // iteration abandoned with pages still pending
+        query ("qt", "/xquery", "q", "exists(/SPEECH[contains(., 'philosophy')])");
         
         // test an expression dependent on document ordering
         // StackOverflow in net.sf.saxon.expr.ForExpression.optimize()!!!  This is filed as Saxon bug #1910; see saxonica.plan.io
@@ -0,0 +1,72 @@
+package lux.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import lux.Compiler;
+import lux.index.IndexConfiguration;
+import net.sf.saxon.s9api.XQueryExecutable;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class ModuleCacheTest {
+
+    @Test
+    public void testRevalidate () throws Exception {
+        File dir = new File ("target/module-cache-test");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        File lib = new File (dir, "lib.xqy");
+        File main = new File (dir, "main.xqy");
+        FileUtils.writeStringToFile(lib, "module namespace lib='http://luxdb.net/test/lib'; declare function lib:f() { 1 };");
+        String query = "import module namespace lib='http://luxdb.net/test/lib' at 'lib.xqy'; lib:f()";
+        FileUtils.writeStringToFile(main, query);
+
+        ModuleCache cache = new ModuleCache ();
+        String url = main.toURI().toString();
+        ModuleCache.Module module = cache.put(url, query, main);
+        assertSame (module, cache.get(url));
+        assertTrue (module.isCurrent());
+        assertFalse (module.hasLibraries());
+
+        Compiler compiler = new Compiler (new IndexConfiguration());
+        XQueryExecutable expr = compiler.compile(query, null, main.toURI(), null);
+        assertFalse (module.isCompiled());
+        module.setCompiled(expr);
+        assertTrue (module.isCompiled());
+        assertTrue (module.hasLibraries());
+        assertTrue (module.isCurrent());
+
+        // changing an imported library invalidates the module
+        FileUtils.writeStringToFile(lib, "module namespace lib='http://luxdb.net/test/lib'; declare function lib:f() { 22 };");
+        assertFalse (module.isCurrent());
+
+        cache.remove(url, module);
+        assertNull (cache.get(url));
+
+        // changing the module itself invalidates it
+        module = cache.put(url, query, main);
+        assertTrue (module.isCurrent());
+        FileUtils.writeStringToFile(main, query + "+1");
+        assertFalse (module.isCurrent());
+
+        // a module whose file changed after it was stamped, while it was being read, is not current
+        ModuleCache.FileStamp stamp = new ModuleCache.FileStamp(main);
+        FileUtils.writeStringToFile(main, query + "+22");
+        module = cache.put(url, query + "+1", stamp);
+        assertFalse (module.isCurrent());
+
+        // modules not read from files remain current
+        module = cache.put(url, query, (File) null);
+        assertTrue (module.isCurrent());
+        cache.clear();
+        assertEquals (0, cache.size());
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
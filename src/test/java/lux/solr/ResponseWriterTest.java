@@ -6,11 +6,16 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.HashMap;
+import java.util.Iterator;
 
 import javax.xml.transform.stream.StreamSource;
 
+import lux.Evaluator;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XQueryExecutable;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 
 import org.apache.solr.common.SolrException;
@@ -87,6 +92,64 @@ public class ResponseWriterTest extends BaseSolrTest {
         		"</results>", result);
     }
     
+    // results evaluated and serialized as they are written
+    @Test
+    public void testStreamingResults() throws Exception {
+        XQueryComponent component = new XQueryComponent();
+        component.inform(solrCore);
+        Evaluator eval = new Evaluator ();
+        XQueryExecutable query = eval.getCompiler().compile("(<test>Hello, World</test>, 'Hello, World', 1.0)");
+        SolrQueryRequest request = makeRequest("lux.contentType", "text/xml");
+        assertEquals ("<results><test>Hello, World</test>Hello, World1.0</results>", writeStream(component, eval, query, request, 0));
+        writer = new StringWriter();
+        assertEquals ("<results><test>Hello, World</test>Hello, World</results>", writeStream(component, eval, query, request, 2));
+        // a single element is not wrapped
+        writer = new StringWriter();
+        query = eval.getCompiler().compile("<test>Hello, World</test>");
+        assertEquals ("<test>Hello, World</test>", writeStream(component, eval, query, request, 0));
+    }
+
+    private String writeStream (XQueryComponent component, Evaluator eval, XQueryExecutable query, SolrQueryRequest request, int maxResults) throws IOException {
+        Iterator<XdmItem> results = eval.iterator(query, null);
+        Serializer serializer = new Serializer();
+        serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+        ResultStream stream = new ResultStream(component, eval, "", serializer, new SolrQueryContext(component, request),
+                results.next(), results, maxResults, 0);
+        SolrQueryResponse response = new SolrQueryResponse();
+        response.add(ResultStream.RESULT_STREAM, stream);
+        responseWriter.write(writer, request, response);
+        return writer.getBuffer().toString();
+    }
+
+    // a streaming query evaluated by the xquery handler, as it is when requested over http
+    @Test
+    public void testStreamingRequest() throws Exception {
+        SolrQueryResponse response = executeStreaming("(<test>Hello, World</test>, 'Hello, World', 1.0)");
+        assertNotNull (response.getValues().get(ResultStream.RESULT_STREAM));
+        assertNull (response.getValues().get("xpath-results"));
+        // the documents found are counted before the response is written
+        assertNotNull (response.getValues().get("response"));
+        SolrQueryRequest request = makeRequest("q", "()", "lux.contentType", "text/xml");
+        responseWriter.write(writer, request, response);
+        assertEquals ("<results><test>Hello, World</test>Hello, World1.0</results>", writer.getBuffer().toString());
+        // an error raised after the first result is reported at the end of the response
+        writer = new StringWriter();
+        response = executeStreaming("(<test>Hello, World</test>, error(xs:QName('test-error'), 'failed'))");
+        responseWriter.write(writer, request, response);
+        String result = writer.getBuffer().toString();
+        assertTrue (result, result.startsWith("<results><test>Hello, World</test><errors><error>"));
+        assertTrue (result, result.contains("failed"));
+        assertTrue (result, result.endsWith("</error></errors></results>"));
+    }
+
+    private SolrQueryResponse executeStreaming (String query) {
+        SolrQueryRequest request = makeRequest("q", query, "wt", "lux", "lux.streaming", "true", "lux.contentType", "text/xml");
+        SolrQueryResponse response = new SolrQueryResponse();
+        solrCore.execute(solrCore.getRequestHandler("/xquery"), request, response);
+        assertNull (response.getException());
+        return response;
+    }
+
     // if an ordinary error was caught, we report it using a SolrException so that
     // Solr can produce a 400 response
     @Test
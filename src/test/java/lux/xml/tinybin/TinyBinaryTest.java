@@ -1,26 +1,36 @@
 package lux.xml.tinybin;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import javax.xml.transform.stream.StreamSource;
 
 import lux.SearchTest;
+import lux.index.field.TinyBinaryField;
+import lux.index.field.TinyBinarySolrField;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.expr.sort.CodepointCollator;
 import net.sf.saxon.expr.sort.GenericAtomicComparer;
 import net.sf.saxon.functions.DeepEqual;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.pattern.NodeKindTest;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
 import net.sf.saxon.tree.tiny.TinyDocumentImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
@@ -54,6 +64,75 @@ public class TinyBinaryTest {
         assertRoundTrip("lux/hamlet.xml", "utf-8");
     }
     
+    @Test
+    public void testLazyRoundTrip() throws SaxonApiException, XPathException, IOException {
+        assertRoundTrip("lux/reader-test.xml", null, TinyBinary.CURRENT_FORMAT, true);
+        assertRoundTrip("lux/reader-test.xml", "utf-8", TinyBinary.CURRENT_FORMAT, true);
+        assertRoundTrip("lux/reader-test-ns.xml", null, TinyBinary.CURRENT_FORMAT, true);
+        assertRoundTrip("lux/reader-test-ns.xml", "utf-8", TinyBinary.CURRENT_FORMAT, true);
+        assertRoundTrip("lux/hamlet.xml", "utf-8", TinyBinary.CURRENT_FORMAT, true);
+        assertRoundTrip("conf/solrconfig.xml", "utf-8", TinyBinary.CURRENT_FORMAT, true);
+        assertRoundTrip("lux/wikipedia-ns-test.xml", "utf-8", TinyBinary.CURRENT_FORMAT, true);
+        assertRoundTrip("lux/reader-test.xml", "utf-8", (byte) 0, true);
+    }
+    
+    @Test
+    public void testLazyDecoding () throws Exception {
+        InputStream in = SearchTest.class.getClassLoader().getResourceAsStream("conf/solrconfig.xml");
+        XdmNode doc = builder.build(new StreamSource(in));
+        in.close();
+        TinyBinary tinyBin = new TinyBinary(((TinyDocumentImpl) doc.getUnderlyingNode()).getTree(), Charset.forName("utf-8"));
+        TinyDocumentImpl tinyDoc = new TinyBinary(tinyBin.getBytes(), Charset.forName("utf-8")).getTinyDocument(processor.getUnderlyingConfiguration(), true);
+        TinyTree tree = tinyDoc.getTree();
+        TinyBinary.LazyCharBuffer text = (TinyBinary.LazyCharBuffer) tree.getCharacterBuffer();
+        TinyBinary.LazyAttributeValue att = (TinyBinary.LazyAttributeValue) tree.getAttributeValueArray()[0];
+        // navigating the structure decodes nothing
+        NodeInfo root = tinyDoc.iterateAxis(AxisInfo.CHILD, NodeKindTest.ELEMENT).next();
+        assertEquals ("config", root.getLocalPart());
+        assertFalse (text.isDecoded());
+        assertFalse (att.isDecoded());
+        // reading an attribute decodes the attribute values only
+        assertEquals (tree.getAttributeValueArray()[0].toString(), 
+                ((TinyDocumentImpl) doc.getUnderlyingNode()).getTree().getAttributeValueArray()[0].toString());
+        assertTrue (att.isDecoded());
+        assertFalse (text.isDecoded());
+        // reading text decodes the text
+        assertEquals (doc.getUnderlyingNode().getStringValue(), tinyDoc.getStringValue());
+        assertTrue (text.isDecoded());
+    }
+    
+    @Test
+    public void testOffset () throws Exception {
+        InputStream in = SearchTest.class.getClassLoader().getResourceAsStream("lux/reader-test-ns.xml");
+        XdmNode doc = builder.build(new StreamSource(in));
+        in.close();
+        for (Charset charset : new Charset[] { null, Charset.forName("utf-8") }) {
+            TinyBinary tinyBin = new TinyBinary(((TinyDocumentImpl) doc.getUnderlyingNode()).getTree(), charset);
+            // embed the tiny binary in a larger array, surrounded by junk
+            byte[] buf = new byte[tinyBin.length() + 20];
+            Arrays.fill(buf, (byte) 'x');
+            System.arraycopy(tinyBin.getBytes(), 0, buf, 7, tinyBin.length());
+            Configuration config = processor.getUnderlyingConfiguration();
+            TinyDocumentImpl copy = new TinyBinary(buf, 7, tinyBin.length(), charset).getTinyDocument(config);
+            assertEquals (doc.getUnderlyingNode().getStringValue(), copy.getStringValue());
+            copy = new TinyBinary(buf, 7, tinyBin.length(), charset).getTinyDocument(config, true);
+            assertEquals (doc.getUnderlyingNode().getStringValue(), copy.getStringValue());
+        }
+    }
+    
+    @Test
+    public void testExactBytes () throws Exception {
+        // the bytes that SolrDocWriter sends to LuxUpdateProcessor in the cloud
+        InputStream in = SearchTest.class.getClassLoader().getResourceAsStream("lux/hamlet.xml");
+        XdmNode doc = builder.build(new StreamSource(in));
+        in.close();
+        TinyBinary tinyBin = new TinyBinary(((TinyDocumentImpl) doc.getUnderlyingNode()).getTree(), TinyBinaryField.UTF8);
+        byte[] bytes = TinyBinarySolrField.getBytes(tinyBin);
+        assertEquals (tinyBin.length(), bytes.length);
+        TinyDocumentImpl copy = new TinyBinary(bytes, TinyBinaryField.UTF8).getTinyDocument(processor.getUnderlyingConfiguration());
+        assertEquals (doc.getUnderlyingNode().getStringValue(), copy.getStringValue());
+    }
+
     @Test
     public void testReadVersion0 () throws Exception {
         assertRoundTrip("lux/reader-test.xml", null, (byte) 0);
@@ -85,8 +164,15 @@ public class TinyBinaryTest {
         doBenchmark("lux/reader-test.xml", "utf-8", 1000);
         doBenchmark("lux/hamlet.xml", null, 1000);
         doBenchmark("lux/hamlet.xml", "utf-8", 1000);
+        doBenchmark("conf/solrconfig.xml", "utf-8", 1000);
+        doBenchmark("lux/wikipedia-ns-test.xml", "utf-8", 1000);
     }    
     
+    /*
+     * Compares parsing XML with full and lazy TinyBinary decoding.  The lazy decode is timed twice: once
+     * touching only the document element (as a query like lux:search(...)/foo/@id mostly does), and once
+     * touching its attributes and then the complete text, which forces a full decode.
+     */
     private void doBenchmark (String docpath, String charsetName, int iterations) throws IOException, SaxonApiException {
         InputStream in = SearchTest.class.getClassLoader().getResourceAsStream(docpath);
         byte[] inputBytes = IOUtils.toByteArray(in);
@@ -95,7 +181,7 @@ public class TinyBinaryTest {
         XdmNode doc = builder.build(new StreamSource(new ByteArrayInputStream(inputBytes)));
         TinyBinary tinyBin = new TinyBinary(((TinyDocumentImpl) doc.getUnderlyingNode()).getTree(), charset);
         byte[] tinyInput = tinyBin.getBytes();
-        System.out.println(String.format("Original size=%d bytes, 'tiny' binary size=%d bytes", inputBytes.length, tinyBin.length()));
+        System.out.println(String.format("%s (%s): Original size=%d bytes, 'tiny' binary size=%d bytes", docpath, charsetName, inputBytes.length, tinyBin.length()));
         long start = System.nanoTime();
         for (int i = 0; i < iterations; i++) {
             builder.build(new StreamSource(new ByteArrayInputStream(inputBytes)));
@@ -106,10 +192,33 @@ public class TinyBinaryTest {
             new TinyBinary(tinyInput, charset).getTinyDocument(config);
         }
         long t2 = System.nanoTime();
-        System.out.println (String.format("DocBuilder: %dms; TinyBinary: %dms", (t1-start)/1000000, (t2-t1)/1000000));        
+        for (int i = 0; i < iterations; i++) {
+            touchRoot(new TinyBinary(tinyInput, charset).getTinyDocument(config, true));
+        }
+        long t3 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            TinyDocumentImpl tinyDoc = new TinyBinary(tinyInput, charset).getTinyDocument(config, true);
+            touchRoot(tinyDoc);
+            tinyDoc.getStringValue();
+        }
+        long t4 = System.nanoTime();
+        System.out.println (String.format("DocBuilder: %dms; TinyBinary: %dms; lazy (root only): %dms; lazy (all): %dms",
+                (t1-start)/1000000, (t2-t1)/1000000, (t3-t2)/1000000, (t4-t3)/1000000));
+    }
+    
+    private static void touchRoot (TinyDocumentImpl tinyDoc) {
+        NodeInfo root = tinyDoc.iterateAxis(AxisInfo.CHILD, NodeKindTest.ELEMENT).next();
+        AxisIterator atts = root.iterateAxis(AxisInfo.ATTRIBUTE);
+        for (NodeInfo att = atts.next(); att != null; att = atts.next()) {
+            att.getStringValue();
+        }
     }
     
     private void assertRoundTrip (String docpath, String charsetName, byte formatVersion) throws XPathException, SaxonApiException, IOException {
+        assertRoundTrip (docpath, charsetName, formatVersion, false);
+    }
+    
+    private void assertRoundTrip (String docpath, String charsetName, byte formatVersion, boolean lazy) throws XPathException, SaxonApiException, IOException {
     	// get a file from the class path
         InputStream in = SearchTest.class.getClassLoader().getResourceAsStream(docpath);
         // build a document from that file
@@ -123,7 +232,7 @@ public class TinyBinaryTest {
         TinyBinary copy = new TinyBinary (b, charset);
         Configuration config = processor.getUnderlyingConfiguration();
         // get the document node from the copy
-        TinyDocumentImpl tinyDoc = copy.getTinyDocument(config);
+        TinyDocumentImpl tinyDoc = copy.getTinyDocument(config, lazy);
         // for debugging:
         // processor.newSerializer(System.out).serializeNode(new XdmNode(tinyDoc));
         XPathContext context = config.getConversionContext();